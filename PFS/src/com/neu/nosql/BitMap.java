@@ -1,25 +1,231 @@
 package com.neu.nosql;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static com.neu.nosql.DB.BLOCK_CNT;
+
 /**
- * This class provides methods for serializing and deserializing the bitmap field.
- * The bitmap is a boolean array that represents the state of each block in the database.
- * Each element in the bitmap corresponds to a block, indicating whether it is allocated or free.
+ * This class represents the bitmap of a database file, and provides methods for serializing and deserializing it.
+ * The bitmap represents the state of each block in the database.
+ * Each bit in the bitmap corresponds to a block, indicating whether it is allocated or free.
  *
- * The BitMap class provides two static methods:
- * - serializeBitmap(): Serializes the bitmap boolean array into a byte array of 512 bytes.
- * - deserializeBitmap(): Deserializes a byte array of 512 bytes into a bitmap boolean array.
+ * The bits are packed into an array of longs, 64 blocks per word, so that the allocator works a word at a time:
+ * - the number of free blocks is counted with Long.bitCount,
+ * - the next free or allocated block is found with Long.numberOfTrailingZeros,
+ * - a run of contiguous free blocks (an extent) can be found and allocated for a file, so that its blocks
+ *   can be read with one sequential read.
  *
- * The serialization process converts the boolean values of the bitmap into bits,
- * where each byte in the serialized array represents 8 blocks.
- * The bits are set using bitwise operations.
+ * The serialized bitmap is a byte array where each byte represents 8 blocks:
+ * block i is bit (i % 8) of byte (i / 8). This is the little-endian byte order of the words.
  *
- * The deserialization process reverses the serialization by extracting the bits from each byte
- * and reconstructing the boolean values of the bitmap.
+ * The static methods serializeBitmap() and deserializeBitmap() convert a boolean array representation
+ * of the bitmap to and from the same byte format.
  *
- * The size of the bitmap is fixed at 4096 elements, corresponding to the total number of blocks
- * in the database. The serialized byte array has a fixed size of 512 bytes.
+ * The size of the bitmap is the number of blocks of the database file, a multiple of 64.
+ * With the default geometry it has 4096 elements and the serialized byte array has 512 bytes.
  */
 public class BitMap {
+    private final int size;
+    private final long[] words;
+
+    /**
+     * Constructs an empty bitmap for BLOCK_CNT blocks.
+     */
+    public BitMap() {
+        this(BLOCK_CNT);
+    }
+
+    /**
+     * Constructs an empty bitmap for the specified number of blocks.
+     *
+     * @param size the number of blocks, a multiple of 64
+     */
+    public BitMap(int size) {
+        if (size <= 0 || size % Long.SIZE != 0) {
+            throw new IllegalArgumentException("Bitmap size must be a multiple of 64: " + size);
+        }
+        this.size = size;
+        this.words = new long[size / Long.SIZE];
+    }
+
+    /**
+     * Returns whether the specified block is allocated.
+     *
+     * @param i the block ID
+     * @return true if the block is allocated, false otherwise
+     */
+    public boolean get(int i) {
+        return (words[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * Marks the specified block as allocated.
+     *
+     * @param i the block ID
+     */
+    public void set(int i) {
+        words[i >>> 6] |= 1L << i;
+    }
+
+    /**
+     * Marks the blocks in the range [from, to) as allocated.
+     *
+     * @param from the first block ID
+     * @param to   the block ID after the last block
+     */
+    public void set(int from, int to) {
+        for (int i = from; i < to; i++) {
+            set(i);
+        }
+    }
+
+    /**
+     * Marks the specified block as free.
+     *
+     * @param i the block ID
+     */
+    public void clear(int i) {
+        words[i >>> 6] &= ~(1L << i);
+    }
+
+    /**
+     * Returns the number of blocks of the bitmap.
+     *
+     * @return the number of blocks
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Counts the free blocks in the range [from, to), a word at a time.
+     *
+     * @param from the first block ID
+     * @param to   the block ID after the last block
+     * @return the number of free blocks in the range
+     */
+    public int countClear(int from, int to) {
+        if (from >= to) {
+            return 0;
+        }
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        int allocated = 0;
+        for (int w = first; w <= last; w++) {
+            long word = words[w];
+            if (w == first) {
+                word &= -1L << from;
+            }
+            if (w == last) {
+                word &= -1L >>> (Long.SIZE - 1 - ((to - 1) & 63));
+            }
+            allocated += Long.bitCount(word);
+        }
+        return to - from - allocated;
+    }
+
+    /**
+     * Returns the first free block at or after the specified block.
+     *
+     * @param from the block ID to start from
+     * @return the ID of the first free block, or -1 if there is none
+     */
+    public int nextClearBit(int from) {
+        int w = from >>> 6;
+        if (w >= words.length) {
+            return -1;
+        }
+        long word = ~words[w] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return w * Long.SIZE + Long.numberOfTrailingZeros(word);
+            }
+            if (++w == words.length) {
+                return -1;
+            }
+            word = ~words[w];
+        }
+    }
+
+    /**
+     * Returns the first allocated block at or after the specified block.
+     *
+     * @param from the block ID to start from
+     * @return the ID of the first allocated block, or size() if there is none
+     */
+    public int nextSetBit(int from) {
+        int w = from >>> 6;
+        if (w >= words.length) {
+            return size;
+        }
+        long word = words[w] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return w * Long.SIZE + Long.numberOfTrailingZeros(word);
+            }
+            if (++w == words.length) {
+                return size;
+            }
+            word = words[w];
+        }
+    }
+
+    /**
+     * Finds the first run of num contiguous free blocks at or after the specified block (first fit).
+     * Free runs are found by jumping between free and allocated blocks with nextClearBit and nextSetBit,
+     * so allocated regions are skipped a word at a time.
+     *
+     * @param from the block ID to start from
+     * @param num  the number of blocks of the run
+     * @return the ID of the first block of the run, or -1 if there is no such run
+     */
+    public int findExtent(int from, int num) {
+        int start = nextClearBit(from);
+        while (start >= 0 && start + num <= size) {
+            int end = nextSetBit(start);
+            if (end - start >= num) {
+                return start;
+            }
+            start = nextClearBit(end);
+        }
+        return -1;
+    }
+
+    /**
+     * Serializes the bitmap into a byte array of size() / 8 bytes.
+     *
+     * @return the serialized byte array
+     */
+    public byte[] serialize() {
+        ByteBuffer buffer = ByteBuffer.allocate(size / 8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asLongBuffer().put(words);
+        return buffer.array();
+    }
+
+    /**
+     * Deserializes a byte array into a bitmap with 8 blocks per byte.
+     *
+     * @param bitmapBytes the serialized byte array
+     * @return the deserialized bitmap
+     */
+    public static BitMap deserialize(byte[] bitmapBytes) {
+        return deserialize(bitmapBytes, bitmapBytes.length * 8);
+    }
+
+    /**
+     * Deserializes the first size / 8 bytes of a byte array into a bitmap of the specified size.
+     *
+     * @param bitmapBytes the serialized byte array
+     * @param size        the number of blocks
+     * @return the deserialized bitmap
+     */
+    public static BitMap deserialize(byte[] bitmapBytes, int size) {
+        BitMap bitmap = new BitMap(size);
+        ByteBuffer.wrap(bitmapBytes, 0, size / 8).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(bitmap.words);
+        return bitmap;
+    }
+
     /**
      * Serializes the bitmap boolean array into a byte array of 512 bytes.
      *
@@ -1,46 +1,178 @@
 package com.neu.nosql;
 
+import com.neu.nosql.io.MovieWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import static com.neu.nosql.DB.BLOCK_HEADER_SIZE;
 import static com.neu.nosql.DB.BLOCK_SIZE;
 import static com.neu.nosql.DB.ENTRY_SIZE;
 
 /**
  * This class represents a block in the database.
  * A block is a fixed-size unit of storage that holds data entries.
- * The size of a block is determined by the BLOCK_SIZE constant.
+ * The size of a block is the block size of its database file, BLOCK_SIZE by default.
  *
  * The Block class provides methods for writing data to the block,
  * checking if the block is full, initializing the block with default values,
  * and retrieving the data entries stored in the block.
  *
- * The block is implemented as a byte array, where each byte represents a single unit of data.
+ * The block is backed by a ByteBuffer, which is either a heap buffer owned by the block
+ * or a slice of a memory-mapped database file. In the mapped case reads and writes go
+ * straight to the mapping, so only the pages that are actually touched get faulted in.
  * The class keeps track of the current write position within the block,
  * and provides methods to fill the remaining bytes with default values.
  *
+ * A data block is a slotted page. The format is as follows:
+ * - 1 byte: the magic number SLOTTED_MAGIC
+ * - 1 word: the number of slots, and 1 word: the offset of the first record (the end of the free space)
+ * - the slots, each with the offset of its record (0 for an empty slot) and the length of the record, 1 word each.
+ *   A word is 2 bytes, or 4 bytes in blocks larger than 32KB, and the high bit of the length marks an overflow record
+ * - the free space, followed by the records, written from the end of the block: the 4-byte ID and the value,
+ *   or the ID and the first block of the overflow chain of a value longer than maxValueLength()
+ * An overflow block holds OVERFLOW_MAGIC, the next block of the chain (-1 for the last one), the length of its part
+ * of the value and the part. Data blocks written by older versions hold fixed-size entries (see DataEntry)
+ * and are still read and changed.
+ *
  * The getDataEntries() method allows retrieving the valid data entries stored in the block,
  * skipping any default or empty entries.
  *
  * The getValidLength() method returns the valid length of the block,
  * excluding any trailing */
 public class Block {
-    public byte[] data = new byte[BLOCK_SIZE];
+    private final ByteBuffer buffer;
 
     private static final byte DEFAULT_VALUE = ' ';
+    private static final byte SLOTTED_MAGIC = (byte) 0xD5; // 旧版本的data block以空格开头
+    private static final byte OVERFLOW_MAGIC = (byte) 0xD6;
+    private static final int OVERFLOW_HEADER_SIZE = 9; // magic, 下一个block, 长度
 
     private int writePosition = 0;
 
+    private boolean dirty = false; // 是否有尚未flush到磁盘的修改
+
+    /**
+     * Constructs an empty block backed by a heap buffer of BLOCK_SIZE zero bytes.
+     */
+    public Block() {
+        this(BLOCK_SIZE);
+    }
+
+    /**
+     * Constructs an empty block backed by a heap buffer of the specified number of zero bytes.
+     *
+     * @param size the block size
+     */
+    public Block(int size) {
+        this(ByteBuffer.allocate(size));
+    }
+
+    /**
+     * Constructs a block on top of the given buffer, e.g. a slice of a mapped database file.
+     * The capacity of the buffer is the block size, which must be at least BLOCK_SIZE bytes.
+     *
+     * @param buffer the buffer backing this block
+     */
+    public Block(ByteBuffer buffer) {
+        if (buffer.capacity() < BLOCK_SIZE) {
+            throw new IllegalArgumentException("Invalid block size: " + buffer.capacity());
+        }
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns the size of the block in bytes.
+     *
+     * @return the block size
+     */
+    public int size() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Returns a copy of the bytes stored in the block.
+     *
+     * @return the block content
+     */
+    public byte[] getData() {
+        byte[] bytes = new byte[size()];
+        buffer.get(0, bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns a copy of a range of the bytes stored in the block.
+     *
+     * @param offset the offset of the range
+     * @param length the length of the range
+     * @return the bytes in the range
+     */
+    public byte[] read(int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return bytes;
+    }
+
+    /**
+     * Overwrites a range of the bytes stored in the block.
+     *
+     * @param offset the offset of the range
+     * @param bytes  the new bytes of the range
+     */
+    public void writeAt(int offset, byte[] bytes) {
+        buffer.put(offset, bytes);
+        dirty = true;
+    }
+
+    /**
+     * Overwrites the whole block with the given bytes.
+     *
+     * @param bytes the new block content, as long as the block
+     */
+    public void setData(byte[] bytes) {
+        buffer.put(0, bytes, 0, size());
+        dirty = true;
+    }
+
+    /**
+     * Resets the block to zero bytes, which is the state of a never written block.
+     */
+    public void clear() {
+        buffer.put(0, new byte[size()]);
+        writePosition = 0;
+        dirty = true;
+    }
+
+    /**
+     * Checks if the block has been modified since it was last flushed.
+     *
+     * @return true if the block is dirty, false otherwise
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Marks the block as flushed to disk.
+     */
+    public void markClean() {
+        dirty = false;
+    }
+
     /**
      * Fills the remaining bytes in the block with default values.
      * This method is used to ensure that the block is completely filled,
      * even if the actual data doesn't occupy the entire block.
      */
     public void fillUpWithDefaultBytes() {
-        for (int i = writePosition; i < BLOCK_SIZE; i++) {
-            data[i] = DEFAULT_VALUE;
+        for (int i = writePosition; i < size(); i++) {
+            buffer.put(i, DEFAULT_VALUE);
         }
+        dirty = true;
     }
 
     /**
@@ -50,10 +182,11 @@ public class Block {
      * and the write position is set to 36.
      */
     public void initializeDefaultBytes() {
-        for (int i = 0; i < 36; i++) {
-            data[i] = DEFAULT_VALUE;
+        for (int i = 0; i < BLOCK_HEADER_SIZE; i++) {
+            buffer.put(i, DEFAULT_VALUE);
         }
-        writePosition = 36;
+        writePosition = BLOCK_HEADER_SIZE;
+        dirty = true;
     }
 
     /**
@@ -67,58 +200,549 @@ public class Block {
      * @throws IllegalStateException if the block is full and cannot accommodate the data
      */
     public void write(byte[] data, int length) {
-        if (writePosition + ENTRY_SIZE > BLOCK_SIZE) {
+        if (writePosition + ENTRY_SIZE > size()) {
             throw new IllegalStateException("Block is full");
         }
 
-        System.arraycopy(data, 0, this.data, writePosition, length);
+        buffer.put(writePosition, data, 0, length);
         writePosition += length;
+        dirty = true;
     }
 
     /**
      * Checks if the block is full.
-     * A block is considered full if the write position has reached or exceeded the block size.
+     * A block is considered full if there is no room for another data entry after the write position.
      *
      * @return true if the block is full, false otherwise
      */
     public boolean isFull() {
-        return writePosition >= BLOCK_SIZE;
+        return writePosition + ENTRY_SIZE > size();
+    }
+
+
+    /**
+     * Formats the block as an empty slotted page.
+     */
+    public void format() {
+        buffer.put(0, new byte[size()]);
+        buffer.put(0, SLOTTED_MAGIC);
+        putWord(1, 0);
+        putWord(1 + word(), size());
+        writePosition = 0;
+        dirty = true;
+    }
+
+    /**
+     * Checks if the block is a slotted page. Data blocks written by older versions hold fixed-size entries instead.
+     *
+     * @return true if the block is a slotted page, false otherwise
+     */
+    public boolean isSlotted() {
+        return buffer.get(0) == SLOTTED_MAGIC;
     }
 
+    /**
+     * Checks if the block is a block of an overflow chain.
+     *
+     * @return true if the block holds a part of a large value, false otherwise
+     */
+    public boolean isOverflow() {
+        return buffer.get(0) == OVERFLOW_MAGIC;
+    }
+
+    /**
+     * Returns the number of slots of the block, empty or not. An overflow block has no slot.
+     *
+     * @return the number of slots
+     */
+    public int slotCount() {
+        if (isSlotted()) {
+            return getWord(1);
+        }
+        return isOverflow() ? 0 : (size() - BLOCK_HEADER_SIZE) / ENTRY_SIZE;
+    }
+
+    /**
+     * Checks if the specified slot holds a data entry.
+     *
+     * @param slot the slot
+     * @return true if the slot holds an entry, false if it is empty
+     */
+    public boolean hasEntry(int slot) {
+        if (isSlotted()) {
+            return getWord(slotPosition(slot)) != 0;
+        }
+        return !isEmptySlot(BLOCK_HEADER_SIZE + slot * ENTRY_SIZE);
+    }
 
     /**
-     * Retrieves the valid data entries stored in the block.
-     * This method iterates over the block, skipping the first 36 bytes of default values,
-     * and extracts the valid data entries.
-     * A data entry is considered valid if it is not entirely composed of default values.
+     * Returns the ID of the data entry in the specified slot.
+     *
+     * @param slot the slot, which must hold an entry
+     * @return the ID of the entry
+     */
+    public int idAt(int slot) {
+        return buffer.getInt(isSlotted() ? getWord(slotPosition(slot)) : BLOCK_HEADER_SIZE + slot * ENTRY_SIZE);
+    }
+
+    /**
+     * Returns the first block of the overflow chain of the data entry in the specified slot.
+     *
+     * @param slot the slot, which must hold an entry
+     * @return the ID of the first overflow block, or -1 if the value is stored in the block
+     */
+    public int overflowAt(int slot) {
+        if (!isSlotted() || (getWord(slotPosition(slot) + word()) & overflowBit()) == 0) {
+            return -1;
+        }
+        return buffer.getInt(getWord(slotPosition(slot)) + 4);
+    }
+
+    /**
+     * Returns the value of the data entry in the specified slot.
+     *
+     * @param slot the slot, which must hold an entry
+     * @return the value of the entry, or null if the value is stored in an overflow chain
+     */
+    public String valueAt(int slot) {
+        if (!isSlotted()) {
+            return DataEntry.deserialize(read(BLOCK_HEADER_SIZE + slot * ENTRY_SIZE, ENTRY_SIZE)).val;
+        }
+        if (overflowAt(slot) >= 0) {
+            return null;
+        }
+        int length = getWord(slotPosition(slot) + word());
+        return new String(read(getWord(slotPosition(slot)) + 4, length - 4));
+    }
+
+    /**
+     * Retrieves the valid data entries stored in the block, in the order of the slots.
+     * An entry whose value is stored in an overflow chain has a null value, which DB reads from the chain.
      *
      * @return a list of valid data entries stored in the block
      */
     public List<DataEntry> getDataEntries() {
         List<DataEntry> entries = new ArrayList<>();
-        int offset = 36; // 跳过前 36 个字节的默认值
-
-        while (offset + 44 <= data.length) {
-            byte[] entryData = Arrays.copyOfRange(data, offset, offset + 44);
-
-            // 检查 entryData 是否全为默认值 0
-            boolean isDefaultValue = true;
-            for (byte b : entryData) {
-                if (b != ' ') {
-                    isDefaultValue = false;
-                    break;
-                }
+        for (int slot = 0; slot < slotCount(); slot++) {
+            if (hasEntry(slot)) {
+                entries.add(new DataEntry(idAt(slot), valueAt(slot)));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Writes the data entry in the specified slot to a CSV output, straight from the bytes of the block.
+     * A value of a block written by an older version is trimmed, as DataEntry.deserialize() trims it.
+     *
+     * @param slot the slot, which must hold an entry
+     * @param out  the output
+     * @return true if the entry was written, false if its value is stored in an overflow chain
+     * @throws IOException if an I/O error occurs while writing the output
+     */
+    public boolean exportEntry(int slot, MovieWriter.Output out) throws IOException {
+        if (isSlotted()) {
+            if (overflowAt(slot) >= 0) {
+                return false;
             }
+            int offset = getWord(slotPosition(slot));
+            out.writeEntry(buffer.getInt(offset), buffer, offset + 4, getWord(slotPosition(slot) + word()) - 4);
+            return true;
+        }
+        int offset = BLOCK_HEADER_SIZE + slot * ENTRY_SIZE;
+        int start = offset + 4;
+        int end = offset + ENTRY_SIZE;
+        // 与DataEntry.deserialize()的trim()一致, 去掉两端不大于空格的字节
+        while (start < end && (buffer.get(start) & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (buffer.get(end - 1) & 0xFF) <= ' ') {
+            end--;
+        }
+        out.writeEntry(buffer.getInt(offset), buffer, start, end - start);
+        return true;
+    }
+
+    /**
+     * Returns the slot of the data entry with the specified ID.
+     *
+     * @param id the ID of the entry
+     * @return the slot of the entry, or -1 if the block doesn't hold it
+     */
+    public int slotOf(int id) {
+        return slotOf(id, 0);
+    }
 
-            if (!isDefaultValue) {
-                DataEntry entry = DataEntry.deserialize(entryData);
-                entries.add(entry);
+    /**
+     * Returns the slot of the data entry with the specified ID, searching from the specified slot first.
+     * When the entries are read in the order of the slots, the entry is usually the one in the first slot searched.
+     *
+     * @param id   the ID of the entry
+     * @param from the slot to start from
+     * @return the slot of the entry, or -1 if the block doesn't hold it
+     */
+    public int slotOf(int id, int from) {
+        int slots = slotCount();
+        for (int i = 0; i < slots; i++) {
+            int slot = (from + i) % slots;
+            if (hasEntry(slot) && idAt(slot) == id) {
+                return slot;
             }
+        }
+        return -1;
+    }
 
-            offset += 44; // 移动到下一个 data entry 的位置
+    /**
+     * Returns the IDs of the valid data entries stored in the block, in the order of the slots.
+     *
+     * @return the IDs
+     */
+    public int[] ids() {
+        int[] ids = new int[slotCount()];
+        int n = 0;
+        for (int slot = 0; slot < ids.length; slot++) {
+            if (hasEntry(slot)) {
+                ids[n++] = idAt(slot);
+            }
         }
+        return Arrays.copyOf(ids, n);
+    }
 
-        return entries;
+    /**
+     * Checks if a data entry with a value of the specified length can be added to the block.
+     * A value longer than maxValueLength() takes the room of a reference to its overflow chain.
+     * A block written by an older version only has room for a value that fits in its fixed-size entries,
+     * so that a new value is never truncated.
+     *
+     * @param length the length of the value in bytes
+     * @return true if the entry fits in the block, false otherwise
+     */
+    public boolean hasRoom(int length) {
+        if (!isSlotted()) {
+            return !isOverflow() && length <= ENTRY_SIZE - 4 && freeSlot() >= 0;
+        }
+        int slot = freeSlot();
+        return recordSize(length) + (slot < 0 ? 2 * word() : 0) <= freeSpace();
+    }
+
+    /**
+     * Checks if the value of the data entry in the specified slot can be replaced by a value of the specified length
+     * held by the block itself. In a block written by an older version a value is always replaced, truncated to 40 bytes.
+     *
+     * @param slot   the slot, which must hold an entry
+     * @param length the length of the new value in bytes
+     * @return true if set() would replace the value, false otherwise
+     */
+    public boolean hasRoom(int slot, int length) {
+        if (!isSlotted()) {
+            return true;
+        }
+        int old = getWord(slotPosition(slot) + word()) & ~overflowBit();
+        return length <= maxValueLength(size()) && 4 + length <= freeSpace() + old;
+    }
+
+    /**
+     * Adds a data entry to the first empty slot of the block, or to a new slot.
+     * The value must not be longer than maxValueLength(); a longer value is added with addOverflow().
+     *
+     * @param id    the ID of the entry
+     * @param value the value of the entry
+     * @return the slot of the entry, or -1 if the block has no room for it
+     */
+    public int add(int id, byte[] value) {
+        if (!isSlotted()) {
+            int slot = freeSlot();
+            if (slot >= 0) {
+                writeEntry(slot, DataEntry.serialize(new DataEntry(id, new String(value))));
+            }
+            return slot;
+        }
+        if (value.length > maxValueLength(size())) {
+            throw new IllegalArgumentException("Value is too long for a block: " + value.length + " bytes");
+        }
+        if (!hasRoom(value.length)) {
+            return -1;
+        }
+        int slot = freeSlot();
+        if (slot < 0) {
+            // 新的slot可能占用records前面的空间, 先把空间整理成连续的
+            slot = getWord(1);
+            if (getWord(1 + word()) - 4 - value.length < slotPosition(slot + 1)) {
+                compact();
+            }
+            putWord(1, slot + 1);
+            putWord(slotPosition(slot), 0);
+        }
+        putRecord(slot, id, value, 0);
+        return slot;
+    }
+
+    /**
+     * Adds a data entry whose value is stored in an overflow chain: the block only holds the ID and the first overflow block.
+     *
+     * @param id       the ID of the entry
+     * @param overflow the ID of the first block of the overflow chain
+     * @return the slot of the entry, or -1 if the block has no room for it
+     */
+    public int addOverflow(int id, int overflow) {
+        int slot = add(id, new byte[4]);
+        if (slot >= 0) {
+            setOverflow(slot, id, overflow);
+        }
+        return slot;
+    }
+
+    /**
+     * Replaces the value of the data entry in the specified slot.
+     *
+     * @param slot  the slot, which must hold an entry
+     * @param id    the ID of the entry
+     * @param value the new value, not longer than maxValueLength()
+     * @return true if the value was replaced, false if the block has no room for it, in which case the block is unchanged
+     */
+    public boolean set(int slot, int id, byte[] value) {
+        if (!isSlotted()) {
+            writeEntry(slot, DataEntry.serialize(new DataEntry(id, new String(value))));
+            return true;
+        }
+        int length = getWord(slotPosition(slot) + word()) & ~overflowBit();
+        if (4 + value.length > freeSpace() + length) {
+            return false;
+        }
+        putWord(slotPosition(slot), 0); // 先释放旧的record, 使compact()可以回收它的空间
+        putRecord(slot, id, value, 0);
+        return true;
+    }
+
+    /**
+     * Replaces the value of the data entry in the specified slot by a reference to an overflow chain.
+     *
+     * @param slot     the slot, which must hold an entry
+     * @param id       the ID of the entry
+     * @param overflow the ID of the first block of the overflow chain
+     * @return true if the value was replaced, false if the block has no room for the reference
+     */
+    public boolean setOverflow(int slot, int id, int overflow) {
+        if (!isSlotted()) {
+            return false;
+        }
+        ByteBuffer reference = ByteBuffer.allocate(4).putInt(0, overflow);
+        if (!set(slot, id, reference.array())) {
+            return false;
+        }
+        int position = slotPosition(slot) + word();
+        putWord(position, getWord(position) | overflowBit());
+        return true;
+    }
+
+    /**
+     * Removes the data entry in the specified slot. In a slotted page the slot becomes empty,
+     * and its record is reclaimed when the block runs out of contiguous free space.
+     *
+     * @param slot the slot
+     */
+    public void clearEntry(int slot) {
+        if (isSlotted()) {
+            putWord(slotPosition(slot), 0);
+            int n = getWord(1);
+            while (n > 0 && getWord(slotPosition(n - 1)) == 0) {
+                n--; // 去掉结尾的空slot
+            }
+            putWord(1, n);
+        } else {
+            for (int i = 0; i < ENTRY_SIZE; i++) {
+                buffer.put(BLOCK_HEADER_SIZE + slot * ENTRY_SIZE + i, DEFAULT_VALUE);
+            }
+        }
+        dirty = true;
+    }
+
+    /**
+     * Formats the block as a block of an overflow chain, holding a part of a large value.
+     *
+     * @param next   the ID of the next block of the chain, or -1 for the last block
+     * @param value  the value
+     * @param offset the offset of the part in the value
+     * @param length the length of the part, at most overflowCapacity()
+     */
+    public void formatOverflow(int next, byte[] value, int offset, int length) {
+        buffer.put(0, new byte[size()]);
+        buffer.put(0, OVERFLOW_MAGIC);
+        buffer.putInt(1, next);
+        buffer.putInt(5, length);
+        buffer.put(OVERFLOW_HEADER_SIZE, value, offset, length);
+        dirty = true;
+    }
+
+    /**
+     * Returns the next block of the overflow chain of an overflow block.
+     *
+     * @return the ID of the next block, or -1 if the block is the last one
+     */
+    public int overflowNext() {
+        return buffer.getInt(1);
+    }
+
+    /**
+     * Returns the part of a large value held by an overflow block.
+     *
+     * @return the bytes of the part
+     */
+    public byte[] overflowBytes() {
+        return read(OVERFLOW_HEADER_SIZE, buffer.getInt(5));
+    }
+
+    /**
+     * Returns the length of the longest value a slotted page of the given size holds itself.
+     * A longer value is stored in an overflow chain.
+     *
+     * @param blockSize the block size
+     * @return the length in bytes
+     */
+    public static int maxValueLength(int blockSize) {
+        int word = word(blockSize);
+        return blockSize - (1 + 2 * word) - 2 * word - 4;
+    }
+
+    /**
+     * Returns the number of bytes of a value an overflow block of the given size holds.
+     *
+     * @param blockSize the block size
+     * @return the number of bytes
+     */
+    public static int overflowCapacity(int blockSize) {
+        return blockSize - OVERFLOW_HEADER_SIZE;
+    }
+
+    /**
+     * Returns the first slot of the block that doesn't hold a data entry.
+     *
+     * @return the free slot, or -1 if there is no empty slot
+     */
+    private int freeSlot() {
+        for (int slot = 0; slot < slotCount(); slot++) {
+            if (!hasEntry(slot)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes a serialized fixed-size data entry into the specified slot of a block written by an older version.
+     */
+    private void writeEntry(int slot, byte[] entry) {
+        buffer.put(BLOCK_HEADER_SIZE + slot * ENTRY_SIZE, entry, 0, ENTRY_SIZE);
+        dirty = true;
+    }
+
+    /**
+     * Writes the record of an entry, the ID followed by the value, into a slot of a slotted page.
+     * The records are written from the end of the block towards the slots,
+     * and the block is compacted first if the free space is not contiguous.
+     */
+    private void putRecord(int slot, int id, byte[] value, int flags) {
+        int size = 4 + value.length;
+        int slotsEnd = slotPosition(getWord(1));
+        if (getWord(1 + word()) - size < slotsEnd) {
+            compact();
+        }
+        int offset = getWord(1 + word()) - size;
+        buffer.putInt(offset, id);
+        buffer.put(offset + 4, value);
+        putWord(1 + word(), offset);
+        putWord(slotPosition(slot), offset);
+        putWord(slotPosition(slot) + word(), size | flags);
+        dirty = true;
+    }
+
+    /**
+     * Moves the records of a slotted page to the end of the block, so that the free space between the slots
+     * and the records is contiguous. The records keep their slots, so the entries keep their slot numbers.
+     */
+    private void compact() {
+        byte[] records = new byte[size()];
+        int end = size();
+        for (int slot = 0; slot < getWord(1); slot++) {
+            int offset = getWord(slotPosition(slot));
+            if (offset != 0) {
+                int length = getWord(slotPosition(slot) + word()) & ~overflowBit();
+                end -= length;
+                buffer.get(offset, records, end, length);
+                putWord(slotPosition(slot), end);
+            }
+        }
+        buffer.put(end, records, end, size() - end);
+        putWord(1 + word(), end);
+    }
+
+    /**
+     * Returns the free space of a slotted page, including the space of the removed records.
+     */
+    private int freeSpace() {
+        int used = 0;
+        for (int slot = 0; slot < getWord(1); slot++) {
+            if (getWord(slotPosition(slot)) != 0) {
+                used += getWord(slotPosition(slot) + word()) & ~overflowBit();
+            }
+        }
+        return size() - slotPosition(getWord(1)) - used;
+    }
+
+    /**
+     * Returns the size of the record of a value, which is a reference to its overflow chain if the value is too long.
+     */
+    private int recordSize(int length) {
+        return 4 + (length > maxValueLength(size()) ? 4 : length);
+    }
+
+    /**
+     * Returns the position of a slot in a slotted page. A slot is the offset of its record and the length of the record.
+     */
+    private int slotPosition(int slot) {
+        return 1 + 2 * word() + slot * 2 * word();
+    }
+
+    /**
+     * Returns the size of the fields of the header and the slots, 2 bytes for blocks of up to 32K and 4 bytes otherwise.
+     */
+    private int word() {
+        return word(size());
+    }
+
+    private static int word(int blockSize) {
+        return blockSize <= 1 << 15 ? 2 : 4;
+    }
+
+    /**
+     * Returns the bit of the length of a slot that marks a record referencing an overflow chain.
+     */
+    private int overflowBit() {
+        return word() == 2 ? 0x8000 : 0x80000000;
+    }
+
+    private int getWord(int position) {
+        return word() == 2 ? buffer.getShort(position) & 0xFFFF : buffer.getInt(position);
+    }
+
+    private void putWord(int position, int value) {
+        if (word() == 2) {
+            buffer.putShort(position, (short) value);
+        } else {
+            buffer.putInt(position, value);
+        }
+    }
+
+    /**
+     * Checks if the entry at the specified offset is entirely composed of default values.
+     */
+    private boolean isEmptySlot(int offset) {
+        for (int i = 0; i < ENTRY_SIZE; i++) {
+            if (buffer.get(offset + i) != DEFAULT_VALUE) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -130,8 +754,8 @@ public class Block {
      * @return the valid length of the block
      */
     public int getValidLength() {
-        int length = this.data.length;
-        while (length > 0 && data[length - 1] == ' ') {
+        int length = size();
+        while (length > 0 && buffer.get(length - 1) == ' ') {
             length--;
         }
         return length;
@@ -0,0 +1,462 @@
+package com.neu.nosql;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+import static com.neu.nosql.DB.BLOCK_SIZE;
+
+/**
+ * This class represents the buffer pool shared by all database files of the process.
+ * It caches blocks keyed by (segment, blockId), where the segment is the path of a .dbN file,
+ * so that hot index and data blocks stay in memory across commands and database files.
+ *
+ * Each segment has its own block size, which is read from its metadata block when the segment is first used.
+ *
+ * The pool has a fixed memory budget in bytes. When it is full, a frame is evicted with the CLOCK algorithm:
+ * the clock hand sweeps over the frames, gives a second chance to recently referenced frames,
+ * and evicts the first frame that is neither referenced nor pinned. A dirty frame is written back
+ * to its database file before it is evicted.
+ *
+ * A block returned by pin() stays in the pool until it is released with unpin().
+ * Blocks with changes that are not in the write-ahead log yet are kept pinned by their database
+ * until the change commits, so the pool never writes uncommitted changes to a database file.
+ * The pool counts hits, misses and evictions.
+ */
+public class BufferPool {
+    public static final long DEFAULT_BUDGET = 4 * 1024 * 1024; // 4MB
+
+    private static BufferPool instance = new BufferPool(DEFAULT_BUDGET);
+
+    private final long budget;
+    private final Map<Key, Frame> frames = new HashMap<>();
+    private final ArrayList<Frame> clock = new ArrayList<>();
+    private final Map<String, FileChannel> channels = new HashMap<>();
+    private final Map<String, Integer> blockSizes = new HashMap<>(); // 每个segment的block大小
+    private int hand = 0;
+    private long used = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Constructs a buffer pool with the specified memory budget.
+     *
+     * @param budget the maximum number of bytes of cached blocks
+     */
+    public BufferPool(long budget) {
+        if (budget < BLOCK_SIZE) {
+            throw new IllegalArgumentException("Buffer pool budget is smaller than a block: " + budget);
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the buffer pool shared by the process.
+     *
+     * @return the shared buffer pool
+     */
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Replaces the shared buffer pool with a new one of the specified budget.
+     * The dirty blocks of the old pool are written back first.
+     *
+     * @param budget the maximum number of bytes of cached blocks
+     * @throws IOException if an I/O error occurs while writing back dirty blocks
+     */
+    public static synchronized void init(long budget) throws IOException {
+        instance.close();
+        instance = new BufferPool(budget);
+    }
+
+    /**
+     * Pins the block with the specified ID of the given segment.
+     * On a miss the block is read from the database file, evicting another block if the pool is full.
+     *
+     * @param segment the path of the database file
+     * @param blockId the block ID
+     * @return the pinned block
+     * @throws IOException if an I/O error occurs while reading or writing back a block
+     */
+    public synchronized Block pin(String segment, int blockId) throws IOException {
+        Key key = new Key(segment, blockId);
+        Frame frame = frames.get(key);
+        if (frame != null) {
+            hits++;
+        } else {
+            misses++;
+            int blockSize = blockSize(segment);
+            Block block = new Block(blockSize);
+            ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+            FileChannel channel = channel(segment);
+            long position = (long) blockId * blockSize;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position + buffer.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+            block.setData(buffer.array());
+            block.markClean();
+            frame = admit(key, block);
+        }
+        frame.pinCount++;
+        frame.referenced = true;
+        return frame.block;
+    }
+
+    /**
+     * Pins a run of contiguous blocks of the given segment.
+     * If any block of the run is missing, the whole run is read with one sequential read,
+     * and the missing blocks are admitted from it; blocks that are already cached are kept as they are.
+     *
+     * @param segment the path of the database file
+     * @param first   the ID of the first block
+     * @param count   the number of blocks
+     * @return the pinned blocks, in order
+     * @throws IOException if an I/O error occurs while reading or writing back a block
+     */
+    public synchronized Block[] pinRun(String segment, int first, int count) throws IOException {
+        Block[] run = new Block[count];
+        int blockSize = blockSize(segment);
+        ByteBuffer buffer = null;
+        for (int i = 0; i < count; i++) {
+            Key key = new Key(segment, first + i);
+            Frame frame = frames.get(key);
+            if (frame != null) {
+                hits++;
+            } else {
+                misses++;
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocate(count * blockSize);
+                    FileChannel channel = channel(segment);
+                    long position = (long) first * blockSize;
+                    while (buffer.hasRemaining()) {
+                        int n = channel.read(buffer, position + buffer.position());
+                        if (n < 0) {
+                            break;
+                        }
+                    }
+                }
+                Block block = new Block(blockSize);
+                block.setData(Arrays.copyOfRange(buffer.array(), i * blockSize, (i + 1) * blockSize));
+                block.markClean();
+                frame = admit(key, block);
+            }
+            frame.pinCount++;
+            frame.referenced = true;
+            run[i] = frame.block;
+        }
+        return run;
+    }
+
+    /**
+     * Releases a block pinned by pin(). The block may be evicted once it is no longer pinned.
+     *
+     * @param segment the path of the database file
+     * @param blockId the block ID
+     */
+    public synchronized void unpin(String segment, int blockId) {
+        Frame frame = frames.get(new Key(segment, blockId));
+        if (frame == null || frame.pinCount == 0) {
+            throw new IllegalStateException("Block " + blockId + " of " + segment + " is not pinned");
+        }
+        frame.pinCount--;
+    }
+
+    /**
+     * Writes the dirty blocks of the given segment back to its database file, and forces the file to disk,
+     * together with the blocks written back by earlier evictions.
+     * Runs of adjacent dirty blocks are written with a single call.
+     * A block is marked clean only once it is written, so the blocks of a failed flush are written again by the next one.
+     *
+     * @param segment the path of the database file
+     * @return the number of bytes written
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized long flush(String segment) throws IOException {
+        ArrayList<Frame> dirty = new ArrayList<>();
+        for (Frame frame : clock) {
+            if (frame.key.segment.equals(segment) && frame.block.isDirty()) {
+                dirty.add(frame);
+            }
+        }
+        dirty.sort((a, b) -> Integer.compare(a.key.blockId, b.key.blockId));
+
+        int blockSize = blockSize(segment);
+        long written = 0;
+        int i = 0;
+        while (i < dirty.size()) {
+            int end = i + 1;
+            while (end < dirty.size() && dirty.get(end).key.blockId == dirty.get(end - 1).key.blockId + 1) {
+                end++;
+            }
+            ByteBuffer run = ByteBuffer.allocate((end - i) * blockSize);
+            for (int j = i; j < end; j++) {
+                run.put(dirty.get(j).block.getData());
+            }
+            run.flip();
+            written += write(channel(segment), run, (long) dirty.get(i).key.blockId * blockSize);
+            for (int j = i; j < end; j++) {
+                dirty.get(j).block.markClean();
+            }
+            i = end;
+        }
+        if (channels.containsKey(segment)) {
+            channels.get(segment).force(false);
+        }
+        return written;
+    }
+
+    /**
+     * Drops all blocks of the given segment without writing them back, and closes its file.
+     * This is used when the database file is deleted.
+     *
+     * @param segment the path of the database file
+     * @throws IOException if an I/O error occurs while closing the file
+     */
+    public synchronized void drop(String segment) throws IOException {
+        Iterator<Frame> it = clock.iterator();
+        while (it.hasNext()) {
+            Frame frame = it.next();
+            if (frame.key.segment.equals(segment)) {
+                frames.remove(frame.key);
+                used -= frame.block.size();
+                it.remove();
+            }
+        }
+        hand = 0;
+        blockSizes.remove(segment);
+        FileChannel channel = channels.remove(segment);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes back all dirty blocks and closes the files of the pool.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void close() throws IOException {
+        for (String segment : new ArrayList<>(channels.keySet())) {
+            flush(segment);
+            channels.remove(segment).close();
+        }
+        frames.clear();
+        clock.clear();
+        blockSizes.clear();
+        used = 0;
+        hand = 0;
+    }
+
+    /**
+     * Returns the number of pin requests served from the pool.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of pin requests that had to read the block from disk.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of blocks evicted from the pool.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of bytes of blocks currently cached in the pool.
+     *
+     * @return the number of cached bytes
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Adds a block to the pool. While the pool is over its budget, victims are chosen with
+     * the CLOCK algorithm and evicted. If every block is pinned, the pool temporarily grows
+     * beyond its budget and shrinks back as blocks are unpinned and evicted.
+     *
+     * @param key   the key of the block
+     * @param block the block
+     * @return the frame holding the block
+     * @throws IOException if an I/O error occurs while writing back an evicted block
+     */
+    private Frame admit(Key key, Block block) throws IOException {
+        Frame frame = new Frame(key, block);
+        while (used + block.size() > budget) {
+            int slot = nextVictim();
+            if (slot < 0) {
+                break;
+            }
+            Frame victim = clock.get(slot);
+            if (victim.block.isDirty()) {
+                write(channel(victim.key.segment), ByteBuffer.wrap(victim.block.getData()),
+                        (long) victim.key.blockId * victim.block.size());
+                victim.block.markClean();
+            }
+            frames.remove(victim.key);
+            used -= victim.block.size();
+            evictions++;
+            // Move the last frame into the free slot
+            Frame last = clock.remove(clock.size() - 1);
+            if (slot < clock.size()) {
+                clock.set(slot, last);
+            }
+            if (hand >= clock.size()) {
+                hand = 0;
+            }
+        }
+        clock.add(frame);
+        frames.put(key, frame);
+        used += block.size();
+        return frame;
+    }
+
+    /**
+     * Advances the clock hand to the next frame that can be evicted.
+     * Referenced frames get a second chance, pinned frames are skipped.
+     *
+     * @return the slot of the frame to be evicted, or -1 if all frames are pinned
+     */
+    private int nextVictim() {
+        for (int step = 0; step < 2 * clock.size(); step++) {
+            int slot = hand;
+            Frame frame = clock.get(slot);
+            hand = (hand + 1) % clock.size();
+            if (frame.pinCount > 0) {
+                continue;
+            }
+            if (frame.referenced) {
+                frame.referenced = false;
+                continue;
+            }
+            return slot;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the open channel of the given segment, opening the database file on first use.
+     *
+     * @param segment the path of the database file
+     * @return the file channel
+     * @throws IOException if the file cannot be opened
+     */
+    private FileChannel channel(String segment) throws IOException {
+        FileChannel channel = channels.get(segment);
+        if (channel == null) {
+            channel = FileChannel.open(Paths.get(segment), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channels.put(segment, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Returns the block size of the given segment, reading it from the metadata block on first use.
+     *
+     * @param segment the path of the database file
+     * @return the block size in bytes
+     * @throws IOException if the metadata block cannot be read
+     */
+    private int blockSize(String segment) throws IOException {
+        Integer blockSize = blockSizes.get(segment);
+        if (blockSize == null) {
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            FileChannel channel = channel(segment);
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            }
+            blockSize = Metadata.deserialize(buffer.array()).blockSize;
+            blockSizes.put(segment, blockSize);
+        }
+        return blockSize;
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer at the specified position of the file.
+     *
+     * @param channel  the file channel
+     * @param buffer   the bytes to be written
+     * @param position the position in the file
+     * @return the number of bytes written
+     * @throws IOException if an I/O error occurs
+     */
+    private static long write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    /**
+     * The key of a cached block: the database file and the block ID within it.
+     */
+    private static final class Key {
+        final String segment;
+        final int blockId;
+
+        Key(String segment, int blockId) {
+            this.segment = segment;
+            this.blockId = blockId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return blockId == key.blockId && segment.equals(key.segment);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(segment, blockId);
+        }
+    }
+
+    /**
+     * A slot of the pool holding one block, its pin count and its CLOCK reference bit.
+     */
+    private static final class Frame {
+        final Key key;
+        final Block block;
+        int pinCount = 0;
+        boolean referenced = false;
+
+        Frame(Key key, Block block) {
+            this.key = key;
+            this.block = block;
+        }
+    }
+}
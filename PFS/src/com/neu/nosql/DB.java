@@ -1,257 +1,1797 @@
 package com.neu.nosql;
 
+import com.neu.nosql.index.BPlusTree;
 import com.neu.nosql.index.BTree;
 import com.neu.nosql.index.BTreeNode;
+import com.neu.nosql.index.BTreePage;
 import com.neu.nosql.index.BTreeSerializer;
+import com.neu.nosql.index.BloomFilter;
+import com.neu.nosql.index.DiskBPlusTree;
+import com.neu.nosql.index.DiskBTree;
+import com.neu.nosql.index.DiskHash;
+import com.neu.nosql.index.DiskIndex;
+import com.neu.nosql.index.DiskPackedBPlusTree;
+import com.neu.nosql.index.ExtendibleHash;
+import com.neu.nosql.index.InvertedIndex;
+import com.neu.nosql.index.PackedPage;
+import com.neu.nosql.index.PageStore;
+import com.neu.nosql.index.WritableIndex;
+import com.neu.nosql.index.WritablePageStore;
 import com.neu.nosql.io.MovieReader;
 import com.neu.nosql.io.MovieWriter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 
 import static com.neu.nosql.Utils.isMatchingFile;
 
 /**
  * This class represents a database.
  * It manages the blocks, metadata, bitmap, and file control blocks (FCBs) of the database.
+ * Blocks are accessed through the shared BufferPool, or through the mapping in mmap mode,
+ * and have to be released with unpin() after use.
+ * Changes made by put and remove, and by insert, update and delete of single entries, are committed
+ * to the write-ahead log of the database; the database file itself is updated lazily by checkpoints, which call flush().
  * It provides methods to open, create, and manipulate the database, including putting, getting,
- * removing, and finding files within the database.
+ * removing, and finding files within the database, and changing the entries of a file in place.
  */
 public class DB {
-    public ArrayList<Block> blocks = new ArrayList<>(BLOCK_CNT);
+    public ArrayList<Block> blocks = new ArrayList<>(); // mmap模式下已经访问过的block
     public Metadata metadata = null;
-    public final boolean[] bitmap = new boolean[BLOCK_CNT];
+    public BitMap bitmap = new BitMap();
     public ArrayList<FCB> fcbs = new ArrayList<>(FCB_SIZE);
+    private String path = null; // db file的路径，也是该db file在buffer pool中的key
+    private MappedByteBuffer mapped = null; // 非空时表示该db file通过mmap访问
+    private boolean metadataDirty = false;
+    private boolean bitmapDirty = false;
+    private long lastFlushBytes = 0; // 最近一次flush写入的字节数
+    private int lastCommitBlocks = 0; // 最近一次提交写入WAL的block个数
+    private final LinkedHashMap<Integer, Block> writeSet = new LinkedHashMap<>(); // 当前操作修改过、尚未提交到WAL的block
+    private final BloomFilter[] filters = new BloomFilter[FCB_SIZE]; // 每个FCB的文件已读入内存的Bloom filter
 
-    public static final int BLOCK_CNT = 4096; // 一个db file有4096个block
+    public static final int BLOCK_CNT = 4096; // 默认一个db file有4096个block
     public static final int METADATA_BLOCK_CNT = 1; // 1个block存储medata
-    public static final int BITMAP_BLOCK_CNT = 2; // 2个block存储medata
+    public static final int BITMAP_BLOCK_CNT = 2; // 默认2个block存储bitmap
     public static final int METADATA_DB_NAME_LEN = 128; // db_name在metadata序列化时最多占用128 bytes
-    public static final int BLOCK_SIZE = 256; // 一个block占用256 bytes
+    public static final int BLOCK_SIZE = 256; // 默认一个block占用256 bytes，也是最小的block大小
     public static final int FCB_SIZE = 8; // 一个db文件最多8个fcb
-    public static final int BLOCK_ENTRY_NUM = 5; // 一个block能放5个data entry
+    public static final int BLOCK_ENTRY_NUM = 5; // 默认一个block能放5个data entry
     public static final int ENTRY_SIZE = 44;
-    private static final int FILE_SIZE = 1024 * 1024; // 1MB
+    public static final int HEADER_BLOCK_CNT = METADATA_BLOCK_CNT + BITMAP_BLOCK_CNT + FCB_SIZE; // 默认前11个block存储metadata, bitmap和fcb
+    public static final int BLOCK_HEADER_SIZE = 36; // data block开头的36 bytes为填充
+    private static final String FILE_DIR = "./src/com/neu/nosql/file/";
+
+    private static boolean mmapMode = false;
+    private static double indexFillFactor = BPlusTree.DEFAULT_FILL_FACTOR; // put建索引时节点的填充率
+    private static int ingestBufferSize = MovieReader.DEFAULT_BUFFER_SIZE; // put读CSV的缓冲区大小(字符)
+    private static int ingestParallelism = 1; // put解析CSV的线程数, 1表示边读边写
+    private static final Map<String, TreeMap<Integer, DB>> registry = new HashMap<>(); // 每个数据库已打开的db file, 按suffix排序
+    private static final Map<String, Manifest> manifests = new HashMap<>(); // 每个数据库的manifest
+    private static long totalFlushBytes = 0; // 进程内所有flush写入的字节数
+    private static long filterSkips = 0; // 被Bloom filter直接判定为不存在的find次数
+
+    /**
+     * Enables or disables memory-mapped access for database files opened afterwards.
+     * In mmap mode a database file is mapped with FileChannel.map instead of being read as a whole,
+     * and blocks are read from the mapped buffer directly. A block changed by an operation is a copy on the heap
+     * until the operation commits, since the OS may write any page of the mapping to the file.
+     *
+     * Switching the mode checkpoints and closes all open database files, so they are reopened in the new mode.
+     *
+     * @param enabled true to map database files, false to load them onto the heap
+     * @throws IOException if an I/O error occurs while closing the open database files
+     */
+    public static synchronized void setMmapMode(boolean enabled) throws IOException {
+        if (mmapMode != enabled) {
+            WriteAheadLog.checkpointAll();
+            BufferPool.getInstance().close();
+            registry.clear();
+        }
+        mmapMode = enabled;
+    }
+
+    /**
+     * Sets the fill factor of the indexes built by put afterwards.
+     * With a fill factor of 1 the index nodes are fully packed, which gives the smallest index;
+     * a lower fill factor leaves room in every node.
+     *
+     * @param fillFactor the fraction of an index node to fill, from 0.5 to 1
+     */
+    public static synchronized void setIndexFillFactor(double fillFactor) {
+        if (!(fillFactor >= 0.5 && fillFactor <= 1)) {
+            throw new IllegalArgumentException("Fill factor must be between 0.5 and 1: " + fillFactor);
+        }
+        indexFillFactor = fillFactor;
+    }
+
+    /**
+     * Sets the size of the buffer put reads CSV files with afterwards.
+     * The rows are packed into data blocks as they are read, so apart from the keys and block IDs kept for the index,
+     * this buffer is all the memory an ingest takes, whatever the size of the file.
+     *
+     * @param bufferSize the size of the read buffer in characters, at least 1
+     */
+    public static synchronized void setIngestBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be at least 1: " + bufferSize);
+        }
+        ingestBufferSize = bufferSize;
+    }
+
+    /**
+     * Sets the number of threads put parses CSV files with afterwards.
+     * With more than one thread, the file is split into chunks that are parsed in parallel (see MovieReader.readMoviesParallel)
+     * and the rows are packed into the data blocks in key order. The whole file is parsed before the rows are packed,
+     * so the memory used is no longer bounded by the read buffer.
+     *
+     * @param parallelism the number of threads, 1 to stream the file from one thread
+     */
+    public static synchronized void setIngestParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        ingestParallelism = parallelism;
+    }
+
+    /**
+     * Opens an existing database with the specified name.
+     *
+     * @param dbName the name of the database
+     * @return the opened database
+     * @throws Exception if an error occurs while opening the database
+     */
+    public static DB open(String dbName) throws Exception {
+        return open(dbName, 0);
+    }
+
+    /**
+     * Opens an existing database with the specified name, or creates it with the specified geometry.
+     * The geometry of an existing database is recorded in its metadata and can't be changed,
+     * so the block size and block count are ignored if the database already exists.
+     *
+     * @param dbName     the name of the database
+     * @param blockSize  the size of a block in bytes, a power of two of at least BLOCK_SIZE
+     * @param blockCount the number of blocks of each database file, a multiple of 64
+     * @return the opened database
+     * @throws Exception if an error occurs while opening the database
+     */
+    public static synchronized DB open(String dbName, int blockSize, int blockCount) throws Exception {
+        Metadata.validateGeometry(blockSize, blockCount);
+        return open(dbName, 0, blockSize, blockCount);
+    }
+
+    /**
+     * Opens an existing database with the specified name and suffix.
+     * If the database file does not exist, a new database is created.
+     * A new .db0 file gets the default geometry; further database files get the geometry of .db0.
+     * Opened database files are kept in a registry per database name, so opening the same file
+     * again is an in-memory lookup.
+     *
+     * @param dbName the name of the database
+     * @param suffix the suffix of the database file
+     * @return the opened or created database
+     * @throws Exception if an error occurs while opening or creating the database
+     */
+    public static synchronized DB open(String dbName, int suffix) throws Exception {
+        if (suffix == 0) {
+            return open(dbName, 0, BLOCK_SIZE, BLOCK_CNT);
+        }
+        Metadata first = open(dbName, 0).metadata;
+        return open(dbName, suffix, first.blockSize, first.blockCount);
+    }
+
+    /**
+     * Opens the database file with the specified name and suffix, creating it with the specified geometry
+     * if it does not exist.
+     *
+     * @param dbName     the name of the database
+     * @param suffix     the suffix of the database file
+     * @param blockSize  the block size of a new database file
+     * @param blockCount the number of blocks of a new database file
+     * @return the opened or created database
+     * @throws Exception if an error occurs while opening or creating the database
+     */
+    private static synchronized DB open(String dbName, int suffix, int blockSize, int blockCount) throws Exception {
+        Manifest manifest = manifest(dbName);
+        TreeMap<Integer, DB> segments = registry.computeIfAbsent(dbName, k -> new TreeMap<>());
+        DB db = segments.get(suffix);
+        if (db == null) {
+            String dbPath = segmentPath(dbName, suffix);
+            if (Files.exists(Paths.get(dbPath))) {
+                db = load(dbPath);
+            } else {
+                db = newDB(dbName, suffix, blockSize, blockCount);
+                manifest.addSegment(suffix);
+            }
+            segments.put(suffix, db);
+        }
+        return db;
+    }
+
+    /**
+     * Returns the manifest of the specified database.
+     * On first use the write-ahead log of the database is replayed and the manifest is loaded.
+     * If the database has no manifest yet, or the log replayed changes the manifest may have missed,
+     * the manifest is rebuilt from the FCBs of the database files.
+     *
+     * @param dbName the name of the database
+     * @return the manifest of the database
+     * @throws Exception if an error occurs while loading or rebuilding the manifest
+     */
+    private static synchronized Manifest manifest(String dbName) throws Exception {
+        Manifest manifest = manifests.get(dbName);
+        if (manifest == null) {
+            WriteAheadLog log = WriteAheadLog.forDatabase(dbName);
+            manifest = Manifest.load(dbName);
+            if (manifest == null || log.getRecoveredCount() > 0) {
+                manifest = rebuildManifest(dbName);
+            }
+            manifests.put(dbName, manifest);
+        }
+        return manifest;
+    }
+
+    /**
+     * Rebuilds the manifest of the specified database from the FCBs of its database files, and saves it.
+     * The opened database files are kept in the registry.
+     *
+     * @param dbName the name of the database
+     * @return the rebuilt manifest
+     * @throws Exception if an error occurs while reading the database files
+     */
+    private static Manifest rebuildManifest(String dbName) throws Exception {
+        Manifest manifest = new Manifest(dbName);
+        TreeMap<Integer, DB> segments = registry.computeIfAbsent(dbName, k -> new TreeMap<>());
+        for (int i = 0; Files.exists(Paths.get(segmentPath(dbName, i))); i++) {
+            DB db = segments.get(i);
+            if (db == null) {
+                db = load(segmentPath(dbName, i));
+                segments.put(i, db);
+            }
+            manifest.recordSegment(i);
+            for (int slot = 0; slot < FCB_SIZE; slot++) {
+                FCB fcb = db.fcbs.get(slot);
+                if (fcb.name.isEmpty()) {
+                    continue;
+                }
+                int recordCount = 0;
+                for (int blockID : fcb.dataBlocks) {
+                    recordCount += db.pin(blockID).ids().length;
+                    db.unpin(blockID);
+                }
+                manifest.record(new Manifest.Entry(fcb.name, fcb.type, i, slot, recordCount,
+                        fcb.indexBlocks.size(), fcb.dataBlocks.size()));
+            }
+        }
+        manifest.save();
+        return manifest;
+    }
+
+    /**
+     * Loads an existing database file.
+     *
+     * @param dbPath the path of the database file
+     * @return the loaded database
+     * @throws Exception if an error occurs while reading the database file
+     */
+    private static DB load(String dbPath) throws Exception {
+        if (mmapMode) {
+            return openMapped(dbPath);
+        }
+
+        DB db = new DB();
+        db.path = dbPath;
+
+        // Only the header blocks are read here, the other blocks are read on demand through the buffer pool
+        try (FileChannel channel = FileChannel.open(Paths.get(dbPath), StandardOpenOption.READ)) {
+            Metadata metadata = readMetadata(channel);
+            ByteBuffer header = ByteBuffer.allocate(metadata.headerBlockCount() * metadata.blockSize);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            }
+            db.loadHeader(header.array());
+        }
+        return db;
+    }
+
+    /**
+     * Reads the metadata block of a database file, which holds the geometry needed to read the other blocks.
+     *
+     * @param channel the channel of the database file
+     * @return the metadata of the database file
+     * @throws IOException if an I/O error occurs while reading the metadata
+     */
+    private static Metadata readMetadata(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+        }
+        return Metadata.deserialize(buffer.array());
+    }
+
+    /**
+     * Returns the path of the database file with the specified name and suffix.
+     *
+     * @param dbName the name of the database
+     * @param suffix the suffix of the database file
+     * @return the path of the database file
+     */
+    private static String segmentPath(String dbName, int suffix) {
+        return FILE_DIR + dbName + ".db" + suffix;
+    }
+
+    /**
+     * Opens an existing database file by mapping it into memory.
+     * Only the metadata, bitmap and FCB blocks are decoded here; the remaining blocks are
+     * created lazily on first access, so opening a file doesn't read its data.
+     *
+     * @param dbPath the path of the database file
+     * @return the opened database
+     * @throws Exception if an error occurs while mapping the database file
+     */
+    private static DB openMapped(String dbPath) throws Exception {
+        DB db = new DB();
+        db.path = dbPath;
+        Metadata metadata;
+        try (FileChannel channel = FileChannel.open(Paths.get(dbPath), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            metadata = readMetadata(channel);
+            db.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, metadata.fileSize());
+        }
+        for (int i = 0; i < metadata.blockCount; i++) {
+            db.blocks.add(null);
+        }
+
+        byte[] header = new byte[metadata.headerBlockCount() * metadata.blockSize];
+        db.mapped.get(0, header);
+        db.loadHeader(header);
+        return db;
+    }
+
+    /**
+     * Decodes the metadata, bitmap and FCBs from the header blocks of the database file.
+     *
+     * @param header the bytes of the header blocks
+     * @throws Exception if an error occurs while decoding the header blocks
+     */
+    private void loadHeader(byte[] header) throws Exception {
+        // Initialize metadata
+        this.metadata = Metadata.deserialize(Arrays.copyOfRange(header, 0, BLOCK_SIZE));
+        int blockSize = this.metadata.blockSize;
+
+        // Initialize bitmap
+        int from = METADATA_BLOCK_CNT * blockSize;
+        byte[] bitmapBytes = Arrays.copyOfRange(header, from, from + this.metadata.bitmapBlockCount() * blockSize);
+        this.bitmap = BitMap.deserialize(bitmapBytes, this.metadata.blockCount);
+
+        // Initialize FCBs
+        for (int i = 0; i < FCB_SIZE; i++) {
+            from = fcbBlock(i) * blockSize;
+            this.fcbs.add(FCB.deserialize(Arrays.copyOfRange(header, from, from + blockSize)));
+        }
+    }
+
+    /**
+     * Returns the ID of the block that stores the FCB with the specified index.
+     * The FCB blocks follow the metadata and bitmap blocks, and their bits in the bitmap
+     * mark which FCBs are in use.
+     *
+     * @param i the index of the FCB
+     * @return the block ID of the FCB
+     */
+    private int fcbBlock(int i) {
+        return METADATA_BLOCK_CNT + this.metadata.bitmapBlockCount() + i;
+    }
+
+    /**
+     * Pins the block with the specified ID, so that it stays in memory until it is unpinned.
+     * Blocks are cached in the shared buffer pool; for a mapped database file the block
+     * is created on first access as a view of the mapping, unless the current operation changed it.
+     *
+     * @param id the block ID
+     * @return the block
+     * @throws IOException if an I/O error occurs while reading the block
+     */
+    public Block pin(int id) throws IOException {
+        if (this.mapped == null) {
+            return BufferPool.getInstance().pin(this.path, id);
+        }
+        Block changed = this.writeSet.get(id);
+        return changed != null ? changed : mappedBlock(id);
+    }
+
+    /**
+     * Returns the view of the mapping of the block with the specified ID, created on first access.
+     *
+     * @param id the block ID
+     * @return the block
+     */
+    private Block mappedBlock(int id) {
+        Block block = this.blocks.get(id);
+        if (block == null) {
+            int blockSize = this.metadata.blockSize;
+            block = new Block(this.mapped.slice(id * blockSize, blockSize));
+            this.blocks.set(id, block);
+        }
+        return block;
+    }
+
+    /**
+     * Pins the block with the specified ID for modification by the current operation.
+     * The block stays pinned until the operation commits, so the buffer pool cannot write
+     * the uncommitted change to the database file; it must not be released with unpin().
+     * For a mapped database file the block is a copy of the mapping on the heap, which is copied back by commit.
+     *
+     * @param id the block ID
+     * @return the block
+     * @throws IOException if an I/O error occurs while reading the block
+     */
+    public Block pinForWrite(int id) throws IOException {
+        Block block = this.writeSet.get(id);
+        if (block == null) {
+            block = pin(id);
+            if (this.mapped != null) {
+                block = new Block(ByteBuffer.wrap(block.getData()));
+            }
+            this.writeSet.put(id, block);
+        }
+        return block;
+    }
+
+    /**
+     * Releases a block pinned by pin().
+     *
+     * @param id the block ID
+     */
+    public void unpin(int id) {
+        if (this.mapped == null) {
+            BufferPool.getInstance().unpin(this.path, id);
+        }
+    }
+
+    /**
+     * Pins a run of contiguous blocks, reading the blocks that are not cached with one sequential read.
+     * The blocks have to be released with unpinRun().
+     *
+     * @param first the ID of the first block
+     * @param count the number of blocks
+     * @return the blocks, in order
+     * @throws IOException if an I/O error occurs while reading the blocks
+     */
+    public Block[] pinRun(int first, int count) throws IOException {
+        if (this.mapped == null) {
+            return BufferPool.getInstance().pinRun(this.path, first, count);
+        }
+        Block[] run = new Block[count];
+        for (int i = 0; i < count; i++) {
+            run[i] = pin(first + i);
+        }
+        return run;
+    }
+
+    /**
+     * Releases a run of blocks pinned by pinRun().
+     *
+     * @param first the ID of the first block
+     * @param count the number of blocks
+     */
+    public void unpinRun(int first, int count) {
+        for (int i = 0; i < count; i++) {
+            unpin(first + i);
+        }
+    }
+
+    /**
+     * Splits a list of block IDs into runs of contiguous blocks.
+     *
+     * @param blockIDs the block IDs
+     * @return the runs, each as {first block ID, number of blocks}
+     */
+    private static List<int[]> runs(List<Integer> blockIDs) {
+        List<int[]> runs = new ArrayList<>();
+        int i = 0;
+        while (i < blockIDs.size()) {
+            int end = i + 1;
+            while (end < blockIDs.size() && blockIDs.get(end) == blockIDs.get(end - 1) + 1) {
+                end++;
+            }
+            runs.add(new int[]{blockIDs.get(i), end - i});
+            i = end;
+        }
+        return runs;
+    }
+
+    /**
+     * Commits the changes of the current operation to the write-ahead log.
+     * The images of the changed header blocks and of the blocks pinned for write are appended
+     * to the log in one transaction, which is durable when this method returns.
+     * The blocks are released afterwards and stay dirty until the next checkpoint.
+     * The changed blocks of a mapped database file are copied into the mapping only once the transaction is durable.
+     *
+     * @throws IOException if an I/O error occurs while writing the log
+     */
+    private void commit() throws IOException {
+        commit(this);
+    }
+
+    /**
+     * Commits the changes of the current operation on this database file and on another database file
+     * of the same database in one transaction, so that after a crash either both are replayed or neither is.
+     *
+     * @param other the other database file changed by the operation, or this database file
+     * @throws IOException if an I/O error occurs while writing the log
+     */
+    private void commit(DB other) throws IOException {
+        List<WriteAheadLog.Record> records = logRecords();
+        List<DB> segments = new ArrayList<>();
+        segments.add(this);
+        if (other != this) {
+            records.addAll(other.logRecords());
+            segments.add(other);
+        }
+        this.lastCommitBlocks = records.size();
+        if (!records.isEmpty()) {
+            WriteAheadLog.forDatabase(this.metadata.dbName).commit(segments, records);
+        }
+        for (DB db : segments) {
+            for (Map.Entry<Integer, Block> entry : db.writeSet.entrySet()) {
+                if (db.mapped != null) {
+                    db.mappedBlock(entry.getKey()).setData(entry.getValue().getData());
+                }
+                db.unpin(entry.getKey());
+            }
+            db.writeSet.clear();
+        }
+    }
+
+    /**
+     * Returns the log records of the changes of the current operation: the images of the changed header blocks
+     * and of the blocks pinned for write.
+     *
+     * @return the log records
+     * @throws IOException if an FCB can't be serialized
+     */
+    private List<WriteAheadLog.Record> logRecords() throws IOException {
+        int suffix = this.metadata.suffix;
+        int blockSize = this.metadata.blockSize;
+        List<WriteAheadLog.Record> records = new ArrayList<>();
+        if (this.metadataDirty) {
+            records.add(new WriteAheadLog.Record(suffix, 0, Metadata.serialize(this.metadata)));
+        }
+        if (this.bitmapDirty) {
+            records.add(new WriteAheadLog.Record(suffix, (long) METADATA_BLOCK_CNT * blockSize, this.bitmap.serialize()));
+        }
+        for (int i = 0; i < FCB_SIZE; i++) {
+            if (this.fcbs.get(i).isDirty()) {
+                records.add(new WriteAheadLog.Record(suffix, (long) fcbBlock(i) * blockSize, FCB.serialize(this.fcbs.get(i), blockSize)));
+            }
+        }
+        for (Map.Entry<Integer, Block> entry : this.writeSet.entrySet()) {
+            records.add(new WriteAheadLog.Record(suffix, (long) entry.getKey() * blockSize, entry.getValue().getData()));
+        }
+        return records;
+    }
+
+    /**
+     * Puts the specified file into the database.
+     * The file is split into data entries and stored in data blocks.
+     * An index is created using a B+tree to map the entry IDs to their corresponding block IDs.
+     * The file control block (FCB) for the file is updated with the index and data block information,
+     * and the file is recorded in the manifest. A file with the same name that is already in the database is replaced.
+     *
+     * @param fileName the name of the file to be put into the database
+     * @throws Exception if an error occurs while putting the file into the database
+     */
+    public void put(String fileName) throws Exception {
+        put(fileName, 0);
+    }
+
+    /**
+     * Puts the specified file into the database, with an index of the specified minimum degree.
+     * The degree is recorded in the FCB of the file, so the index is read with the degree it was written with.
+     * By default the index is a B+tree of packed pages (see PackedPage), whose nodes hold as many keys as fit
+     * in a block once compressed; a degree gives a B+tree of fixed-size pages instead.
+     *
+     * @param fileName the name of the file to be put into the database
+     * @param degree   the minimum degree of the index, or 0 for packed pages
+     * @throws Exception if an error occurs while putting the file into the database
+     */
+    public void put(String fileName, int degree) throws Exception {
+        put(fileName, degree, null);
+    }
+
+    /**
+     * Puts the specified file into the database, with an index of the specified minimum degree
+     * and a secondary index on the specified column. The secondary index is an inverted index
+     * stored in the index blocks of the file after the B+tree, and is searched with findBy().
+     *
+     * @param fileName the name of the file to be put into the database
+     * @param degree   the minimum degree of the index, or 0 for packed pages
+     * @param column   the name of the column of the secondary index, e.g. genre, or null for no secondary index
+     * @throws Exception if an error occurs while putting the file into the database
+     */
+    public void put(String fileName, int degree, String column) throws Exception {
+        put(fileName, degree, column, false);
+    }
+
+    /**
+     * Puts the specified file into the database, with a B+tree or hash index and a secondary index on the specified column.
+     * A hash index is an extendible hash table whose pages are whole blocks, so a find reads one bucket block
+     * and one data block whatever the size of the file, but the file can't be scanned by range.
+     *
+     * @param fileName the name of the file to be put into the database
+     * @param degree   the minimum degree of the B+tree, or 0 for packed pages
+     * @param column   the name of the column of the secondary index, e.g. genre, or null for no secondary index
+     * @param hash     true for a hash index, false for a B+tree index
+     * @throws Exception if an error occurs while putting the file into the database
+     */
+    public void put(String fileName, int degree, String column, boolean hash) throws Exception {
+        int t = indexDegree(degree, this.metadata.blockSize);
+        int secondaryColumn = secondaryColumn(column);
+        // selectDBFile only estimates the blocks of the file, so a put that runs out of blocks is rolled back
+        // and done again in a database file with more empty blocks
+        DB db = this;
+        while (true) {
+            try {
+                db.putFile(fileName, t, secondaryColumn, hash);
+                return;
+            } catch (OutOfBlocksException e) {
+                db = selectLargerDBFile(this.metadata.dbName, fileName, db);
+            }
+        }
+    }
+
+    /**
+     * Puts the specified file into this database file, in one transaction.
+     * A put that fails, e.g. on a file too large for an FCB or when this database file has no free block left,
+     * is rolled back.
+     *
+     * @param fileName        the name of the file to be put into the database
+     * @param t               the minimum degree of the B+tree, or 0 for packed pages
+     * @param secondaryColumn the column of the secondary index, or 0 for no secondary index
+     * @param hash            true for a hash index, false for a B+tree index
+     * @throws OutOfBlocksException if this database file has no free block or FCB left for the file
+     * @throws Exception if an error occurs while putting the file into the database
+     */
+    private void putFile(String fileName, int t, int secondaryColumn, boolean hash) throws Exception {
+        DB existing = locateDB(this.metadata.dbName, fileName);
+
+        WriteAheadLog log = WriteAheadLog.forDatabase(this.metadata.dbName);
+        log.beginOperation();
+        int blockSize = this.metadata.blockSize;
+        Ingest ingest = new Ingest(this, blockSize, secondaryColumn);
+        ArrayList<Integer> indexBlocks = new ArrayList<>();
+        int fcbBlockID = -1;
+        boolean built = false;
+        try {
+            // Stream the rows of the CSV file into data blocks as they are read, without keeping the rows in memory
+            // The ingest records the block ID of each row ID for the index, and feeds the secondary index
+            ingest.read(fileName);
+            ArrayList<Integer> dataBlocks = ingest.dataBlocks;
+            // Allocate blocks for the index, create the index using a B+tree, and store the index in the blocks
+            // The keys are sorted once and the B+tree is bulk-loaded bottom-up with full nodes
+            int[] keys = ingest.keys;
+            int[] vals = ingest.vals;
+            List<byte[]> pages;
+            int pageSize;
+            if (hash) {
+                // A hash index has one page per block: the directory, followed by the buckets
+                pages = ExtendibleHash.build(keys, vals, blockSize).toPages();
+                pageSize = blockSize;
+            } else if (t == 0) {
+                // A node is a compressed page of one block, with the keys delta-encoded and the block IDs bit-packed
+                pages = DiskPackedBPlusTree.toPages(keys, vals, blockSize, indexFillFactor);
+                pageSize = blockSize;
+            } else {
+                // A node of the requested degree is a fixed-size page, and the pages are packed into the index blocks
+                BPlusTree bPlusTree = BPlusTree.bulkLoad(keys, vals, t, indexFillFactor);
+                pages = DiskBPlusTree.toPages(bPlusTree.getRoot(), t);
+                pageSize = BTreePage.pageSize(t);
+            }
+            int pagesPerBlock = blockSize / pageSize;
+            int indexBlockNum = (pages.size() + pagesPerBlock - 1) / pagesPerBlock;
+            // The Bloom filter of the keys lets find skip the index for most keys that are not in the file
+            BloomFilter filter = new BloomFilter(keys.length);
+            for (int key : keys) {
+                filter.add(key);
+            }
+            byte[] filterBytes = filter.encode();
+            int filterBlockNum = (filterBytes.length + blockSize - 1) / blockSize;
+            // The secondary index maps each term of the column to the keys and data blocks that hold it
+            byte[] secondary = secondaryColumn == 0 ? new byte[0] : ingest.secondary.encode();
+            int secondaryBlockNum = (secondary.length + blockSize - 1) / blockSize;
+            if (indexBlockNum + filterBlockNum + secondaryBlockNum > FCB.maxIndexBlocks(blockSize)) {
+                throw new IllegalArgumentException("Index is too large for an FCB: " + fileName);
+            }
+            if (countEmptyBlock() < indexBlockNum + filterBlockNum + secondaryBlockNum) {
+                throw new OutOfBlocksException("No free index block in " + this.path);
+            }
+            indexBlocks.addAll(allocateBlocks(indexBlockNum + filterBlockNum + secondaryBlockNum));
+            for (int i = 0; i < indexBlockNum; i++) {
+                byte[] indexBytes = new byte[blockSize];
+                for (int j = 0; j < pagesPerBlock && i * pagesPerBlock + j < pages.size(); j++) {
+                    System.arraycopy(pages.get(i * pagesPerBlock + j), 0, indexBytes, j * pageSize, pageSize);
+                }
+                pinForWrite(indexBlocks.get(i)).setData(indexBytes);
+            }
+            // The Bloom filter and the secondary index follow the B+tree in the index blocks
+            int filterBlock = indexBlockNum;
+            int secondaryBlock = filterBlock + filterBlockNum;
+            writeBlocks(filterBytes, indexBlocks.subList(filterBlock, secondaryBlock));
+            writeBlocks(secondary, indexBlocks.subList(secondaryBlock, indexBlocks.size()));
+            // Allocate an empty FCB and initialize the FCB for the current file
+            fcbBlockID = nextFCB();
+            if (fcbBlockID < 0) {
+                throw new OutOfBlocksException("No free FCB in " + this.path);
+            }
+            FCB fcb = new FCB(Utils.parseInputFileName(fileName), "csv", t, indexBlocks, dataBlocks);
+            fcb.filterBlock = filterBlock;
+            fcb.secondaryColumn = secondaryColumn;
+            fcb.secondaryBlock = secondaryBlock;
+            this.fcbs.set(fcbBlockID - fcbBlock(0), fcb);
+            built = true;
+
+            // The file being replaced is removed in the same transaction as the new file is written,
+            // so a put either replaces it completely or leaves it as it was
+            Manifest.Entry replaced = existing == null ? null : manifest(this.metadata.dbName).lookup(fileName);
+            if (replaced != null) {
+                existing.free(replaced.fcbSlot);
+            }
+
+            // Commit the changes to the write-ahead log, and then record the file in the manifest
+            this.commit(replaced == null ? this : existing);
+            if (replaced != null) {
+                IndexCache.getInstance().invalidate(existing.path, replaced.fcbSlot);
+                existing.filters[replaced.fcbSlot] = null;
+            }
+            IndexCache.getInstance().invalidate(this.path, fcbBlockID - fcbBlock(0));
+            this.filters[fcbBlockID - fcbBlock(0)] = filter;
+            manifest(this.metadata.dbName).put(new Manifest.Entry(Utils.parseInputFileName(fileName), "csv",
+                    this.metadata.suffix, fcbBlockID - fcbBlock(0), keys.length, indexBlocks.size(), dataBlocks.size()));
+        } catch (Exception e) {
+            // A put that fails before the new file is complete, e.g. on a file too large for an FCB, leaves nothing behind
+            if (!built) {
+                List<Integer> allocated = new ArrayList<>(ingest.dataBlocks);
+                allocated.addAll(indexBlocks);
+                if (fcbBlockID >= 0) {
+                    allocated.add(fcbBlockID);
+                }
+                rollback(allocated);
+            }
+            throw e;
+        } finally {
+            log.endOperation();
+        }
+    }
+
+    /**
+     * Undoes an operation that failed before it committed: the blocks it allocated are freed,
+     * and the blocks it pinned for write are released without being logged, so the next commit doesn't keep them.
+     * The content of the freed blocks doesn't matter, as a block is formatted or overwritten when it is allocated again.
+     *
+     * @param allocated the IDs of the blocks allocated by the operation, including its FCB block
+     */
+    private void rollback(List<Integer> allocated) {
+        for (int id : allocated) {
+            this.bitmap.clear(id);
+        }
+        this.bitmapDirty = true;
+        for (int id : this.writeSet.keySet()) {
+            unpin(id);
+        }
+        this.writeSet.clear();
+    }
+
+    /**
+     * Gets the specified file from the database.
+     * The file content is retrieved from the data blocks and streamed to an output CSV file, block by block,
+     * so the memory used is one run of data blocks and the output buffer, whatever the size of the file.
+     *
+     * @param fileName the name of the file to be retrieved from the database
+     * @throws Exception if an error occurs while getting the file from the database
+     */
+    public void get(String fileName) throws Exception {
+        get(fileName, false);
+    }
+
+    /**
+     * Gets the specified file from the database, with the rows in ascending key order if ordered is true.
+     * The ordered rows are found by walking the index along its leaves, as range does, and each data block
+     * is read once for the run of keys it holds. When the data blocks were written in key order,
+     * e.g. by a put with parallel parsing, this reads the data blocks one after the other as the unordered get does.
+     * A hash index has no key order, so the keys of a file with a hash index are read from its data blocks and sorted.
+     *
+     * @param fileName the name of the file to be retrieved from the database
+     * @param ordered  true to write the rows in ascending key order, false to write them in the order of the data blocks
+     * @throws Exception if an error occurs while getting the file from the database
+     */
+    public void get(String fileName, boolean ordered) throws Exception {
+        Manifest.Entry file = manifest(this.metadata.dbName).lookup(fileName);
+        if (file == null || file.suffix != this.metadata.suffix) {
+            return;
+        }
+        FCB fcb = this.fcbs.get(file.fcbSlot);
+        String directory = "./src/com/neu/nosql/io/";
+        String outputPath = directory + "/" + fileName + ".output";
+        try (MovieWriter.Output out = MovieWriter.open(outputPath, MovieWriter.DEFAULT_BUFFER_SIZE)) {
+            if (ordered) {
+                EntryExporter exporter = new EntryExporter(out);
+                try {
+                    if (indexMagic(fcb) == ExtendibleHash.MAGIC) {
+                        sortedKeys(fcb, exporter);
+                    } else {
+                        openIndex(file.fcbSlot).range(Integer.MIN_VALUE, Integer.MAX_VALUE, exporter);
+                    }
+                } finally {
+                    exporter.release();
+                }
+                return;
+            }
+            // Data blocks are read run by run, a contiguous run with one read, and their entries are formatted
+            // straight into the output buffer, which is written to the file whenever it is full
+            for (int[] run : runs(fcb.dataBlocks)) {
+                Block[] blocks = pinRun(run[0], run[1]);
+                try {
+                    for (Block block : blocks) {
+                        exportEntries(block, out);
+                    }
+                } finally {
+                    unpinRun(run[0], run[1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Visits the keys of a file with their data blocks in ascending key order, without the index.
+     * The keys are read from the data blocks and sorted, together with their data block IDs.
+     *
+     * @param fcb     the FCB of the file
+     * @param visitor the visitor of the keys and their data block IDs
+     * @throws IOException if an I/O error occurs while reading the data blocks
+     */
+    private void sortedKeys(FCB fcb, DiskIndex.Visitor visitor) throws IOException {
+        long[] pairs = new long[fcb.dataBlocks.size()];
+        int n = 0;
+        for (int[] run : runs(fcb.dataBlocks)) {
+            Block[] blocks = pinRun(run[0], run[1]);
+            try {
+                for (int i = 0; i < blocks.length; i++) {
+                    for (int id : blocks[i].ids()) {
+                        if (n == pairs.length) {
+                            pairs = Arrays.copyOf(pairs, 2 * n + 1);
+                        }
+                        pairs[n++] = (long) id << 32 | (run[0] + i); // block ID不为负, 按key排序
+                    }
+                }
+            } finally {
+                unpinRun(run[0], run[1]);
+            }
+        }
+        Arrays.sort(pairs, 0, n);
+        for (int i = 0; i < n; i++) {
+            visitor.visit((int) (pairs[i] >> 32), (int) pairs[i]);
+        }
+    }
+
+    /**
+     * Removes the specified file from the database.
+     * The file's index blocks and data blocks are deleted, the corresponding FCB is reset,
+     * and the file is removed from the manifest.
+     *
+     * @param fileName the name of the file to be removed from the database
+     * @throws Exception if an error occurs while removing the file from the database
+     */
+    public void remove(String fileName) throws Exception {
+        WriteAheadLog log = WriteAheadLog.forDatabase(this.metadata.dbName);
+        log.beginOperation();
+        try {
+            Manifest manifest = manifest(this.metadata.dbName);
+            Manifest.Entry entry = manifest.lookup(fileName);
+            if (entry == null || entry.suffix != this.metadata.suffix) {
+                return;
+            }
+            int i = entry.fcbSlot;
+            free(i);
+            this.commit();
+            IndexCache.getInstance().invalidate(this.path, i);
+            this.filters[i] = null;
+            manifest.remove(fileName);
+        } finally {
+            log.endOperation();
+        }
+    }
+
+    /**
+     * Frees the index blocks, the data blocks and the FCB of the file in the specified FCB slot,
+     * as part of the current operation, which commits the change.
+     *
+     * @param fcbSlot the FCB slot of the file
+     * @throws IOException if an I/O error occurs while reading the blocks
+     */
+    private void free(int fcbSlot) throws IOException {
+        FCB fcb = this.fcbs.get(fcbSlot);
+        ArrayList<Integer> indexBlocks = fcb.indexBlocks;
+        for (int id : indexBlocks) {
+            pinForWrite(id).clear();
+            this.bitmap.clear(id);
+        }
+        ArrayList<Integer> dataBlocks = fcb.dataBlocks;
+        for (int id : dataBlocks) {
+            pinForWrite(id).clear();
+            this.bitmap.clear(id);
+        }
+        this.bitmap.clear(fcbBlock(fcbSlot));
+        this.bitmapDirty = true;
+        this.fcbs.set(fcbSlot, new FCB());
+    }
+
+    /**
+     * Inserts an entry into the specified file, without putting the file again.
+     * The entry goes into a free slot of the last data block of the file, or into a new data block
+     * added to the file when that block is full. Its ID is added to the index, the Bloom filter
+     * and the secondary index of the file, and only the blocks that change are committed,
+     * so an insert costs O(log n) block writes instead of rewriting the file.
+     *
+     * @param fileName the name of the file
+     * @param id       the ID of the entry
+     * @param val      the value of the entry, e.g. the name and genre of a movie separated by a comma
+     * @return true if the entry was inserted, false if the file already has an entry with the ID
+     *         or the file is not in this database file
+     * @throws UnsupportedOperationException if the file doesn't have a B+tree or hash index
+     * @throws IllegalStateException if the database file doesn't have enough free blocks
+     * @throws Exception if an error occurs while changing the file
+     */
+    public boolean insert(String fileName, int id, String val) throws Exception {
+        return change(fileName, id, val, false);
+    }
+
+    /**
+     * Replaces the value of an entry of the specified file, in its slot of its data block.
+     * The index doesn't change, so this works for every kind of index; only the secondary index is changed.
+     *
+     * @param fileName the name of the file
+     * @param id       the ID of the entry
+     * @param val      the new value of the entry
+     * @return true if the entry was updated, false if the file has no entry with the ID
+     *         or the file is not in this database file
+     * @throws Exception if an error occurs while changing the file
+     */
+    public boolean update(String fileName, int id, String val) throws Exception {
+        return change(fileName, id, val, true);
+    }
+
+    /**
+     * Deletes an entry from the specified file. The slot of the entry is cleared and the ID is removed
+     * from the index and the secondary index of the file. A data block left without entries is released.
+     * The Bloom filter keeps the ID, which only costs a lookup of the index on a later find.
+     *
+     * @param fileName the name of the file
+     * @param id       the ID of the entry
+     * @return true if the entry was deleted, false if the file has no entry with the ID
+     *         or the file is not in this database file
+     * @throws UnsupportedOperationException if the file doesn't have a B+tree or hash index
+     * @throws Exception if an error occurs while changing the file
+     */
+    public boolean delete(String fileName, int id) throws Exception {
+        return change(fileName, id, null, true);
+    }
+
+    /**
+     * Inserts, updates or deletes an entry of the specified file in one operation of the write-ahead log.
+     * The blocks the change needs are counted before anything is changed, so a change that doesn't fit
+     * in the database file or in the FCB fails without touching the file. A change that fails after that,
+     * e.g. on an I/O error, is rolled back as a failed put is: its blocks are released without being logged,
+     * and the bitmap and the FCB are restored.
+     *
+     * @param fileName the name of the file
+     * @param id       the ID of the entry
+     * @param val      the new value of the entry, or null to delete it
+     * @param existing true if the entry must already be in the file, false if it must not
+     * @return true if the file was changed, false otherwise
+     * @throws Exception if an error occurs while changing the file
+     */
+    private boolean change(String fileName, int id, String val, boolean existing) throws Exception {
+        WriteAheadLog log = WriteAheadLog.forDatabase(this.metadata.dbName);
+        log.beginOperation();
+        try {
+            Manifest manifest = manifest(this.metadata.dbName);
+            Manifest.Entry file = manifest.lookup(fileName);
+            if (file == null || file.suffix != this.metadata.suffix) {
+                return false;
+            }
+            int fcbSlot = file.fcbSlot;
+            FCB fcb = this.fcbs.get(fcbSlot);
+            int blockSize = this.metadata.blockSize;
+            int blockID = openIndex(fcbSlot).find(id);
+            if ((blockID >= 0) != existing) {
+                return false;
+            }
+
+            // Inserts and deletes change the index, which is changed in place for a B+tree or a hash table
+            WritableIndex tree = null;
+            int newIndexBlocks = 0;
+            int newDataBlocks = 0;
+            if (!existing || val == null) {
+                byte magic = indexMagic(fcb);
+                if (PackedPage.isPacked(magic)) {
+                    tree = new DiskPackedBPlusTree(new IndexPages(fcb, blockSize), blockSize);
+                } else if (magic == BTreePage.BPLUS_MAGIC) {
+                    tree = new DiskBPlusTree(new IndexPages(fcb, BTreePage.pageSize(degreeOf(fcb))), degreeOf(fcb));
+                } else if (magic == ExtendibleHash.MAGIC) {
+                    tree = new DiskHash(new IndexPages(fcb, blockSize), blockSize);
+                } else {
+                    throw new UnsupportedOperationException("Entries can only be inserted or deleted in a file with a B+tree or hash index");
+                }
+            }
+            // A value too long for a data block, or for the room left in its block, goes to a new overflow chain
+            byte[] bytes = val == null ? null : val.getBytes();
+            boolean overflow = false;
+            if (existing && bytes != null) {
+                Block block = pin(blockID);
+                try {
+                    int slot = block.slotOf(id);
+                    overflow = !block.hasRoom(slot, bytes.length);
+                    if (overflow && !block.hasRoom(slot, 4)) {
+                        throw new IllegalStateException("No room in data block " + blockID + " for entry " + id);
+                    }
+                } finally {
+                    unpin(blockID);
+                }
+            } else if (!existing) {
+                overflow = bytes.length > Block.maxValueLength(blockSize);
+                blockID = lastDataBlockWithRoom(fcb, bytes.length);
+                newDataBlocks = blockID < 0 ? 1 : 0;
+                // A new data block is the first free block, and the size of a packed leaf depends on its block ID
+                int newBlockID = blockID < 0 ? this.bitmap.nextClearBit(this.metadata.headerBlockCount()) : blockID;
+                newIndexBlocks = tree.pagesToSplit(id, newBlockID); // 一个page最多占一个block
+            }
+            ByteBuffer secondary = null;
+            if (fcb.secondaryColumn != 0) {
+                // The new index has the same size whatever the data block of the entry
+                secondary = readBlocks(fcb.indexBlocks.subList(fcb.secondaryBlock, fcb.indexBlocks.size()));
+                int size = InvertedIndex.update(secondary, id, secondaryValue(fcb, val), 0).length;
+                newIndexBlocks += Math.max(0, (size + blockSize - 1) / blockSize - (fcb.indexBlocks.size() - fcb.secondaryBlock));
+            }
+            if (overflow) {
+                int capacity = Block.overflowCapacity(blockSize);
+                newDataBlocks += (bytes.length + capacity - 1) / capacity;
+            }
+            if (fcb.indexBlocks.size() + newIndexBlocks > FCB.maxIndexBlocks(blockSize)
+                    || fcb.dataBlocks.size() + newDataBlocks > FCB.maxDataBlocks(blockSize)) {
+                throw new IllegalStateException("File is too large for an FCB: " + fileName);
+            }
+            if (countEmptyBlock() < newIndexBlocks + newDataBlocks) {
+                throw new IllegalStateException("Not enough free blocks to change " + fileName);
+            }
+
+            // The bitmap and the FCB are restored if the change fails before it commits
+            byte[] bitmapBefore = this.bitmap.serialize();
+            byte[] fcbBefore = FCB.serialize(fcb, blockSize);
+            boolean fcbDirty = fcb.isDirty();
+            int recordCount = file.recordCount;
+            try {
+                if (existing) {
+                    Block block = pinForWrite(blockID);
+                    int slot = block.slotOf(id);
+                    if (block.overflowAt(slot) >= 0) {
+                        freeChain(fcb.dataBlocks, block.overflowAt(slot));
+                        fcb.markDirty();
+                    }
+                    if (overflow) {
+                        block.setOverflow(slot, id, writeChain(fcb, bytes));
+                    } else if (val != null) {
+                        block.set(slot, id, bytes);
+                    } else {
+                        block.clearEntry(slot);
+                        tree.delete(id);
+                        recordCount--;
+                        if (block.ids().length == 0) {
+                            block.clear();
+                            fcb.dataBlocks.remove(Integer.valueOf(blockID));
+                            this.bitmap.clear(blockID);
+                            this.bitmapDirty = true;
+                            fcb.markDirty();
+                        }
+                    }
+                } else {
+                    if (blockID < 0) {
+                        blockID = addDataBlock(fcb);
+                    }
+                    Block block = pinForWrite(blockID);
+                    if (overflow) {
+                        block.addOverflow(id, writeChain(fcb, bytes));
+                    } else {
+                        block.add(id, bytes);
+                    }
+                    tree.insert(id, blockID);
+                    recordCount++;
+                    // The Bloom filter only gets bits set, so only the blocks holding the new bits change
+                    BloomFilter filter = filter(fcbSlot);
+                    if (filter != null) {
+                        byte[] before = filter.encode();
+                        filter.add(id);
+                        int end = fcb.secondaryColumn != 0 ? fcb.secondaryBlock : fcb.indexBlocks.size();
+                        writeChangedBlocks(before, filter.encode(), fcb.indexBlocks.subList(fcb.filterBlock, end));
+                    }
+                }
+                if (secondary != null) {
+                    updateSecondary(fcb, secondary, InvertedIndex.update(secondary, id, secondaryValue(fcb, val), blockID));
+                }
+
+                this.commit();
+            } catch (Exception e) {
+                this.bitmap = BitMap.deserialize(bitmapBefore, this.metadata.blockCount);
+                FCB restored = FCB.deserialize(fcbBefore);
+                if (fcbDirty) {
+                    restored.markDirty();
+                }
+                this.fcbs.set(fcbSlot, restored);
+                this.filters[fcbSlot] = null;
+                rollback(new ArrayList<>());
+                throw e;
+            }
+            if (tree != null) {
+                IndexCache.getInstance().invalidate(this.path, fcbSlot);
+            }
+            // An update that adds or frees an overflow chain changes the data blocks of the file as well
+            if (tree != null || fcb.isDirty()) {
+                manifest.put(new Manifest.Entry(file.name, file.type, file.suffix, fcbSlot,
+                        recordCount, fcb.indexBlocks.size(), fcb.dataBlocks.size()));
+            }
+            return true;
+        } finally {
+            log.endOperation();
+        }
+    }
+
+    /**
+     * Returns the last data block of the file if it has room for an entry. Inserted entries go to the end of the file,
+     * as the data blocks of a put are full except the last one. The overflow chains written after it are skipped.
+     *
+     * @param fcb    the FCB of the file
+     * @param length the length of the value of the entry in bytes
+     * @return the ID of the last data block, or -1 if the file has no data block with room at its end
+     * @throws IOException if an I/O error occurs while reading the blocks
+     */
+    private int lastDataBlockWithRoom(FCB fcb, int length) throws IOException {
+        for (int i = fcb.dataBlocks.size() - 1; i >= 0; i--) {
+            int last = fcb.dataBlocks.get(i);
+            Block block = pin(last);
+            try {
+                if (!block.isOverflow()) {
+                    return block.hasRoom(length) ? last : -1;
+                }
+            } finally {
+                unpin(last);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds an empty data block to the end of the file.
+     *
+     * @param fcb the FCB of the file
+     * @return the ID of the new data block
+     * @throws IOException if an I/O error occurs while reading the block
+     */
+    private int addDataBlock(FCB fcb) throws IOException {
+        int blockID = allocateBlocks(1).get(0);
+        pinForWrite(blockID).format();
+        fcb.dataBlocks.add(blockID);
+        fcb.markDirty();
+        return blockID;
+    }
+
+    /**
+     * Writes a large value into a new overflow chain at the end of the file.
+     *
+     * @param fcb   the FCB of the file
+     * @param value the value
+     * @return the ID of the first block of the chain
+     * @throws IOException if an I/O error occurs while reading the blocks
+     */
+    private int writeChain(FCB fcb, byte[] value) throws IOException {
+        int capacity = Block.overflowCapacity(this.metadata.blockSize);
+        List<Integer> chain = allocateBlocks((value.length + capacity - 1) / capacity);
+        for (int i = 0; i < chain.size(); i++) {
+            int length = Math.min(capacity, value.length - i * capacity);
+            pinForWrite(chain.get(i)).formatOverflow(i + 1 < chain.size() ? chain.get(i + 1) : -1, value, i * capacity, length);
+        }
+        fcb.dataBlocks.addAll(chain);
+        fcb.markDirty();
+        return chain.get(0);
+    }
+
+    /**
+     * Frees the blocks of an overflow chain and removes them from the data blocks of a file.
+     *
+     * @param dataBlocks the data blocks of the file
+     * @param first      the ID of the first block of the chain
+     * @throws IOException if an I/O error occurs while reading the blocks
+     */
+    void freeChain(List<Integer> dataBlocks, int first) throws IOException {
+        for (int blockID = first; blockID >= 0; ) {
+            Block block = pinForWrite(blockID);
+            int next = block.overflowNext();
+            block.clear();
+            dataBlocks.remove(Integer.valueOf(blockID));
+            this.bitmap.clear(blockID);
+            this.bitmapDirty = true;
+            blockID = next;
+        }
+    }
+
+    /**
+     * Reads a large value from its overflow chain.
+     *
+     * @param first the ID of the first block of the chain
+     * @return the bytes of the value
+     * @throws IOException if an I/O error occurs while reading the blocks
+     */
+    private byte[] readChain(int first) throws IOException {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        for (int blockID = first; blockID >= 0; ) {
+            Block block = pin(blockID);
+            int next;
+            try {
+                value.write(block.overflowBytes());
+                next = block.overflowNext();
+            } finally {
+                unpin(blockID);
+            }
+            blockID = next;
+        }
+        return value.toByteArray();
+    }
+
+    /**
+     * Returns the value of the column of the secondary index of the file in a value of an entry.
+     *
+     * @param fcb the FCB of the file
+     * @param val the value of the entry, or null if the entry is deleted
+     * @return the value of the column, or null if the entry is deleted
+     */
+    private static String secondaryValue(FCB fcb, String val) {
+        return val == null ? null : MovieReader.columnOfValue(val, fcb.secondaryColumn);
+    }
+
+    /**
+     * Writes the secondary index of the file after a change. The secondary index is the last part of the index blocks,
+     * so it grows or shrinks at the end of the list, and only the blocks whose content changed are written.
+     *
+     * @param fcb    the FCB of the file
+     * @param before the old bytes of the secondary index, as stored in its blocks
+     * @param after  the new bytes of the secondary index
+     * @throws IOException if an I/O error occurs while writing the index blocks
+     */
+    private void updateSecondary(FCB fcb, ByteBuffer before, byte[] after) throws IOException {
+        int blockSize = this.metadata.blockSize;
+        List<Integer> blocks = fcb.indexBlocks.subList(fcb.secondaryBlock, fcb.indexBlocks.size());
+        int blockNum = (after.length + blockSize - 1) / blockSize;
+        if (blockNum > blocks.size()) {
+            blocks.addAll(allocateBlocks(blockNum - blocks.size()));
+            fcb.markDirty();
+        }
+        while (blocks.size() > blockNum) {
+            int unused = blocks.remove(blocks.size() - 1);
+            pinForWrite(unused).clear();
+            this.bitmap.clear(unused);
+            this.bitmapDirty = true;
+            fcb.markDirty();
+        }
+        writeChangedBlocks(before.array(), after, blocks);
+    }
+
+    /**
+     * Finds the specified file from the database and returns the value associated with the given ID.
+     *
+     * @param fileName the name of the file to be searched
+     * @param id       the ID to be searched within the file
+     * @return the value associated with the given ID in the file, or null if not found
+     * @throws Exception if an error occurs while finding the file or ID
+     */
+    public String find(String fileName, int id) throws Exception {
+        Manifest.Entry file = manifest(this.metadata.dbName).lookup(fileName);
+        if (file == null || file.suffix != this.metadata.suffix) {
+            return null;
+        }
+        // A key that is not in the Bloom filter is not in the file, so neither the index nor the data is read
+        BloomFilter filter = filter(file.fcbSlot);
+        if (filter != null && !filter.mightContain(id)) {
+            filterSkips++;
+            return null;
+        }
+        // Only the pages on the path from the root to the key are read, and they stay in the index cache
+        int blockID = openIndex(file.fcbSlot).find(id);
+        if (blockID < 0) {
+            return null;
+        }
+        Block block = pin(blockID);
+        try {
+            int slot = block.slotOf(id);
+            return slot < 0 ? null : valueOf(block, slot);
+        } finally {
+            unpin(blockID);
+        }
+    }
+
+    /**
+     * Returns the value of the data entry in the specified slot of a data block, read from its overflow chain if it has one.
+     *
+     * @param block the data block
+     * @param slot  the slot, which must hold an entry
+     * @return the value of the entry
+     * @throws IOException if an I/O error occurs while reading the overflow chain
+     */
+    private String valueOf(Block block, int slot) throws IOException {
+        int overflow = block.overflowAt(slot);
+        return overflow < 0 ? block.valueAt(slot) : new String(readChain(overflow));
+    }
+
+    /**
+     * Writes the data entries of a data block to a CSV output, in the order of their slots.
+     * The values are copied from the bytes of the block, or from their overflow chains.
+     *
+     * @param block the data block
+     * @param out   the output
+     * @throws IOException if an I/O error occurs while reading an overflow chain or writing the output
+     */
+    private void exportEntries(Block block, MovieWriter.Output out) throws IOException {
+        for (int slot = 0; slot < block.slotCount(); slot++) {
+            if (block.hasEntry(slot)) {
+                exportEntry(block, slot, out);
+            }
+        }
+    }
+
+    /**
+     * Writes the data entry in the specified slot of a data block to a CSV output.
+     */
+    private void exportEntry(Block block, int slot, MovieWriter.Output out) throws IOException {
+        if (!block.exportEntry(slot, out)) {
+            byte[] value = readChain(block.overflowAt(slot));
+            out.writeEntry(block.idAt(slot), ByteBuffer.wrap(value), 0, value.length);
+        }
+    }
 
     /**
-     * Opens an existing database with the specified name.
+     * Streams the entries of the specified file whose IDs are in the range [lo, hi], in ID order.
+     * The index is scanned from the leaf of the lowest ID along the linked leaves, and each data block
+     * is read once for the run of IDs it holds, so only the relevant leaves and data blocks are touched.
      *
-     * @param dbName the name of the database
-     * @return the opened database
-     * @throws Exception if an error occurs while opening the database
+     * @param fileName the name of the file to be searched
+     * @param lo       the lowest ID of the range
+     * @param hi       the highest ID of the range
+     * @param consumer the consumer of the entries
+     * @return the number of entries in the range, or -1 if the file is not in this database file
+     * @throws Exception if an error occurs while scanning the file
      */
-    public static DB open(String dbName) throws Exception {
-        return open(dbName, 0);
+    public int range(String fileName, int lo, int hi, Consumer<DataEntry> consumer) throws Exception {
+        Manifest.Entry file = manifest(this.metadata.dbName).lookup(fileName);
+        if (file == null || file.suffix != this.metadata.suffix) {
+            return -1;
+        }
+        EntryReader reader = new EntryReader(consumer);
+        openIndex(file.fcbSlot).range(lo, hi, reader);
+        return reader.count;
     }
 
     /**
-     * Opens an existing database with the specified name and suffix.
-     * If the database file does not exist, a new database is created.
+     * Streams the entries of the specified file whose value in the specified column holds the specified term,
+     * in ID order. The term is looked up in the secondary index of the file, which tells the IDs and data blocks
+     * of the entries, so only the data blocks holding matching entries are read.
      *
-     * @param dbName the name of the database
-     * @param suffix the suffix of the database file
-     * @return the opened or created database
-     * @throws Exception if an error occurs while opening or creating the database
+     * @param fileName the name of the file to be searched
+     * @param column   the name of the column, which must be the column of the secondary index of the file
+     * @param value    the term to search for, matched ignoring case
+     * @param consumer the consumer of the entries
+     * @return the number of matching entries, or -1 if the file is not in this database file
+     * @throws IllegalArgumentException if the file has no secondary index on the column
+     * @throws Exception if an error occurs while searching the file
      */
-    public static DB open(String dbName, int suffix) throws Exception {
-        String dbPath = "./src/com/neu/nosql/file/" + dbName + ".db" + suffix;
-        if (Files.notExists(Paths.get(dbPath))) {
-            return newDB(dbName, 0);
+    public int findBy(String fileName, String column, String value, Consumer<DataEntry> consumer) throws Exception {
+        FCB fcb = lookup(fileName);
+        if (fcb == null) {
+            return -1;
         }
+        if (fcb.secondaryColumn == 0 || fcb.secondaryColumn != MovieReader.columnOf(column)) {
+            throw new IllegalArgumentException("No index on column " + column + " of " + fileName);
+        }
+        // The secondary index is read from its index blocks only, without touching the B+tree
+        ByteBuffer index = readBlocks(fcb.indexBlocks.subList(fcb.secondaryBlock, fcb.indexBlocks.size()));
+        EntryReader reader = new EntryReader(consumer);
+        InvertedIndex.find(index, value, reader);
+        return reader.count;
+    }
 
-        DB db = new DB();
+    /**
+     * A visitor of the IDs of a file and their data blocks, which reads the entries from the data blocks.
+     * Consecutive IDs in the same data block are read with one read of the block.
+     */
+    private final class EntryReader implements DiskIndex.Visitor {
+        private final Consumer<DataEntry> consumer;
+        private final Map<Integer, String> block = new HashMap<>(); // 当前data block中的entries
+        private int blockID = -1;
+        int count = 0;
 
-        // Initialize blocks
-        byte[] data = Files.readAllBytes(Paths.get(dbPath));
-        for (int i = 0; i < BLOCK_CNT; i++) {
-            db.blocks.add(new Block());
-            System.arraycopy(data, i * BLOCK_SIZE, db.blocks.get(i).data, 0, BLOCK_SIZE);
+        EntryReader(Consumer<DataEntry> consumer) {
+            this.consumer = consumer;
         }
 
-        // Initialize metadata
-        db.metadata = Metadata.deserialize(db.blocks.get(0).data);
+        @Override
+        public boolean visit(int id, int blockID) throws IOException {
+            if (blockID != this.blockID) {
+                block.clear();
+                Block data = pin(blockID);
+                try {
+                    for (int slot = 0; slot < data.slotCount(); slot++) {
+                        if (data.hasEntry(slot)) {
+                            block.put(data.idAt(slot), valueOf(data, slot));
+                        }
+                    }
+                } finally {
+                    unpin(blockID);
+                }
+                this.blockID = blockID;
+            }
+            String val = block.get(id);
+            if (val != null) {
+                consumer.accept(new DataEntry(id, val));
+                count++;
+            }
+            return true;
+        }
+    }
 
-        // Initialize bitmap
-        for (int i = 0; i < BLOCK_CNT; i++) {
-            if (i < BLOCK_CNT / 2) {
-                db.bitmap[i] = (db.blocks.get(METADATA_BLOCK_CNT).data[i / 8] & (1 << (i % 8))) != 0;
-            } else {
-                db.bitmap[i] =
-                        (db.blocks.get(METADATA_BLOCK_CNT + 1).data[(i - BLOCK_CNT / 2) / 8] & (1 << ((i - BLOCK_CNT / 2) % 8))) != 0;
+    /**
+     * A visitor of the IDs of a file and their data blocks, which writes the entries to a CSV output.
+     * The data block of the current ID stays pinned until an ID in another data block is visited,
+     * and the entry is looked for from the slot after the previous one, so the entries of a block
+     * written in key order are found without searching.
+     */
+    private final class EntryExporter implements DiskIndex.Visitor {
+        private final MovieWriter.Output out;
+        private Block block;
+        private int blockID = -1;
+        private int slot = 0; // 下一个entry所在slot的猜测
+
+        EntryExporter(MovieWriter.Output out) {
+            this.out = out;
+        }
+
+        @Override
+        public boolean visit(int id, int blockID) throws IOException {
+            if (blockID != this.blockID) {
+                release();
+                this.block = pin(blockID);
+                this.blockID = blockID;
+                slot = 0;
+            }
+            int found = block.slotOf(id, slot);
+            if (found >= 0) {
+                exportEntry(block, found, out);
+                slot = found + 1;
             }
+            return true;
         }
 
-        // Initialize FCBs
-        for (int i = 0; i < FCB_SIZE; i++) {
-            db.fcbs.add(new FCB());
-            db.fcbs.set(i, FCB.deserialize(db.blocks.get(3 + i).data));
+        /**
+         * Unpins the current data block.
+         */
+        void release() {
+            if (blockID >= 0) {
+                unpin(blockID);
+                block = null;
+                blockID = -1;
+            }
         }
+    }
 
-        return db;
+    /**
+     * Opens the index of the file in the specified FCB slot on top of its cached pages.
+     * Files put by older versions have a B-tree index; newer files have a B+tree of packed or fixed-size pages, or a hash index.
+     * The kind of index is told by the magic number of its first page.
+     *
+     * @param fcbSlot the FCB slot of the file
+     * @return the index of the file
+     * @throws IOException if an I/O error occurs while reading the index
+     */
+    private DiskIndex openIndex(int fcbSlot) throws IOException {
+        PageStore pages = index(fcbSlot);
+        int t = degreeOf(this.fcbs.get(fcbSlot));
+        byte magic = BTreePage.magic(pages.read(0));
+        if (magic == ExtendibleHash.MAGIC) {
+            return new DiskHash(pages, this.metadata.blockSize);
+        }
+        if (PackedPage.isPacked(magic)) {
+            return new DiskPackedBPlusTree(pages, this.metadata.blockSize);
+        }
+        if (magic == BTreePage.BPLUS_MAGIC) {
+            return new DiskBPlusTree(pages, t);
+        }
+        return new DiskBTree(pages, t);
     }
 
     /**
-     * Puts the specified file into the database.
-     * The file is split into data entries and stored in data blocks.
-     * An index is created using a B-tree to map the entry IDs to their corresponding block IDs.
-     * The file control block (FCB) for the file is updated with the index and data block information.
+     * Returns the magic number at the start of the index of the file: BTreePage.MAGIC, BTreePage.BPLUS_MAGIC,
+     * ExtendibleHash.MAGIC, or the header of a packed page (see PackedPage.isPacked()).
+     * Files put by older versions store the index as a serialized string, which starts with "true" or "false" instead.
      *
-     * @param fileName the name of the file to be put into the database
-     * @throws Exception if an error occurs while putting the file into the database
+     * @param fcb the FCB of the file
+     * @return the first byte of the first index block
+     * @throws IOException if an I/O error occurs while reading the index block
      */
-    public void put(String fileName) throws Exception {
-        // Parse the input CSV file into a map, where each entry represents a row
-        // The key is the ID, and the value is the content
-        Map<Integer, String> lines = MovieReader.readMoviesFromCSV("./src/com/neu/nosql/io/" + fileName);
-        int dataBlockNum = lines.size() / BLOCK_ENTRY_NUM;
-        if (lines.size() % BLOCK_ENTRY_NUM != 0) {
-            dataBlockNum++;
-        }
-
-        // Allocate empty blocks and store the file content in the corresponding data blocks
-        // Record the block ID for each row ID for later indexing
-        Map<Integer, Integer> id2Block = new HashMap<>(); // Mapping of row ID to block ID in the current database
-        ArrayList<Integer> dataBlocks = allocateBlocks(dataBlockNum);
-        int p = -1;
-        for (Map.Entry<Integer, String> line : lines.entrySet()) {
-            DataEntry entry = new DataEntry(line.getKey(), line.getValue());
-            if (p == -1 || this.blocks.get(dataBlocks.get(p)).isFull()) {
-                p++;
-                this.blocks.get(dataBlocks.get(p)).initializeDefaultBytes();
-            }
-            this.blocks.get(dataBlocks.get(p)).write(DataEntry.serialize(entry), ENTRY_SIZE);
-            id2Block.put(line.getKey(), dataBlocks.get(p));
-        }
-        this.blocks.get(dataBlocks.get(p)).fillUpWithDefaultBytes();
-        // Allocate blocks for the index, create the index using a B-tree, and store the index in the blocks
-        BTree bTree = new BTree();
-        for (Map.Entry<Integer, String> line : lines.entrySet()) {
-            bTree.insert(line.getKey(), id2Block.get(line.getKey()));
-        }
-        new BTree().print(bTree.getRoot());
-        byte[] indexBytes = new BTreeSerializer().serialize(bTree.getRoot()).getBytes();
-        int indexBlockNum = indexBytes.length / BLOCK_SIZE;
-        if (indexBytes.length % BLOCK_SIZE != 0) {
-            indexBlockNum++;
-        }
-        ArrayList<Integer> indexBlocks = allocateBlocks(indexBlockNum);
-        for (int i = 0; i < indexBlocks.size(); i++) {
-            int from = i * BLOCK_SIZE;
-            if (i == indexBlocks.size() - 1) {
-                this.blocks.get(indexBlocks.get(i)).
-                        write(Arrays.copyOfRange(indexBytes, from, indexBytes.length), indexBytes.length - from);
-                this.blocks.get(indexBlocks.get(i)).fillUpWithDefaultBytes();
-            } else {
-                this.blocks.get(indexBlocks.get(i)).
-                        write(Arrays.copyOfRange(indexBytes, from, from + BLOCK_SIZE), BLOCK_SIZE);
+    private byte indexMagic(FCB fcb) throws IOException {
+        int blockID = fcb.indexBlocks.get(0);
+        Block block = pin(blockID);
+        try {
+            return block.read(0, 1)[0];
+        } finally {
+            unpin(blockID);
+        }
+    }
+
+    /**
+     * Returns the minimum degree of the index of the file. Files put before the degree was recorded
+     * in the FCB have an index with the default degree of BTree. Files with packed pages have no degree either,
+     * but their pages are told apart by their header and don't need one.
+     *
+     * @param fcb the FCB of the file
+     * @return the minimum degree of the index
+     */
+    private static int degreeOf(FCB fcb) {
+        return fcb.degree == 0 ? BTree.MINIMUM_DEGREE : fcb.degree;
+    }
+
+    /**
+     * Returns the number of index blocks of the file that hold the pages of its tree or hash table.
+     * The Bloom filter and the secondary index, if any, are stored in the index blocks after them.
+     *
+     * @param fcb the FCB of the file
+     * @return the number of index blocks of the tree or hash table
+     */
+    private static int primaryBlocks(FCB fcb) {
+        if (fcb.filterBlock != 0) {
+            return fcb.filterBlock;
+        }
+        return fcb.secondaryColumn != 0 ? fcb.secondaryBlock : fcb.indexBlocks.size();
+    }
+
+    /**
+     * Returns the Bloom filter of the file in the specified FCB slot. The filter is read from its index blocks
+     * on first use and then kept in memory with the FCB, until the file is put again or removed.
+     *
+     * @param fcbSlot the FCB slot of the file
+     * @return the Bloom filter, or null if the file was put before files had Bloom filters
+     * @throws IOException if an I/O error occurs while reading the filter
+     */
+    private BloomFilter filter(int fcbSlot) throws IOException {
+        FCB fcb = this.fcbs.get(fcbSlot);
+        if (fcb.filterBlock == 0) {
+            return null;
+        }
+        BloomFilter filter = this.filters[fcbSlot];
+        if (filter == null) {
+            int end = fcb.secondaryColumn != 0 ? fcb.secondaryBlock : fcb.indexBlocks.size();
+            filter = BloomFilter.decode(readBlocks(fcb.indexBlocks.subList(fcb.filterBlock, end)));
+            this.filters[fcbSlot] = filter;
+        }
+        return filter;
+    }
+
+    /**
+     * Reads the specified blocks, a contiguous run with one read, and concatenates their bytes.
+     *
+     * @param blockIDs the IDs of the blocks
+     * @return the bytes of the blocks, starting at position 0
+     * @throws IOException if an I/O error occurs while reading the blocks
+     */
+    private ByteBuffer readBlocks(List<Integer> blockIDs) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(blockIDs.size() * this.metadata.blockSize);
+        for (int[] run : runs(blockIDs)) {
+            for (Block block : pinRun(run[0], run[1])) {
+                bytes.put(block.getData());
             }
+            unpinRun(run[0], run[1]);
         }
-        // Allocate an empty FCB and initialize the FCB for the current file
-        int fcbBlockID = nextFCB();
-        this.fcbs.set(fcbBlockID - 3, new FCB(Utils.parseInputFileName(fileName), "csv", indexBlocks, dataBlocks));
+        return bytes.flip();
+    }
 
-        // Flush the current database to disk
-        this.flush();
+    /**
+     * Writes the specified bytes to the specified blocks, one block after another.
+     *
+     * @param bytes    the bytes to be written
+     * @param blockIDs the IDs of the blocks, enough to hold the bytes
+     * @throws IOException if an I/O error occurs while reading a block
+     */
+    private void writeBlocks(byte[] bytes, List<Integer> blockIDs) throws IOException {
+        int blockSize = this.metadata.blockSize;
+        for (int i = 0; i < blockIDs.size(); i++) {
+            byte[] blockBytes = new byte[blockSize];
+            System.arraycopy(bytes, i * blockSize, blockBytes, 0, Math.min(blockSize, bytes.length - i * blockSize));
+            pinForWrite(blockIDs.get(i)).setData(blockBytes);
+        }
     }
 
     /**
-     * Gets the specified file from the database.
-     * The file content is retrieved from the data blocks and written to an output CSV file.
+     * Writes the specified bytes to the specified blocks, one block after another, like writeBlocks(),
+     * but only the blocks whose content differs from the old bytes are written.
      *
-     * @param fileName the name of the file to be retrieved from the database
-     * @throws Exception if an error occurs while getting the file from the database
+     * @param before   the old bytes of the blocks; missing bytes are zero
+     * @param after    the new bytes
+     * @param blockIDs the IDs of the blocks, enough to hold the new bytes
+     * @throws IOException if an I/O error occurs while reading a block
      */
-    public void get(String fileName) throws Exception {
-        for (FCB fcb : this.fcbs) {
-            if (fcb.name.equals(Utils.parseInputFileName(fileName)) && fcb.type.equals(Utils.parseInputFileType(fileName))) {
-                Map<Integer, String> lines = new HashMap<>();
-                for (int blockID : fcb.dataBlocks) {
-                    Block block = this.blocks.get(blockID);
-                    for (DataEntry entry : block.getDataEntries()) {
-                        lines.put(entry.id, entry.val);
-                    }
-                }
-                String directory = "./src/com/neu/nosql/io/";
-                String outputPath = directory + "/" + fileName + ".output";
-                MovieWriter.writeToCSV(lines, outputPath);
+    private void writeChangedBlocks(byte[] before, byte[] after, List<Integer> blockIDs) throws IOException {
+        int blockSize = this.metadata.blockSize;
+        for (int i = 0; i < blockIDs.size(); i++) {
+            byte[] oldBytes = new byte[blockSize];
+            byte[] newBytes = new byte[blockSize];
+            System.arraycopy(before, Math.min(i * blockSize, before.length), oldBytes, 0, Math.max(0, Math.min(blockSize, before.length - i * blockSize)));
+            System.arraycopy(after, Math.min(i * blockSize, after.length), newBytes, 0, Math.max(0, Math.min(blockSize, after.length - i * blockSize)));
+            if (!Arrays.equals(oldBytes, newBytes)) {
+                pinForWrite(blockIDs.get(i)).setData(newBytes);
             }
         }
     }
 
     /**
-     * Removes the specified file from the database.
-     * The file's index blocks and data blocks are deleted, and the corresponding FCB is reset.
+     * Reads a page of the index of the file. Page i is stored in index block i / pagesPerBlock,
+     * at offset (i % pagesPerBlock) * pageSize.
      *
-     * @param fileName the name of the file to be removed from the database
-     * @throws Exception if an error occurs while removing the file from the database
+     * @param fcb      the FCB of the file
+     * @param pageSize the size of a page
+     * @param pageNo   the page number
+     * @return the bytes of the page
+     * @throws IOException if an I/O error occurs while reading the index block
      */
-    public void remove(String fileName) throws Exception {
-        for (int i = 0; i < this.fcbs.size(); i++) {
-            FCB fcb = this.fcbs.get(i);
-            if (fcb.name.equals(Utils.parseInputFileName(fileName)) && fcb.type.equals(Utils.parseInputFileType(fileName))) {
-                ArrayList<Integer> indexBlocks = fcb.indexBlocks;
-                for (int id : indexBlocks) {
-                    this.blocks.set(id, new Block());
-                    this.bitmap[id] = false;
+    private ByteBuffer readIndexPage(FCB fcb, int pageSize, int pageNo) throws IOException {
+        int pagesPerBlock = this.metadata.blockSize / pageSize;
+        int blockID = fcb.indexBlocks.get(pageNo / pagesPerBlock);
+        Block block = pin(blockID);
+        try {
+            return ByteBuffer.wrap(block.read(pageNo % pagesPerBlock * pageSize, pageSize));
+        } finally {
+            unpin(blockID);
+        }
+    }
+
+    /**
+     * The pages of the index of a file, for a change of the B+tree or the hash table by insert() or delete().
+     * The pages are read and written through the blocks of the current operation, not through the index cache,
+     * which is invalidated when the operation commits.
+     */
+    private final class IndexPages implements WritablePageStore {
+        private final FCB fcb;
+        private final int pageSize;
+
+        IndexPages(FCB fcb, int pageSize) {
+            this.fcb = fcb;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public ByteBuffer read(int pageNo) throws IOException {
+            return readIndexPage(fcb, pageSize, pageNo);
+        }
+
+        @Override
+        public void write(int pageNo, byte[] page) throws IOException {
+            int pagesPerBlock = metadata.blockSize / pageSize;
+            pinForWrite(fcb.indexBlocks.get(pageNo / pagesPerBlock)).writeAt(pageNo % pagesPerBlock * pageSize, page);
+        }
+
+        @Override
+        public int append(byte[] page) throws IOException {
+            int pageNo = nextPageNo();
+            if (pageNo == primaryBlocks(fcb) * (metadata.blockSize / pageSize)) {
+                // The last block of the index is full: a new one is added before the Bloom filter and the secondary index
+                int blockID = allocateBlocks(1).get(0);
+                pinForWrite(blockID).setData(new byte[metadata.blockSize]);
+                fcb.indexBlocks.add(primaryBlocks(fcb), blockID);
+                if (fcb.filterBlock != 0) {
+                    fcb.filterBlock++;
                 }
-                ArrayList<Integer> dataBlocks = fcb.indexBlocks;
-                for (int id : indexBlocks) {
-                    this.blocks.set(id, new Block());
-                    this.bitmap[id] = false;
+                if (fcb.secondaryColumn != 0) {
+                    fcb.secondaryBlock++;
                 }
+                fcb.markDirty();
+            }
+            write(pageNo, page);
+            return pageNo;
+        }
 
-                this.fcbs.set(i, new FCB());
-                break;
+        @Override
+        public int nextPageNo() throws IOException {
+            // Pages are never freed, so the pages of the index are the ones before the first empty page
+            int pagesPerBlock = metadata.blockSize / pageSize;
+            int last = primaryBlocks(fcb) - 1;
+            int pageNo = last * pagesPerBlock;
+            while (pageNo < (last + 1) * pagesPerBlock && BTreePage.magic(read(pageNo)) != 0) {
+                pageNo++;
             }
+            return pageNo;
         }
-        this.flush();
     }
 
     /**
-     * Finds the specified file from the database and returns the value associated with the given ID.
+     * Returns the pages of the index of the file in the specified FCB slot.
+     * The index is taken from the index cache, or cached on a miss.
      *
-     * @param fileName the name of the file to be searched
-     * @param id       the ID to be searched within the file
-     * @return the value associated with the given ID in the file, or null if not found
-     * @throws Exception if an error occurs while finding the file or ID
+     * @param fcbSlot the FCB slot of the file
+     * @return the pages of the index
+     * @throws IOException if an I/O error occurs while reading the index blocks
      */
-    public String find(String fileName, int id) throws Exception {
-        for (FCB fcb : this.fcbs) {
-            if (fcb.name.equals(Utils.parseInputFileName(fileName)) && fcb.type.equals(Utils.parseInputFileType(fileName))) {
-                int totalLength = 0;
-                for (int blockID : fcb.indexBlocks) {
-                    Block block = this.blocks.get(blockID);
-                    int validLength = block.getValidLength();
-                    totalLength += validLength;
-                }
+    private PageStore index(int fcbSlot) throws IOException {
+        IndexCache cache = IndexCache.getInstance();
+        PageStore pages = cache.get(this.path, fcbSlot);
+        if (pages != null) {
+            return pages;
+        }
+        FCB fcb = this.fcbs.get(fcbSlot);
+        byte magic = indexMagic(fcb);
+        boolean blockPages = magic == ExtendibleHash.MAGIC || PackedPage.isPacked(magic);
+        if (blockPages || magic == BTreePage.MAGIC || magic == BTreePage.BPLUS_MAGIC) {
+            // The pages of a hash table and packed pages are whole blocks, while fixed-size pages are packed into the blocks
+            int pageSize = blockPages ? this.metadata.blockSize : BTreePage.pageSize(degreeOf(fcb));
+            int pagesPerBlock = this.metadata.blockSize / pageSize;
+            return cache.put(this.path, fcbSlot, primaryBlocks(fcb) * pagesPerBlock, pageNo -> readIndexPage(fcb, pageSize, pageNo));
+        }
+        List<byte[]> converted = readSerializedIndex(fcb);
+        return cache.put(this.path, fcbSlot, converted.size(), pageNo -> ByteBuffer.wrap(converted.get(pageNo)));
+    }
 
-                byte[] result = new byte[totalLength];
-                int destPos = 0;
-                for (int blockID : fcb.indexBlocks) {
-                    Block block = this.blocks.get(blockID);
-                    int validLength = block.getValidLength();
-                    System.arraycopy(block.data, 0, result, destPos, validLength);
-                    destPos += validLength;
-                }
-                BTreeNode root = new BTreeSerializer().deserialize(new String(result));
-                int blockID = BTree.findKey(root, id);
-                Block block = this.blocks.get(blockID);
-                for (DataEntry entry : block.getDataEntries()) {
-                    if (entry.id == id) {
-                        return entry.val;
-                    }
-                }
+    /**
+     * Reads an index stored as a serialized string, which is how files put by older versions store it,
+     * and converts it to pages. The whole index is read and deserialized.
+     *
+     * @param fcb the FCB of the file
+     * @return the pages of the index
+     * @throws IOException if an I/O error occurs while reading the index blocks
+     */
+    private List<byte[]> readSerializedIndex(FCB fcb) throws IOException {
+        byte[] result = new byte[fcb.indexBlocks.size() * this.metadata.blockSize];
+        int destPos = 0;
+        for (int[] run : runs(fcb.indexBlocks)) {
+            for (Block block : pinRun(run[0], run[1])) {
+                int validLength = block.getValidLength();
+                System.arraycopy(block.getData(), 0, result, destPos, validLength);
+                destPos += validLength;
             }
+            unpinRun(run[0], run[1]);
+        }
+        BTreeNode root = new BTreeSerializer().deserialize(new String(result, 0, destPos));
+        return DiskBTree.toPages(root, BTree.MINIMUM_DEGREE);
+    }
+
+    /**
+     * Returns the FCB of the specified file in this database file.
+     * The FCB slot is taken from the manifest, so the FCBs are not searched.
+     *
+     * @param fileName the name of the file
+     * @return the FCB of the file, or null if the file is not in this database file
+     * @throws Exception if an error occurs while loading the manifest
+     */
+    private FCB lookup(String fileName) throws Exception {
+        Manifest.Entry entry = manifest(this.metadata.dbName).lookup(fileName);
+        if (entry == null || entry.suffix != this.metadata.suffix) {
+            return null;
         }
-        return null;
+        return this.fcbs.get(entry.fcbSlot);
     }
 
     /**
@@ -263,7 +1803,7 @@ public class DB {
     public static ArrayList<String> dir() throws Exception {
         ArrayList<String> ans = new ArrayList<>();
 
-        File[] files = new File("./src/com/neu/nosql/file/").listFiles();
+        File[] files = new File(FILE_DIR).listFiles();
         if (files != null) {
             for (File file : files) {
                 if (file.isFile()) {
@@ -275,19 +1815,41 @@ public class DB {
     }
 
     /**
-     * Kills (deletes) all the database files with the specified name.
+     * Lists the files stored in the specified database, as recorded in its manifest.
+     * The database files are not read.
+     *
+     * @param dbName the name of the database
+     * @return the list of stored files, with their database file and sizes
+     * @throws Exception if an error occurs while loading the manifest
+     */
+    public static ArrayList<String> dir(String dbName) throws Exception {
+        ArrayList<String> ans = new ArrayList<>();
+        for (Manifest.Entry entry : manifest(dbName).entries()) {
+            ans.add(entry.toString());
+        }
+        return ans;
+    }
+
+    /**
+     * Kills (deletes) all the database files with the specified name, its write-ahead log and its manifest.
      *
      * @param dbName the name of the database to be killed
      * @throws Exception if an error occurs while killing the database
      */
-    public void kill(String dbName) throws Exception {
-        File directory = new File("./src/com/neu/nosql/file/");
+    public static synchronized void kill(String dbName) throws Exception {
+        registry.remove(dbName);
+        manifests.remove(dbName);
+        WriteAheadLog.drop(dbName);
+        Manifest.delete(dbName);
+        File directory = new File(FILE_DIR);
         if (directory.exists() && directory.isDirectory()) {
             File[] files = directory.listFiles();
 
             if (files != null) {
                 for (File file : files) {
                     if (file.isFile() && isMatchingFile(file, dbName)) {
+                        BufferPool.getInstance().drop(FILE_DIR + file.getName());
+                        IndexCache.getInstance().drop(FILE_DIR + file.getName());
                         file.delete();
                     }
                 }
@@ -299,25 +1861,32 @@ public class DB {
      * Creates a new database with the specified name and suffix.
      * Initializes the blocks, FCBs, metadata, and bitmap for the new database.
      *
-     * @param dbName the name of the new database
-     * @param suffix the suffix of the new database
+     * @param dbName     the name of the new database
+     * @param suffix     the suffix of the new database
+     * @param blockSize  the size of a block in bytes
+     * @param blockCount the number of blocks of the database file
      * @return the newly created database
+     * @throws Exception if an error occurs while mapping the new database file
      */
-    private static DB newDB(String dbName, int suffix) {
+    private static DB newDB(String dbName, int suffix, int blockSize, int blockCount) throws Exception {
         DB db = new DB();
+        db.path = segmentPath(dbName, suffix);
 
-        for (int i = 0; i < BLOCK_CNT; i++) {
-            db.blocks.add(new Block());
-        }
         for (int i = 0; i < FCB_SIZE; i++) {
             db.fcbs.add(new FCB());
         }
 
-        db.metadata = new Metadata(dbName, suffix);
+        db.metadata = new Metadata(dbName, suffix, blockSize, blockCount);
+        db.metadataDirty = true;
 
-        Arrays.fill(db.bitmap, 0, METADATA_BLOCK_CNT + BITMAP_BLOCK_CNT, true);
+        db.bitmap = new BitMap(blockCount);
+        db.bitmap.set(0, METADATA_BLOCK_CNT + db.metadata.bitmapBlockCount());
+        db.bitmapDirty = true;
 
         db.flush();
+        if (mmapMode) {
+            return openMapped(db.path);
+        }
         return db;
     }
 
@@ -327,31 +1896,37 @@ public class DB {
      * @return the number of empty blocks
      */
     public int countEmptyBlock() {
-        int cnt = 0;
-        for (int i = 11; i < this.bitmap.length; i++) {
-            if (!this.bitmap[i]) {
-                cnt++;
-            }
-        }
-        return cnt;
+        return this.bitmap.countClear(this.metadata.headerBlockCount(), this.metadata.blockCount);
     }
 
     /**
      * Allocates the specified number of blocks from the database.
      * Returns the block IDs of the allocated blocks.
+     * The blocks are allocated as one contiguous extent if there is a free run that is long enough,
+     * so that they can be read with one sequential read; otherwise the first free blocks are allocated.
      *
      * @param num the number of blocks to allocate
      * @return the list of block IDs of the allocated blocks
      */
     public ArrayList<Integer> allocateBlocks(int num) {
         ArrayList<Integer> blocks = new ArrayList<>();
-        for (int i = 11; i < this.bitmap.length && num > 0; i++) {
-            if (!this.bitmap[i]) {
+        if (num <= 0) {
+            return blocks;
+        }
+        int start = this.bitmap.findExtent(this.metadata.headerBlockCount(), num);
+        if (start >= 0) {
+            for (int i = start; i < start + num; i++) {
                 blocks.add(i);
-                this.bitmap[i] = true;
+                this.bitmap.set(i);
+            }
+        } else {
+            for (int i = this.bitmap.nextClearBit(this.metadata.headerBlockCount()); i >= 0 && num > 0; i = this.bitmap.nextClearBit(i + 1)) {
+                blocks.add(i);
+                this.bitmap.set(i);
                 num--;
             }
         }
+        this.bitmapDirty = true;
         return blocks;
     }
 
@@ -362,125 +1937,454 @@ public class DB {
      * @return the index of the next available FCB, or -1 if no FCB is available
      */
     public int nextFCB() {
-        for (int i = 3; i < 11; i++) {
-            if (!this.bitmap[i]) {
-                this.bitmap[i] = true;
-                return i;
-            }
+        int i = this.bitmap.nextClearBit(fcbBlock(0));
+        if (i < 0 || i >= fcbBlock(FCB_SIZE)) {
+            return -1;
         }
-        return -1;
+        this.bitmap.set(i);
+        this.bitmapDirty = true;
+        return i;
     }
 
     /**
      * Selects a database file with the specified name and file name.
-     * Returns the database file that has enough empty blocks to store the file.
+     * Returns the first database file that has a free FCB and enough empty blocks to store the file,
+     * or a new database file if there is none. The free space is computed from the manifest.
+     * The CSV file is not read here, so that a put reads it once: the number of blocks it takes is estimated
+     * from its size, as a slotted data block holds about a block of rows, and a put that runs out of blocks
+     * is moved to a database file with more empty blocks (see put()).
      *
      * @param dbName   the name of the database
      * @param fileName the name of the file to be stored
-     * @return the database file that has enough empty blocks to store the file
+     * @return the database file that is expected to have enough empty blocks to store the file
      * @throws Exception if an error occurs while selecting the database file
      */
-    public static DB selectDBFile(String dbName, String fileName) throws Exception {
-        int blockNeeded = calcBlockNeeded(fileName);
-        DB db = null;
-        for (int i = 0; ; i++) {
-            db = open(dbName, i);
-            if (db.countEmptyBlock() >= blockNeeded) {
-                break;
+    public static synchronized DB selectDBFile(String dbName, String fileName) throws Exception {
+        Metadata geometry = open(dbName, 0).metadata;
+        int capacity = geometry.blockCount - geometry.headerBlockCount();
+        long blockNeeded = (Files.size(Paths.get("./src/com/neu/nosql/io/" + fileName)) + geometry.blockSize - 1) / geometry.blockSize;
+        Manifest manifest = manifest(dbName);
+        for (int i = 0; i < manifest.getSegmentCount(); i++) {
+            if (manifest.countFreeFCB(i) > 0 && capacity - manifest.countUsedBlock(i) >= blockNeeded) {
+                return open(dbName, i);
             }
         }
-        return db;
+        return open(dbName, manifest.getSegmentCount());
     }
 
     /**
-     * Calculates the number of blocks needed to store the specified file.
+     * Selects a database file for a put that ran out of blocks in the specified database file:
+     * the first other database file with a free FCB and more empty blocks, or a new database file.
+     * Each database file tried has more empty blocks than the previous one, so a put ends in an empty database file at worst.
      *
+     * @param dbName   the name of the database
      * @param fileName the name of the file to be stored
-     * @return the number of blocks needed to store the file
+     * @param full     the database file the file didn't fit in, after its put was rolled back
+     * @return the database file with more empty blocks
+     * @throws IllegalArgumentException if the file didn't fit in an empty database file
+     * @throws Exception if an error occurs while opening the database file
+     */
+    private static synchronized DB selectLargerDBFile(String dbName, String fileName, DB full) throws Exception {
+        int capacity = full.metadata.blockCount - full.metadata.headerBlockCount();
+        int free = full.countEmptyBlock();
+        if (free >= capacity) {
+            throw new IllegalArgumentException("File is too large for a database file: " + fileName);
+        }
+        Manifest manifest = manifest(dbName);
+        for (int i = 0; i < manifest.getSegmentCount(); i++) {
+            if (i != full.metadata.suffix && manifest.countFreeFCB(i) > 0 && capacity - manifest.countUsedBlock(i) > free) {
+                return open(dbName, i);
+            }
+        }
+        return open(dbName, manifest.getSegmentCount());
+    }
+
+    /**
+     * Thrown when a database file has no free block or FCB left for a put, which is then done in another database file.
+     */
+    private static final class OutOfBlocksException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        OutOfBlocksException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The stage of put that packs the rows of a CSV file into data blocks as they are read.
+     * Only the current data block and the keys with their block IDs are kept in memory, not the rows,
+     * and the ingest stops as soon as the file has more data blocks than an FCB can hold,
+     * so the memory used is bounded by the size of an FCB whatever the size of the CSV file.
+     *
+     * The keys are usually in ascending order in the file, and always are when the file is parsed in parallel;
+     * they are then checked for duplicates with a binary search; once a key is out of order, the keys are looked up in a hash map from then on.
+     * A row with the ID of an earlier row replaces it, as in readMoviesFromCSV(): the earlier entry is cleared.
+     *
+     * The rows are added to the current data block, a slotted page, as long as they fit, and a value too long
+     * for a block is written to an overflow chain of its own. When the database file has no free block left,
+     * the ingest throws OutOfBlocksException, and put moves the file to a database file with more empty blocks.
      */
-    private static int calcBlockNeeded(String fileName) {
-        Map<Integer, String> lines = MovieReader.readMoviesFromCSV("./src/com/neu/nosql/io/" + fileName);
+    private static final class Ingest implements MovieReader.RowVisitor {
+        private final DB db;
+        private final int blockSize;
+        private final int secondaryColumn;
+        final InvertedIndex.Builder secondary;
+        final ArrayList<Integer> dataBlocks = new ArrayList<>(); // 包括overflow block
+        private Block block; // 当前data block
+        private int blockID = -1;
+        private int count; // 读到的行数, 包括被替换的行
+        private int[] ids = new int[64];
+        private int[] blockIDs = new int[64]; // 每一行所在的data block, -1表示已被替换
+        private Map<Integer, Integer> positions; // key在ids中的位置, key乱序后才建立
+        int[] keys; // finish()之后按升序排列的key
+        int[] vals; // finish()之后每个key所在的data block
+
+        Ingest(DB db, int blockSize, int secondaryColumn) {
+            this.db = db;
+            this.blockSize = blockSize;
+            this.secondaryColumn = secondaryColumn;
+            this.secondary = secondaryColumn == 0 ? null : new InvertedIndex.Builder(secondaryColumn);
+        }
+
+        @Override
+        public void visit(int id, String val, String[] parts) throws IOException {
+            int earlier = positionOf(id);
+            if (earlier >= 0) {
+                Block old = blockIDs[earlier] == blockID ? block : db.pinForWrite(blockIDs[earlier]);
+                int slot = old.slotOf(id);
+                if (old.overflowAt(slot) >= 0) {
+                    db.freeChain(dataBlocks, old.overflowAt(slot));
+                }
+                old.clearEntry(slot);
+                blockIDs[earlier] = -1;
+                if (secondary != null) {
+                    secondary.remove(id);
+                }
+            }
+            byte[] bytes = val.getBytes();
+            if (block == null || !block.hasRoom(bytes.length)) {
+                nextBlock();
+            }
+            if (bytes.length > Block.maxValueLength(blockSize)) {
+                block.addOverflow(id, writeChain(bytes));
+            } else {
+                block.add(id, bytes);
+            }
+            add(id, blockID);
+            if (secondary != null) {
+                secondary.add(id, parts[secondaryColumn], blockID);
+                if (secondary.size() > FCB.maxIndexBlocks(blockSize) * blockSize) {
+                    throw new IllegalArgumentException("Index is too large for an FCB: " + secondary.size() + " bytes");
+                }
+            }
+        }
+
+        /**
+         * Reads the rows of a CSV file of the io directory, from one thread or with several threads
+         * as set by setIngestParallelism(), and finishes the ingest.
+         *
+         * @param fileName the name of the CSV file
+         * @throws IOException if an I/O error occurs while reading the file or writing the blocks
+         */
+        void read(String fileName) throws IOException {
+            String filePath = "./src/com/neu/nosql/io/" + fileName;
+            if (ingestParallelism > 1) {
+                MovieReader.readMoviesParallel(filePath, ingestParallelism, this);
+            } else {
+                MovieReader.readMovies(filePath, ingestBufferSize, this);
+            }
+            finish();
+        }
+
+        /**
+         * Sorts the keys that were not replaced with their block IDs into keys and vals.
+         */
+        void finish() {
+            long[] pairs = new long[count];
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                if (blockIDs[i] >= 0) {
+                    pairs[n++] = (long) ids[i] << 32 | blockIDs[i]; // block ID不为负, 按key排序
+                }
+            }
+            if (positions != null) {
+                Arrays.sort(pairs, 0, n);
+            }
+            keys = new int[n];
+            vals = new int[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = (int) (pairs[i] >> 32);
+                vals[i] = (int) pairs[i];
+            }
+        }
+
+        /**
+         * Starts a new data block, formatted as an empty slotted page.
+         */
+        private void nextBlock() throws IOException {
+            blockID = takeBlock();
+            block = db.pinForWrite(blockID);
+            block.format();
+        }
+
+        /**
+         * Writes a value that is too long for a data block to a new overflow chain.
+         *
+         * @param value the value
+         * @return the ID of the first block of the chain
+         */
+        private int writeChain(byte[] value) throws IOException {
+            int capacity = Block.overflowCapacity(blockSize);
+            int[] chain = new int[(value.length + capacity - 1) / capacity];
+            for (int i = 0; i < chain.length; i++) {
+                chain[i] = takeBlock();
+            }
+            for (int i = 0; i < chain.length; i++) {
+                int length = Math.min(capacity, value.length - i * capacity);
+                db.pinForWrite(chain[i]).formatOverflow(i + 1 < chain.length ? chain[i + 1] : -1, value, i * capacity, length);
+            }
+            return chain[0];
+        }
+
+        /**
+         * Takes a block for the file, the block after the last one when it is free, so that the data blocks stay contiguous.
+         */
+        private int takeBlock() {
+            if (dataBlocks.size() == FCB.maxDataBlocks(blockSize)) {
+                throw new IllegalArgumentException("File is too large for an FCB: more than " + dataBlocks.size() + " data blocks");
+            }
+            int next = dataBlocks.isEmpty() ? -1 : dataBlocks.get(dataBlocks.size() - 1) + 1;
+            if (next < 0 || next >= db.metadata.blockCount || db.bitmap.get(next)) {
+                ArrayList<Integer> free = db.allocateBlocks(1);
+                if (free.isEmpty()) {
+                    throw new OutOfBlocksException("No free data block in " + db.path);
+                }
+                next = free.get(0);
+            } else {
+                db.bitmap.set(next);
+                db.bitmapDirty = true;
+            }
+            dataBlocks.add(next);
+            return next;
+        }
+
+        /**
+         * Returns the position of a key that was read before and not replaced, or -1.
+         */
+        private int positionOf(int id) {
+            if (positions != null) {
+                return positions.getOrDefault(id, -1);
+            }
+            if (count == 0 || id > ids[count - 1]) {
+                return -1;
+            }
+            return Math.max(-1, Arrays.binarySearch(ids, 0, count, id));
+        }
 
-        int dataBlockNum = lines.size() / BLOCK_ENTRY_NUM;
-        if (lines.size() % BLOCK_ENTRY_NUM != 0) {
-            dataBlockNum++;
+        /**
+         * Records the position of a new key, switching to the hash map when the key is not greater than the last one.
+         */
+        private void add(int id, int blockID) {
+            if (positions == null && count > 0 && id <= ids[count - 1]) {
+                positions = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    if (blockIDs[i] >= 0) {
+                        positions.put(ids[i], i);
+                    }
+                }
+            }
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * count);
+                blockIDs = Arrays.copyOf(blockIDs, 2 * count);
+            }
+            ids[count] = id;
+            blockIDs[count] = blockID;
+            if (positions != null) {
+                positions.put(id, count);
+            }
+            count++;
         }
+    }
 
-        BTree bTree = new BTree();
-        for (Map.Entry<Integer, String> line : lines.entrySet()) {
-            bTree.insert(line.getKey(), -1);
+    /**
+     * Returns the column of the secondary index of a new file.
+     *
+     * @param column the name of the column, or null for no secondary index
+     * @return the index of the column, or 0 for no secondary index
+     * @throws IllegalArgumentException if there is no such column, or it is the ID column
+     */
+    private static int secondaryColumn(String column) {
+        if (column == null) {
+            return 0;
         }
-        byte[] indexBytes = new BTreeSerializer().serialize(bTree.getRoot()).getBytes();
-        int indexBlockNum = indexBytes.length / BLOCK_SIZE;
-        if (indexBytes.length % BLOCK_SIZE != 0) {
-            indexBlockNum++;
+        int i = MovieReader.columnOf(column);
+        if (i <= 0) {
+            throw new IllegalArgumentException("Cannot index column: " + column);
         }
+        return i;
+    }
 
-        return dataBlockNum + indexBlockNum;
+    /**
+     * Returns the minimum degree of the index of a new file. By default the index has packed pages of one block,
+     * which hold as many keys as fit and have no degree.
+     *
+     * @param degree    the requested minimum degree, or 0 for the default
+     * @param blockSize the block size of the database
+     * @return the minimum degree of the index, or 0 for packed pages
+     * @throws IllegalArgumentException if a node of the requested degree doesn't fit in a block
+     */
+    private static int indexDegree(int degree, int blockSize) {
+        int maxDegree = BTreePage.maxDegree(blockSize);
+        if (degree == 0) {
+            return 0;
+        }
+        if (degree < 2 || degree > maxDegree) {
+            throw new IllegalArgumentException("Index degree must be between 2 and " + maxDegree + ": " + degree);
+        }
+        return degree;
     }
 
     /**
      * Locates the database file with the specified name and file name.
      * Returns the database file that contains the specified file.
+     * The database file is looked up in the manifest, so no FCBs are searched.
      *
      * @param dbName   the name of the database
      * @param fileName the name of the file to be located
      * @return the database file that contains the specified file
      * @throws Exception if an error occurs while locating the database file
      */
-    public static DB locateDB(String dbName, String fileName) throws Exception {
-        DB db = null;
-        for (int i = 0; ; i++) {
-            String dbPath = "./src/com/neu/nosql/file/" + dbName + ".db" + i;
-            if (Files.notExists(Paths.get(dbPath))) {
-                break;
-            }
-            db = open(dbName, i);
-            for (FCB fcb : db.fcbs) {
-                if (fcb.name.equals(Utils.parseInputFileName(fileName)) && fcb.type.equals(Utils.parseInputFileType(fileName))) {
-                    return db;
-                }
-            }
+    public static synchronized DB locateDB(String dbName, String fileName) throws Exception {
+        Manifest.Entry entry = manifest(dbName).lookup(fileName);
+        if (entry == null) {
+            return null;
         }
-        return null;
+        return open(dbName, entry.suffix);
+    }
+
+    /**
+     * Returns the number of bytes written to disk by the last flush of this database file.
+     *
+     * @return the number of bytes written by the last flush
+     */
+    public long getLastFlushBytes() {
+        return lastFlushBytes;
+    }
+
+    /**
+     * Returns the number of blocks committed to the write-ahead log by the last operation on this database file,
+     * including the header blocks it changed.
+     *
+     * @return the number of blocks logged by the last commit
+     */
+    public int getLastCommitBlocks() {
+        return lastCommitBlocks;
     }
 
     /**
-     * Flushes the current state of the database to disk.
-     * The method writes the metadata, bitmap, file control blocks (FCBs), and blocks to the database file.
-     * The database file is named according to the database name and suffix.
-     * The file is written using a ByteBuffer and FileChannel for efficient I/O operations.
+     * Returns the number of bytes written to disk by all flushes in this process.
+     *
+     * @return the total number of bytes written by flushes
      */
-    private void flush() {
-        String fileName = "./src/com/neu/nosql/file/" + this.metadata.dbName + ".db" + this.metadata.suffix;
-        try (FileOutputStream fos = new FileOutputStream(fileName);
-             FileChannel channel = fos.getChannel()) {
+    public static long getTotalFlushBytes() {
+        return totalFlushBytes;
+    }
 
-            ByteBuffer buffer = ByteBuffer.allocate(FILE_SIZE);
+    /**
+     * Returns the number of finds in this process answered by the Bloom filter of the file,
+     * without reading the index or the data of the file.
+     *
+     * @return the number of finds skipped by Bloom filters
+     */
+    public static long getFilterSkips() {
+        return filterSkips;
+    }
 
+    /**
+     * Flushes the modified parts of the database to disk. This is the checkpoint of the database file:
+     * it is called by the write-ahead log, after the changes have been committed to the log.
+     * Only the header blocks (metadata, bitmap, FCBs) and the blocks that are marked dirty are written,
+     * each at its own position of the database file, so a small change writes a few blocks
+     * instead of the whole file. The dirty blocks are written back by the buffer pool.
+     * A mapped database file already holds the blocks, so the dirty header blocks are written
+     * into the mapping before it is forced to disk.
+     * Everything written is forced to disk before flush() returns, since the log is truncated afterwards.
+     * The number of bytes written is recorded in lastFlushBytes.
+     *
+     * @throws IOException if an I/O error occurs while writing or forcing the database file
+     */
+    void flush() throws IOException {
+        int blockSize = this.metadata.blockSize;
+        long written = 0;
+        try (FileChannel channel = this.mapped == null ?
+                FileChannel.open(Paths.get(this.path), StandardOpenOption.CREATE, StandardOpenOption.WRITE) : null) {
             // Write metadata
-            byte[] metadataBytes = Metadata.serialize(this.metadata);
-            buffer.put(metadataBytes);
+            if (this.metadataDirty) {
+                written += writeAt(channel, Metadata.serialize(this.metadata), 0);
+                this.metadataDirty = false;
+            }
 
             // Write bitmap
-            byte[] bitmapBytes = BitMap.serializeBitmap(this.bitmap);
-            buffer.put(bitmapBytes);
+            if (this.bitmapDirty) {
+                written += writeAt(channel, this.bitmap.serialize(), (long) METADATA_BLOCK_CNT * blockSize);
+                this.bitmapDirty = false;
+            }
 
             // Write FCBs
-            for (FCB fcb : this.fcbs) {
-                byte[] fcbBytes = FCB.serialize(fcb);
-                buffer.put(fcbBytes);
+            for (int i = 0; i < FCB_SIZE; i++) {
+                FCB fcb = this.fcbs.get(i);
+                if (fcb.isDirty()) {
+                    written += writeAt(channel, FCB.serialize(fcb, blockSize), (long) fcbBlock(i) * blockSize);
+                    fcb.markClean();
+                }
             }
 
-            // Write blocks
-            for (int i = 11; i < BLOCK_CNT; i++) {
-                buffer.put(this.blocks.get(i).data);
+            // Write dirty blocks
+            if (channel != null) {
+                written += BufferPool.getInstance().flush(this.path);
+            } else {
+                for (int i = this.metadata.headerBlockCount(); i < this.metadata.blockCount; i++) {
+                    Block block = this.blocks.get(i);
+                    if (block != null && block.isDirty()) {
+                        written += blockSize;
+                        block.markClean();
+                    }
+                }
             }
 
-            buffer.flip();
-            channel.write(buffer);
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (channel != null) {
+                // A new database file is extended to its full size
+                if (channel.size() < this.metadata.fileSize()) {
+                    channel.write(ByteBuffer.allocate(1), this.metadata.fileSize() - 1);
+                }
+                channel.force(false);
+            } else {
+                this.mapped.force();
+            }
+        }
+        this.lastFlushBytes = written;
+        totalFlushBytes += written;
+    }
+
+    /**
+     * Writes the given bytes at the specified position of the database file.
+     * For a mapped database file the bytes are put into the mapping instead.
+     *
+     * @param channel  the channel of the database file, or null if the file is mapped
+     * @param bytes    the bytes to be written
+     * @param position the position in the database file
+     * @return the number of bytes written
+     * @throws IOException if an I/O error occurs
+     */
+    private long writeAt(FileChannel channel, byte[] bytes, long position) throws IOException {
+        if (channel == null) {
+            this.mapped.put((int) position, bytes);
+            return bytes.length;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
         }
+        return bytes.length;
     }
 }
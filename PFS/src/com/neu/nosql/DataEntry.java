@@ -15,6 +15,7 @@ package com.neu.nosql;
  * - The first 4 bytes represent the ID, stored as an integer.
  * - The next 40 bytes represent the value, stored as a string.
  * - If the value is shorter than 40 bytes, the remaining bytes are padded with null characters.
+ * This is the format of the data blocks written by older versions; newer data blocks are slotted pages (see Block).
  *
  * The class also includes utility methods for converting between integers and byte arrays.
  * These methods are used internally during serialization and deserialization.
@@ -3,10 +3,12 @@ package com.neu.nosql;
 import java.io.*;
 import java.util.ArrayList;
 
+import static com.neu.nosql.DB.BLOCK_SIZE;
+
 /**
  * This class represents the file control block (FCB) of a file.
  * The FCB contains metadata and structural information about a file,
- * including its name, type, index blocks, and data blocks.
+ * including its name, type, the minimum degree of its index, its Bloom filter and secondary index, index blocks, and data blocks.
  * It provides methods to serialize and deserialize FCB objects to/from byte arrays.
  */
 public class FCB {
@@ -14,11 +16,20 @@ public class FCB {
     public String type;
     public ArrayList<Integer> indexBlocks;
     public ArrayList<Integer> dataBlocks;
+    public int degree = 0; // index的B+tree的最小度数, 0表示压缩的page或按旧版本的默认度数写入
+    public int secondaryColumn = 0; // 二级索引的列, 0表示没有二级索引
+    public int secondaryBlock = 0; // 二级索引在indexBlocks中的起始位置
+    public int filterBlock = 0; // Bloom filter在indexBlocks中的起始位置, 0表示没有Bloom filter
 
     private static final int NAME_SIZE = 20;
-    private static final int TYPE_SIZE = 10;
-    private static final int INDEX_BLOCK_SIZE = 50;
-    private static final int DATA_BLOCK_SIZE = 176;
+    private static final int TYPE_SIZE = 3;
+    private static final int DEGREE_SIZE = 2;
+    private static final int SECONDARY_SIZE = 3;
+    private static final int FILTER_SIZE = 2;
+    private static final int HEADER_SIZE = NAME_SIZE + TYPE_SIZE + DEGREE_SIZE + SECONDARY_SIZE + FILTER_SIZE;
+    private static final int INDEX_BLOCK_SIZE = 50; // 每256 bytes的block中index block列表占用的bytes
+
+    private boolean dirty = true; // 新建的FCB需要flush，从磁盘反序列化的FCB是干净的
 
     /**
      * Constructs an FCB object with default values.
@@ -48,20 +59,59 @@ public class FCB {
     }
 
     /**
-     * Serializes the FCB object to a byte array.
-     * The serialization format is as follows:
-     * - The first 20 bytes represent the file name, padded with null bytes if necessary.
-     * - The next 10 bytes represent the file type, padded with null bytes if necessary.
-     * - The next 50 bytes represent the index blocks, where the first 4 bytes indicate the number of index blocks,
-     *   followed by the index block numbers, each occupying 4 bytes.
-     * - The last 176 bytes represent the data blocks, where the first 4 bytes indicate the number of data blocks,
-     *   followed by the data block numbers, each occupying 4 bytes.
+     * Constructs an FCB object with the specified name, type, index degree, index blocks, and data blocks.
+     *
+     * @param name        the name of the file
+     * @param type        the type of the file
+     * @param degree      the minimum degree of the index of the file
+     * @param indexBlocks the list of index block numbers associated with the file
+     * @param dataBlocks  the list of data block numbers associated with the file
+     */
+    public FCB(String name, String type, int degree, ArrayList<Integer> indexBlocks, ArrayList<Integer> dataBlocks) {
+        this(name, type, indexBlocks, dataBlocks);
+        this.degree = degree;
+    }
+
+    /**
+     * Serializes the FCB object to a byte array of BLOCK_SIZE bytes.
      *
      * @param fcb the FCB object to be serialized
      * @return the serialized byte array
      * @throws IOException if an I/O error occurs during serialization
      */
     public static byte[] serialize(FCB fcb) throws IOException {
+        return serialize(fcb, BLOCK_SIZE);
+    }
+
+    /**
+     * Serializes the FCB object to a byte array of one block.
+     * The serialization format is as follows:
+     * - The first 20 bytes represent the file name, padded with null bytes if necessary.
+     * - The next 3 bytes represent the file type, i.e. csv.
+     * - The next 2 bytes represent the minimum degree of the index. Files put before the degree was stored
+     *   have 0 here, as these bytes were the end of a 10-byte type field.
+     * - The next 3 bytes represent the secondary index: 1 byte for its column, 0 if there is none,
+     *   and 2 bytes for the position of its first block in the index block list. Older files have 0 here too.
+     * - The next 2 bytes represent the position of the first block of the Bloom filter in the index block list,
+     *   or 0 if the file has no Bloom filter, as with older files.
+     * - The next 50 bytes per 256 bytes of block size represent the index blocks, where the first 4 bytes
+     *   indicate the number of index blocks, followed by the index block numbers, each occupying 4 bytes.
+     * - The remaining bytes (176 bytes for a 256-byte block) represent the data blocks, where the first 4 bytes
+     *   indicate the number of data blocks, followed by the data block numbers, each occupying 4 bytes.
+     *
+     * @param fcb       the FCB object to be serialized
+     * @param blockSize the block size of the database file
+     * @return the serialized byte array
+     * @throws IOException if an I/O error occurs during serialization
+     * @throws IllegalArgumentException if the block lists don't fit in the FCB
+     */
+    public static byte[] serialize(FCB fcb, int blockSize) throws IOException {
+        int indexBlockSize = indexBlockSize(blockSize);
+        int dataBlockSize = blockSize - HEADER_SIZE - indexBlockSize;
+        if (4 * (1 + fcb.indexBlocks.size()) > indexBlockSize || 4 * (1 + fcb.dataBlocks.size()) > dataBlockSize) {
+            throw new IllegalArgumentException("Too many blocks for the FCB of " + fcb.name);
+        }
+
         ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
         DataOutputStream dataOut = new DataOutputStream(byteOut);
 
@@ -77,8 +127,18 @@ public class FCB {
         System.arraycopy(typeBytesData, 0, typeBytes, 0, Math.min(typeBytesData.length, TYPE_SIZE));
         dataOut.write(typeBytes);
 
+        // 序列化 degree
+        dataOut.writeShort(fcb.degree);
+
+        // 序列化 secondary index
+        dataOut.writeByte(fcb.secondaryColumn);
+        dataOut.writeShort(fcb.secondaryBlock);
+
+        // 序列化 Bloom filter
+        dataOut.writeShort(fcb.filterBlock);
+
         // 序列化 indexBlocks
-        byte[] indexBlockBytes = new byte[INDEX_BLOCK_SIZE];
+        byte[] indexBlockBytes = new byte[indexBlockSize];
         ByteArrayOutputStream indexBlockOut = new ByteArrayOutputStream();
         DataOutputStream indexBlockDataOut = new DataOutputStream(indexBlockOut);
         indexBlockDataOut.writeInt(fcb.indexBlocks.size());
@@ -86,11 +146,11 @@ public class FCB {
             indexBlockDataOut.writeInt(block);
         }
         byte[] indexBlockData = indexBlockOut.toByteArray();
-        System.arraycopy(indexBlockData, 0, indexBlockBytes, 0, Math.min(indexBlockData.length, INDEX_BLOCK_SIZE));
+        System.arraycopy(indexBlockData, 0, indexBlockBytes, 0, Math.min(indexBlockData.length, indexBlockSize));
         dataOut.write(indexBlockBytes);
 
         // 序列化 dataBlocks
-        byte[] dataBlockBytes = new byte[DATA_BLOCK_SIZE];
+        byte[] dataBlockBytes = new byte[dataBlockSize];
         ByteArrayOutputStream dataBlockOut = new ByteArrayOutputStream();
         DataOutputStream dataBlockDataOut = new DataOutputStream(dataBlockOut);
         dataBlockDataOut.writeInt(fcb.dataBlocks.size());
@@ -98,7 +158,7 @@ public class FCB {
             dataBlockDataOut.writeInt(block);
         }
         byte[] dataBlockData = dataBlockOut.toByteArray();
-        System.arraycopy(dataBlockData, 0, dataBlockBytes, 0, Math.min(dataBlockData.length, DATA_BLOCK_SIZE));
+        System.arraycopy(dataBlockData, 0, dataBlockBytes, 0, Math.min(dataBlockData.length, dataBlockSize));
         dataOut.write(dataBlockBytes);
 
         dataOut.close();
@@ -108,12 +168,15 @@ public class FCB {
     /**
      * Deserializes the FCB object from a byte array.
      * The deserialization process assumes the byte array follows the format described in the `serialize` method.
+     * The length of the byte array is the block size of the database file.
      *
      * @param data the byte array to be deserialized
      * @return the deserialized FCB object
      * @throws IOException if an I/O error occurs during deserialization
      */
     public static FCB deserialize(byte[] data) throws IOException {
+        int indexBlockSize = indexBlockSize(data.length);
+        int dataBlockSize = data.length - HEADER_SIZE - indexBlockSize;
         ByteArrayInputStream byteIn = new ByteArrayInputStream(data);
         DataInputStream dataIn = new DataInputStream(byteIn);
 
@@ -127,8 +190,18 @@ public class FCB {
         dataIn.readFully(typeBytes);
         String type = new String(typeBytes).trim();
 
+        // 反序列化 degree
+        int degree = dataIn.readShort();
+
+        // 反序列化 secondary index
+        int secondaryColumn = dataIn.readUnsignedByte();
+        int secondaryBlock = dataIn.readUnsignedShort();
+
+        // 反序列化 Bloom filter
+        int filterBlock = dataIn.readUnsignedShort();
+
         // 反序列化 indexBlocks
-        byte[] indexBlockBytes = new byte[INDEX_BLOCK_SIZE];
+        byte[] indexBlockBytes = new byte[indexBlockSize];
         dataIn.readFully(indexBlockBytes);
         ByteArrayInputStream indexBlockIn = new ByteArrayInputStream(indexBlockBytes);
         DataInputStream indexBlockDataIn = new DataInputStream(indexBlockIn);
@@ -139,7 +212,7 @@ public class FCB {
         }
 
         // 反序列化 dataBlocks
-        byte[] dataBlockBytes = new byte[DATA_BLOCK_SIZE];
+        byte[] dataBlockBytes = new byte[dataBlockSize];
         dataIn.readFully(dataBlockBytes);
         ByteArrayInputStream dataBlockIn = new ByteArrayInputStream(dataBlockBytes);
         DataInputStream dataBlockDataIn = new DataInputStream(dataBlockIn);
@@ -150,7 +223,66 @@ public class FCB {
         }
 
         dataIn.close();
-        return new FCB(name, type, indexBlocks, dataBlocks);
+        FCB fcb = new FCB(name, type, degree, indexBlocks, dataBlocks);
+        fcb.secondaryColumn = secondaryColumn;
+        fcb.secondaryBlock = secondaryBlock;
+        fcb.filterBlock = filterBlock;
+        fcb.markClean();
+        return fcb;
+    }
+
+    /**
+     * Returns the number of bytes of the index block list in an FCB of the specified block size.
+     * The list grows with the block size, 50 bytes per 256 bytes.
+     *
+     * @param blockSize the block size of the database file
+     * @return the size of the index block list in bytes
+     */
+    private static int indexBlockSize(int blockSize) {
+        return INDEX_BLOCK_SIZE * (blockSize / BLOCK_SIZE);
+    }
+
+    /**
+     * Returns the maximum number of data blocks an FCB of the specified block size can hold.
+     *
+     * @param blockSize the block size of the database file
+     * @return the maximum number of data blocks
+     */
+    public static int maxDataBlocks(int blockSize) {
+        return (blockSize - HEADER_SIZE - indexBlockSize(blockSize)) / 4 - 1;
+    }
+
+    /**
+     * Returns the maximum number of index blocks an FCB of the specified block size can hold.
+     *
+     * @param blockSize the block size of the database file
+     * @return the maximum number of index blocks
+     */
+    public static int maxIndexBlocks(int blockSize) {
+        return indexBlockSize(blockSize) / 4 - 1;
+    }
+
+    /**
+     * Checks if the FCB has been created or modified since it was last flushed.
+     *
+     * @return true if the FCB is dirty, false otherwise
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Marks the FCB as modified, so that the next flush writes it.
+     */
+    public void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Marks the FCB as flushed to disk.
+     */
+    public void markClean() {
+        dirty = false;
     }
 
     /**
@@ -164,6 +296,8 @@ public class FCB {
         return "FCB{" +
                 "name='" + name + '\'' +
                 ", type='" + type + '\'' +
+                ", degree=" + degree +
+                ", secondaryColumn=" + secondaryColumn +
                 ", indexBlocks=" + indexBlocks +
                 ", dataBlocks=" + dataBlocks +
                 '}';
@@ -0,0 +1,263 @@
+package com.neu.nosql;
+
+import com.neu.nosql.index.PageStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * This class represents the index cache shared by all database files of the process.
+ * It keeps the pages of the B-tree indexes of files in memory, keyed by (segment, FCB slot),
+ * where the segment is the path of a .dbN file, so that repeated lookups in the same file
+ * only traverse the tree in memory and read one data block.
+ *
+ * The pages of an index are cached as they are read, so a lookup in a large file
+ * doesn't read more index pages than the ones on its path.
+ *
+ * The cache has a memory budget in bytes. When it is full, the least recently used index is evicted.
+ * An index is invalidated when its file is put or removed, and all indexes of a segment are dropped when
+ * its database is killed. The cache counts hits, misses and evictions.
+ */
+public class IndexCache {
+    public static final long DEFAULT_BUDGET = 1024 * 1024; // 1MB
+
+    private static IndexCache instance = new IndexCache(DEFAULT_BUDGET);
+
+    private final long budget;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // 按访问顺序, 最久未用的在前
+    private long used = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Constructs an index cache with the specified memory budget.
+     *
+     * @param budget the maximum number of bytes of cached pages
+     */
+    public IndexCache(long budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Index cache budget must be positive: " + budget);
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the index cache shared by the process.
+     *
+     * @return the shared index cache
+     */
+    public static IndexCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Replaces the shared index cache with an empty one of the specified budget.
+     *
+     * @param budget the maximum number of bytes of cached pages
+     */
+    public static synchronized void init(long budget) {
+        instance = new IndexCache(budget);
+    }
+
+    /**
+     * Returns the cached index of the specified file.
+     *
+     * @param segment the path of the database file
+     * @param fcbSlot the FCB slot of the file
+     * @return the pages of the index, or null if the index is not cached
+     */
+    public synchronized PageStore get(String segment, int fcbSlot) {
+        Entry entry = entries.get(new Key(segment, fcbSlot));
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Caches the index of the specified file. The pages are read from the source on first use and kept in memory.
+     *
+     * @param segment   the path of the database file
+     * @param fcbSlot   the FCB slot of the file
+     * @param pageCount the maximum number of pages of the index
+     * @param source    the storage the pages are read from
+     * @return the pages of the index
+     */
+    public synchronized PageStore put(String segment, int fcbSlot, int pageCount, PageStore source) {
+        Key key = new Key(segment, fcbSlot);
+        invalidate(segment, fcbSlot);
+        Entry entry = new Entry(key, pageCount, source);
+        entries.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Removes the cached index of the specified file.
+     *
+     * @param segment the path of the database file
+     * @param fcbSlot the FCB slot of the file
+     */
+    public synchronized void invalidate(String segment, int fcbSlot) {
+        Entry entry = entries.remove(new Key(segment, fcbSlot));
+        if (entry != null) {
+            used -= entry.bytes;
+        }
+    }
+
+    /**
+     * Removes the cached indexes of all files of the given segment.
+     *
+     * @param segment the path of the database file
+     */
+    public synchronized void drop(String segment) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.key.segment.equals(segment)) {
+                used -= entry.bytes;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lookups that found the index in the cache.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that didn't find the index in the cache.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of indexes evicted to stay within the budget.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of bytes of cached pages.
+     *
+     * @return the number of bytes used
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Makes room for a new page of the given index. The least recently used other indexes are evicted
+     * while the cache is over its budget.
+     *
+     * @param owner the index the page is added to
+     * @param bytes the size of the page
+     * @return true if the page fits in the budget, false if it shouldn't be cached
+     */
+    private boolean reserve(Entry owner, int bytes) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (used + bytes > budget && it.hasNext()) {
+            Entry victim = it.next();
+            if (victim == owner) {
+                continue;
+            }
+            used -= victim.bytes;
+            it.remove();
+            evictions++;
+        }
+        if (used + bytes > budget || entries.get(owner.key) != owner) {
+            return false;
+        }
+        used += bytes;
+        owner.bytes += bytes;
+        return true;
+    }
+
+    /**
+     * The key of a cached index: the database file and the FCB slot of the file within it.
+     */
+    private static final class Key {
+        final String segment;
+        final int fcbSlot;
+
+        Key(String segment, int fcbSlot) {
+            this.segment = segment;
+            this.fcbSlot = fcbSlot;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return fcbSlot == key.fcbSlot && segment.equals(key.segment);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(segment, fcbSlot);
+        }
+    }
+
+    /**
+     * A cached index, holding the pages read so far. Pages that are not cached yet are read from the source.
+     */
+    private final class Entry implements PageStore {
+        final Key key;
+        final byte[][] pages;
+        PageStore source;
+        int filled = 0;
+        long bytes = 0;
+
+        Entry(Key key, int pageCount, PageStore source) {
+            this.key = key;
+            this.pages = new byte[pageCount][];
+            this.source = source;
+        }
+
+        @Override
+        public ByteBuffer read(int pageNo) throws IOException {
+            PageStore from;
+            synchronized (IndexCache.this) {
+                if (pages[pageNo] != null) {
+                    return ByteBuffer.wrap(pages[pageNo]).asReadOnlyBuffer();
+                }
+                from = source;
+            }
+            ByteBuffer page = from.read(pageNo);
+            byte[] bytes = new byte[page.remaining()];
+            page.get(page.position(), bytes);
+            synchronized (IndexCache.this) {
+                if (pages[pageNo] == null && reserve(this, bytes.length)) {
+                    pages[pageNo] = bytes;
+                    if (++filled == pages.length) {
+                        source = null; // 所有页都已缓存, 不再需要源
+                    }
+                }
+            }
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+    }
+}
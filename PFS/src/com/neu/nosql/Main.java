@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
+import static com.neu.nosql.Utils.parseSize;
 import static com.neu.nosql.Utils.validatePut;
 
 /**
@@ -107,49 +108,84 @@ public class Main {
 
             switch (tokens[0]) {
                 case "open" -> {
-                    if (tokens.length != 2) {
-                        System.out.println("Usage: open <db_name>");
+                    boolean mmap = tokens.length > 2 && tokens[2].equals("mmap");
+                    int geometryArgs = tokens.length - 2 - (mmap ? 1 : 0);
+                    if (tokens.length < 2 || (geometryArgs != 0 && geometryArgs != 2)) {
+                        System.out.println("Usage: open <db_name> [mmap] [<block_size> <file_size>]");
+                        continue;
+                    }
+                    DB.setMmapMode(mmap);
+                    if (geometryArgs == 0) {
+                        db = DB.open(tokens[1]);
                         continue;
                     }
-                    db = DB.open(tokens[1]);
+                    long blockSize = parseSize(tokens[tokens.length - 2]);
+                    long fileSize = parseSize(tokens[tokens.length - 1]);
+                    if (blockSize <= 0 || fileSize <= 0 || blockSize > Integer.MAX_VALUE || fileSize / blockSize > Integer.MAX_VALUE) {
+                        System.out.println("Invalid block size or file size.");
+                        continue;
+                    }
+                    try {
+                        db = DB.open(tokens[1], (int) blockSize, (int) (fileSize / blockSize));
+                    } catch (IllegalArgumentException e) {
+                        System.out.println(e.getMessage());
+                    }
                 }
                 case "put" -> {
-                    if (tokens.length != 2 || db == null) {
-                        System.out.println("Usage: put <local_file>");
+                    if (tokens.length < 2 || tokens.length > 5 || db == null) {
+                        System.out.println("Usage: put <local_file> [degree | hash] [column]");
                         continue;
                     }
                     if (!validatePut(tokens[1])) {
                         continue;
                     }
-                    db = DB.selectDBFile(db.metadata.dbName, tokens[1]);
-                    db.put(tokens[1]);
+                    // The degree is a number and the column of the secondary index is a name, e.g. genre
+                    int degree = 0;
+                    String column = null;
+                    boolean hash = false;
+                    for (int i = 2; i < tokens.length; i++) {
+                        if (tokens[i].matches("\\d+")) {
+                            degree = Integer.parseInt(tokens[i]);
+                        } else if (tokens[i].equals("hash")) {
+                            hash = true;
+                        } else {
+                            column = tokens[i];
+                        }
+                    }
+                    try {
+                        db = DB.selectDBFile(db.metadata.dbName, tokens[1]);
+                        db.put(tokens[1], degree, column, hash);
+                    } catch (IllegalArgumentException e) {
+                        System.out.println(e.getMessage());
+                    }
                 }
                 case "get" -> {
-                    if (tokens.length != 2 || db == null) {
-                        System.out.println("Usage: get <local_file>");
+                    boolean sorted = tokens.length == 3 && tokens[2].equals("sorted");
+                    if ((tokens.length != 2 && !sorted) || db == null) {
+                        System.out.println("Usage: get <local_file> [sorted]");
                         continue;
                     }
-                    db = DB.locateDB(db.metadata.dbName, tokens[1]);
-                    if (db == null) {
+                    DB located = DB.locateDB(db.metadata.dbName, tokens[1]);
+                    if (located == null) {
                         System.out.println("File does not exist.");
                         continue;
                     }
-                    db.get(tokens[1]);
+                    located.get(tokens[1], sorted);
                 }
                 case "rm" -> {
                     if (tokens.length != 2 || db == null) {
                         System.out.println("Usage: rm <local_file>");
                         continue;
                     }
-                    db = DB.locateDB(db.metadata.dbName, tokens[1]);
-                    if (db == null) {
+                    DB located = DB.locateDB(db.metadata.dbName, tokens[1]);
+                    if (located == null) {
                         System.out.println("File does not exist.");
                         continue;
                     }
-                    db.remove(tokens[1]);
+                    located.remove(tokens[1]);
                 }
                 case "dir" -> {
-                    List<String> files = DB.dir();
+                    List<String> files = db == null ? DB.dir() : DB.dir(db.metadata.dbName);
                     for (String file : files) {
                         System.out.println(file);
                     }
@@ -159,23 +195,140 @@ public class Main {
                         System.out.println("Usage: find <local_file> <key>");
                         continue;
                     }
-                    db = DB.locateDB(db.metadata.dbName, tokens[1]);
-                    if (db == null) {
+                    DB located = DB.locateDB(db.metadata.dbName, tokens[1]);
+                    if (located == null) {
                         System.out.println("Current file does not exist.");
                         continue;
                     }
                     int key = Integer.parseInt(tokens[2]);
-                    String result = db.find(tokens[1], key);
+                    String result = located.find(tokens[1], key);
                     System.out.printf("Value: %s\n", result);
                 }
+                case "range" -> {
+                    if (tokens.length != 4 || db == null) {
+                        System.out.println("Usage: range <local_file> <lo> <hi>");
+                        continue;
+                    }
+                    DB located = DB.locateDB(db.metadata.dbName, tokens[1]);
+                    if (located == null) {
+                        System.out.println("Current file does not exist.");
+                        continue;
+                    }
+                    int lo = Integer.parseInt(tokens[2]);
+                    int hi = Integer.parseInt(tokens[3]);
+                    try {
+                        int count = located.range(tokens[1], lo, hi, entry -> System.out.printf("%d,%s\n", entry.id, entry.val));
+                        System.out.printf("%d entries\n", count);
+                    } catch (UnsupportedOperationException e) {
+                        System.out.println(e.getMessage());
+                    }
+                }
+                case "findBy" -> {
+                    if (tokens.length < 4 || db == null) {
+                        System.out.println("Usage: findBy <local_file> <column> <value>");
+                        continue;
+                    }
+                    DB located = DB.locateDB(db.metadata.dbName, tokens[1]);
+                    if (located == null) {
+                        System.out.println("Current file does not exist.");
+                        continue;
+                    }
+                    String value = cmd.trim().split("\\s+", 4)[3];
+                    try {
+                        int count = located.findBy(tokens[1], tokens[2], value, entry -> System.out.printf("%d,%s\n", entry.id, entry.val));
+                        System.out.printf("%d entries\n", count);
+                    } catch (IllegalArgumentException e) {
+                        System.out.println(e.getMessage());
+                    }
+                }
+                case "insert" -> {
+                    if (tokens.length < 4 || db == null) {
+                        System.out.println("Usage: insert <local_file> <key> <value>");
+                        continue;
+                    }
+                    DB located = DB.locateDB(db.metadata.dbName, tokens[1]);
+                    if (located == null) {
+                        System.out.println("Current file does not exist.");
+                        continue;
+                    }
+                    int key = Integer.parseInt(tokens[2]);
+                    String value = cmd.trim().split("\\s+", 4)[3];
+                    try {
+                        if (!located.insert(tokens[1], key, value)) {
+                            System.out.println("Key already exists.");
+                        }
+                    } catch (UnsupportedOperationException | IllegalStateException e) {
+                        System.out.println(e.getMessage());
+                    }
+                }
+                case "update" -> {
+                    if (tokens.length < 4 || db == null) {
+                        System.out.println("Usage: update <local_file> <key> <value>");
+                        continue;
+                    }
+                    DB located = DB.locateDB(db.metadata.dbName, tokens[1]);
+                    if (located == null) {
+                        System.out.println("Current file does not exist.");
+                        continue;
+                    }
+                    int key = Integer.parseInt(tokens[2]);
+                    String value = cmd.trim().split("\\s+", 4)[3];
+                    try {
+                        if (!located.update(tokens[1], key, value)) {
+                            System.out.println("Key does not exist.");
+                        }
+                    } catch (IllegalStateException e) {
+                        System.out.println(e.getMessage());
+                    }
+                }
+                case "delete" -> {
+                    if (tokens.length != 3 || db == null) {
+                        System.out.println("Usage: delete <local_file> <key>");
+                        continue;
+                    }
+                    DB located = DB.locateDB(db.metadata.dbName, tokens[1]);
+                    if (located == null) {
+                        System.out.println("Current file does not exist.");
+                        continue;
+                    }
+                    int key = Integer.parseInt(tokens[2]);
+                    try {
+                        if (!located.delete(tokens[1], key)) {
+                            System.out.println("Key does not exist.");
+                        }
+                    } catch (UnsupportedOperationException | IllegalStateException e) {
+                        System.out.println(e.getMessage());
+                    }
+                }
+                case "stats" -> {
+                    if (db != null) {
+                        System.out.printf("Last flush: %d bytes\n", db.getLastFlushBytes());
+                        System.out.printf("Last commit: %d blocks\n", db.getLastCommitBlocks());
+                        WriteAheadLog log = WriteAheadLog.forDatabase(db.metadata.dbName);
+                        System.out.printf("WAL: %d commits, %d fsyncs, %d bytes since checkpoint\n",
+                                log.getCommitCount(), log.getSyncCount(), log.getSize());
+                    }
+                    System.out.printf("Total flushed: %d bytes\n", DB.getTotalFlushBytes());
+                    BufferPool pool = BufferPool.getInstance();
+                    System.out.printf("Buffer pool: %d hits, %d misses, %d evictions, %d bytes cached\n",
+                            pool.getHits(), pool.getMisses(), pool.getEvictions(), pool.getUsed());
+                    IndexCache indexCache = IndexCache.getInstance();
+                    System.out.printf("Index cache: %d hits, %d misses, %d evictions, %d bytes cached\n",
+                            indexCache.getHits(), indexCache.getMisses(), indexCache.getEvictions(), indexCache.getUsed());
+                    System.out.printf("Bloom filters: %d finds skipped\n", DB.getFilterSkips());
+                }
                 case "kill" -> {
                     if (tokens.length != 2) {
                         System.out.println("Usage: kill <db_name>");
                         continue;
                     }
-                    db.kill(tokens[1]);
+                    DB.kill(tokens[1]);
+                    if (db != null && db.metadata.dbName.equals(tokens[1])) {
+                        db = null;
+                    }
                 }
                 case "quit" -> {
+                    WriteAheadLog.checkpointAll();
                     System.out.println("Bye!");
                     return;
                 }
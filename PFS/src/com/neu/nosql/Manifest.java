@@ -0,0 +1,289 @@
+package com.neu.nosql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.neu.nosql.DB.FCB_SIZE;
+
+/**
+ * This class represents the manifest of a database: a catalog of the files stored in it.
+ * Each database has one manifest file, named <db_name>.manifest, which records for every stored file
+ * its name, type, the suffix of the .dbN file holding it, its FCB slot, its record count and its block counts,
+ * together with the number of .dbN files of the database.
+ *
+ * With the manifest, locating a file is a map lookup instead of a scan over the FCBs of every .dbN file,
+ * and listing or placing files doesn't touch the database files.
+ *
+ * The manifest is rewritten on every put and rm. The new content is written to a temporary file,
+ * forced to disk and renamed over the old manifest, so a crash leaves either the old or the new manifest.
+ *
+ * The file format is as follows:
+ * - 4 bytes: the number of .dbN files
+ * - 4 bytes: the number of entries
+ * - the entries, each with the file name and type (modified UTF-8), followed by the suffix, the FCB slot,
+ *   the record count, the index block count and the data block count (4 bytes each)
+ */
+public class Manifest {
+    private static final String FILE_DIR = "./src/com/neu/nosql/file/";
+
+    private final Path path;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(); // key为<name>.<type>
+    private int segmentCount = 0;
+
+    /**
+     * A file recorded in the manifest.
+     */
+    public static final class Entry {
+        public final String name;
+        public final String type;
+        public final int suffix;
+        public final int fcbSlot;
+        public final int recordCount;
+        public final int indexBlockCount;
+        public final int dataBlockCount;
+
+        /**
+         * Constructs a manifest entry.
+         *
+         * @param name            the name of the file
+         * @param type            the type of the file
+         * @param suffix          the suffix of the database file holding the file
+         * @param fcbSlot         the index of the FCB of the file in the database file
+         * @param recordCount     the number of records of the file
+         * @param indexBlockCount the number of index blocks of the file
+         * @param dataBlockCount  the number of data blocks of the file
+         */
+        public Entry(String name, String type, int suffix, int fcbSlot, int recordCount, int indexBlockCount, int dataBlockCount) {
+            this.name = name;
+            this.type = type;
+            this.suffix = suffix;
+            this.fcbSlot = fcbSlot;
+            this.recordCount = recordCount;
+            this.indexBlockCount = indexBlockCount;
+            this.dataBlockCount = dataBlockCount;
+        }
+
+        /**
+         * Returns the file name with its type, as used by the commands.
+         *
+         * @return the file name, e.g. movies.csv
+         */
+        public String fileName() {
+            return name + "." + type;
+        }
+
+        @Override
+        public String toString() {
+            return fileName() + " (db" + suffix + ", " + recordCount + " records, "
+                    + indexBlockCount + " index blocks, " + dataBlockCount + " data blocks)";
+        }
+    }
+
+    /**
+     * Constructs an empty manifest of the specified database. Nothing is written until save() is called.
+     *
+     * @param dbName the name of the database
+     */
+    public Manifest(String dbName) {
+        this.path = Paths.get(FILE_DIR + dbName + ".manifest");
+    }
+
+    /**
+     * Loads the manifest of the specified database.
+     *
+     * @param dbName the name of the database
+     * @return the manifest, or null if the database has no manifest file
+     * @throws IOException if an I/O error occurs while reading the manifest
+     */
+    public static Manifest load(String dbName) throws IOException {
+        Manifest manifest = new Manifest(dbName);
+        if (Files.notExists(manifest.path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(manifest.path))) {
+            manifest.segmentCount = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF(), in.readUTF(),
+                        in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                manifest.entries.put(entry.fileName(), entry);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Deletes the manifest file of the specified database.
+     *
+     * @param dbName the name of the database
+     * @throws IOException if an I/O error occurs while deleting the manifest
+     */
+    public static void delete(String dbName) throws IOException {
+        Files.deleteIfExists(Paths.get(FILE_DIR + dbName + ".manifest"));
+    }
+
+    /**
+     * Returns the entry of the specified file.
+     *
+     * @param fileName the file name with its type, e.g. movies.csv
+     * @return the entry of the file, or null if the file is not in the database
+     */
+    public synchronized Entry lookup(String fileName) {
+        return entries.get(Utils.parseInputFileName(fileName) + "." + Utils.parseInputFileType(fileName));
+    }
+
+    /**
+     * Returns the entries of all files in the database, in the order they were put.
+     *
+     * @return the list of entries
+     */
+    public synchronized List<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Returns the number of database files of the database.
+     *
+     * @return the number of .dbN files
+     */
+    public synchronized int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Counts the FCB slots that are not used by any file in the specified database file.
+     *
+     * @param suffix the suffix of the database file
+     * @return the number of free FCB slots
+     */
+    public synchronized int countFreeFCB(int suffix) {
+        int used = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.suffix == suffix) {
+                used++;
+            }
+        }
+        return FCB_SIZE - used;
+    }
+
+    /**
+     * Counts the index and data blocks used by the files in the specified database file.
+     *
+     * @param suffix the suffix of the database file
+     * @return the number of used blocks
+     */
+    public synchronized int countUsedBlock(int suffix) {
+        int used = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.suffix == suffix) {
+                used += entry.indexBlockCount + entry.dataBlockCount;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Records a file and saves the manifest. An existing entry with the same name is replaced.
+     *
+     * @param entry the entry of the file
+     * @throws IOException if an I/O error occurs while saving the manifest
+     */
+    public synchronized void put(Entry entry) throws IOException {
+        record(entry);
+        save();
+    }
+
+    /**
+     * Records a file without saving the manifest. This is used while the manifest is rebuilt.
+     *
+     * @param entry the entry of the file
+     */
+    synchronized void record(Entry entry) {
+        entries.put(entry.fileName(), entry);
+    }
+
+    /**
+     * Removes a file and saves the manifest.
+     *
+     * @param fileName the file name with its type, e.g. movies.csv
+     * @throws IOException if an I/O error occurs while saving the manifest
+     */
+    public synchronized void remove(String fileName) throws IOException {
+        Entry entry = lookup(fileName);
+        if (entry != null) {
+            entries.remove(entry.fileName());
+            save();
+        }
+    }
+
+    /**
+     * Records that the database file with the specified suffix exists, and saves the manifest if it is new.
+     *
+     * @param suffix the suffix of the database file
+     * @throws IOException if an I/O error occurs while saving the manifest
+     */
+    public synchronized void addSegment(int suffix) throws IOException {
+        if (suffix >= segmentCount) {
+            recordSegment(suffix);
+            save();
+        }
+    }
+
+    /**
+     * Records that the database file with the specified suffix exists without saving the manifest.
+     * This is used while the manifest is rebuilt.
+     *
+     * @param suffix the suffix of the database file
+     */
+    synchronized void recordSegment(int suffix) {
+        segmentCount = Math.max(segmentCount, suffix + 1);
+    }
+
+    /**
+     * Writes the manifest to disk atomically: the content is written to a temporary file,
+     * which is forced to disk and then renamed over the manifest file.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void save() throws IOException {
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(byteOut);
+        out.writeInt(segmentCount);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            out.writeUTF(entry.name);
+            out.writeUTF(entry.type);
+            out.writeInt(entry.suffix);
+            out.writeInt(entry.fcbSlot);
+            out.writeInt(entry.recordCount);
+            out.writeInt(entry.indexBlockCount);
+            out.writeInt(entry.dataBlockCount);
+        }
+        out.close();
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(byteOut.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
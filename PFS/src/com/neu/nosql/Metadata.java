@@ -3,20 +3,27 @@ package com.neu.nosql;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
+import static com.neu.nosql.DB.BLOCK_CNT;
 import static com.neu.nosql.DB.BLOCK_SIZE;
+import static com.neu.nosql.DB.FCB_SIZE;
+import static com.neu.nosql.DB.METADATA_BLOCK_CNT;
 import static com.neu.nosql.DB.METADATA_DB_NAME_LEN;
 
 /**
  * This class represents the metadata of a database.
- * Metadata contains information about the database, such as its name and suffix.
+ * Metadata contains information about the database, such as its name and suffix,
+ * and the geometry of the database file: the block size and the number of blocks.
  * It provides methods to serialize and deserialize metadata objects to/from byte arrays.
  */
 public class Metadata {
     public String dbName = "";
     public int suffix = 0;
+    public int blockSize = BLOCK_SIZE;
+    public int blockCount = BLOCK_CNT;
 
     /**
-     * Constructs a Metadata object with the specified database name and suffix.
+     * Constructs a Metadata object with the specified database name and suffix,
+     * and the default geometry (BLOCK_SIZE and BLOCK_CNT).
      *
      * @param dbName the database name
      * @param suffix the suffix
@@ -26,18 +33,84 @@ public class Metadata {
         this.suffix = suffix;
     }
 
+    /**
+     * Constructs a Metadata object with the specified database name, suffix and geometry.
+     *
+     * @param dbName     the database name
+     * @param suffix     the suffix
+     * @param blockSize  the size of a block in bytes
+     * @param blockCount the number of blocks of the database file
+     */
+    public Metadata(String dbName, int suffix, int blockSize, int blockCount) {
+        this.dbName = dbName;
+        this.suffix = suffix;
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+    }
+
+    /**
+     * Checks that the specified geometry can be used for a database file.
+     * The block size must be a power of two of at least BLOCK_SIZE bytes, the number of blocks
+     * must be a multiple of 64, and the database file must fit in a mapped buffer.
+     *
+     * @param blockSize  the size of a block in bytes
+     * @param blockCount the number of blocks of the database file
+     * @throws IllegalArgumentException if the geometry is not supported
+     */
+    public static void validateGeometry(int blockSize, int blockCount) {
+        if (blockSize < BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("Block size must be a power of two of at least " + BLOCK_SIZE + ": " + blockSize);
+        }
+        if (blockCount < 64 || blockCount % 64 != 0) {
+            throw new IllegalArgumentException("Block count must be a multiple of 64: " + blockCount);
+        }
+        if ((long) blockSize * blockCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Database file is too large: " + (long) blockSize * blockCount);
+        }
+    }
+
+    /**
+     * Returns the number of blocks that store the bitmap of the database file.
+     *
+     * @return the number of bitmap blocks
+     */
+    public int bitmapBlockCount() {
+        int bytes = blockCount / 8;
+        return (bytes + blockSize - 1) / blockSize;
+    }
+
+    /**
+     * Returns the number of blocks at the start of the database file that store the metadata, bitmap and FCBs.
+     *
+     * @return the number of header blocks
+     */
+    public int headerBlockCount() {
+        return METADATA_BLOCK_CNT + bitmapBlockCount() + FCB_SIZE;
+    }
+
+    /**
+     * Returns the size of the database file in bytes.
+     *
+     * @return the size of the database file
+     */
+    public long fileSize() {
+        return (long) blockSize * blockCount;
+    }
+
     /**
      * Serializes the metadata object to a byte array.
      * The serialization format is as follows:
      * - The first 128 bytes represent the database name, padded with null bytes if necessary.
      * - The next 4 bytes represent the suffix as an integer.
-     * - The remaining bytes up to the block size (256 bytes) are filled with zeros.
+     * - The next 4 bytes represent the block size as an integer.
+     * - The next 4 bytes represent the number of blocks as an integer.
+     * - The remaining bytes up to the block size are filled with zeros.
      *
      * @param metadata the metadata object to be serialized
      * @return the serialized byte array
      */
     public static byte[] serialize(Metadata metadata) {
-        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(metadata.blockSize);
 
         // 将名称转换为字节数组
         byte[] nameBytes = metadata.dbName.getBytes(StandardCharsets.UTF_8);
@@ -49,10 +122,11 @@ public class Metadata {
         // 将后缀转换为 4 个字节的整数
         buffer.putInt(metadata.suffix);
 
-        // 填充剩余的字节为 0
-        for (int i = 132; i < 256; i++) {
-            buffer.put((byte) 0);
-        }
+        // 写入block大小和block数量
+        buffer.putInt(metadata.blockSize);
+        buffer.putInt(metadata.blockCount);
+
+        // 剩余的字节保持为 0
 
         // 将缓冲区的内容转换为字节数组并返回
         return buffer.array();
@@ -61,6 +135,8 @@ public class Metadata {
     /**
      * Deserializes the metadata object from a byte array.
      * The deserialization process assumes the byte array follows the format described in the `serialize` method.
+     * Only the first BLOCK_SIZE bytes are needed. Database files written before the geometry was recorded
+     * have zeros there, and get the default geometry.
      *
      * @param bytes the byte array to be deserialized
      * @return the deserialized metadata object
@@ -78,8 +154,12 @@ public class Metadata {
         // 从字节数组中读取后缀
         int suffix = buffer.getInt();
 
+        // 读取block大小和block数量，为0时使用默认值
+        int blockSize = buffer.getInt();
+        int blockCount = buffer.getInt();
+
         // 创建并返回 Metadata 对象
-        return new Metadata(name, suffix);
+        return new Metadata(name, suffix, blockSize == 0 ? BLOCK_SIZE : blockSize, blockCount == 0 ? BLOCK_CNT : blockCount);
     }
 
     /**
@@ -93,6 +173,8 @@ public class Metadata {
         return "Metadata{" +
                 "dbName='" + dbName + '\'' +
                 ", suffix=" + suffix +
+                ", blockSize=" + blockSize +
+                ", blockCount=" + blockCount +
                 '}';
     }
 }
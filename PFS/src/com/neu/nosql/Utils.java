@@ -34,6 +34,32 @@ public class Utils {
         return ans;
     }
 
+    /**
+     * Parse a size in bytes, with an optional K, M or G suffix, e.g. 4K or 64M.
+     *
+     * @param size the size
+     * @return the size in bytes, or -1 if the size is invalid
+     */
+    public static long parseSize(String size) {
+        String digits = size.toUpperCase();
+        long unit = 1;
+        if (digits.endsWith("K")) {
+            unit = 1024;
+        } else if (digits.endsWith("M")) {
+            unit = 1024 * 1024;
+        } else if (digits.endsWith("G")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit != 1) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            return Long.parseLong(digits) * unit;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
 /**
      * Check if the file is a matching file.
      *
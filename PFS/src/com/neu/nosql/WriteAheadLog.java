@@ -0,0 +1,405 @@
+package com.neu.nosql;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * This class represents the write-ahead log (WAL) of a database.
+ * Each database has one append-only log file, named <db_name>.wal, shared by all its .dbN files.
+ *
+ * A put or rm appends one transaction to the log, holding the images of the blocks it changed,
+ * and waits until the log is forced to disk. Concurrent callers of commit() are batched:
+ * the first caller that finds the log unsynced becomes the leader and forces everything appended so far,
+ * while the others wait for it, so one fsync covers many commits. The operations of DB are not thread-safe,
+ * so a database is changed from one thread at a time and its commits reach the log one by one,
+ * each with its own fsync; the batching only applies to callers that commit to the log concurrently.
+ *
+ * The changed blocks stay dirty in memory and are written to the .dbN files lazily by a background
+ * checkpoint, after which the log is truncated. When a database is opened, committed transactions
+ * that were not checkpointed yet are replayed into the .dbN files.
+ *
+ * The log format is a sequence of transactions:
+ * - 4 bytes: the length of the payload
+ * - the payload: a sequence of records, each with the suffix of the .dbN file (4 bytes),
+ *   the position in the file (8 bytes), the length of the block image (4 bytes) and the block image
+ * - 8 bytes: the CRC32 checksum of the payload
+ * A transaction that is cut off or fails the checksum marks the end of the log.
+ */
+public class WriteAheadLog {
+    public static final long CHECKPOINT_INTERVAL_MS = 1000;
+
+    private static final String FILE_DIR = "./src/com/neu/nosql/file/";
+    private static final Map<String, WriteAheadLog> logs = new HashMap<>();
+    private static final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "wal-checkpointer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String dbName;
+    private final FileChannel channel;
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private final Set<DB> dirtySegments = new LinkedHashSet<>();
+    private final ScheduledFuture<?> checkpointTask;
+
+    private long appended = 0; // 已追加的日志长度，即下一条日志的LSN
+    private long synced = 0; // 已经fsync到磁盘的日志长度
+    private boolean syncing = false;
+    private long syncCount = 0;
+    private long commitCount = 0;
+    private long recoveredCount = 0; // 打开时重放的事务数
+
+    /**
+     * A block image recorded in the log.
+     */
+    public static final class Record {
+        final int suffix;
+        final long position;
+        final byte[] data;
+
+        /**
+         * Constructs a record of the bytes written at the given position of a .dbN file.
+         * The position is a byte offset, so the log doesn't depend on the block size of the file.
+         *
+         * @param suffix   the suffix of the database file
+         * @param position the position of the first block written
+         * @param data     the bytes written
+         */
+        public Record(int suffix, long position, byte[] data) {
+            this.suffix = suffix;
+            this.position = position;
+            this.data = data;
+        }
+    }
+
+    private WriteAheadLog(String dbName) throws IOException {
+        this.dbName = dbName;
+        Path path = Paths.get(FILE_DIR + dbName + ".wal");
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+        this.checkpointTask = checkpointer.scheduleWithFixedDelay(this::backgroundCheckpoint,
+                CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the log of the specified database, opening it and replaying it on first use.
+     *
+     * @param dbName the name of the database
+     * @return the write-ahead log of the database
+     * @throws IOException if an I/O error occurs while opening or replaying the log
+     */
+    public static synchronized WriteAheadLog forDatabase(String dbName) throws IOException {
+        WriteAheadLog log = logs.get(dbName);
+        if (log == null) {
+            log = new WriteAheadLog(dbName);
+            logs.put(dbName, log);
+        }
+        return log;
+    }
+
+    /**
+     * Checkpoints the logs of all open databases.
+     */
+    public static synchronized void checkpointAll() {
+        for (WriteAheadLog log : logs.values()) {
+            try {
+                log.checkpoint();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes and deletes the log of the specified database without checkpointing it,
+     * and stops its background checkpoints. This is used when the database is killed.
+     *
+     * @param dbName the name of the database
+     * @throws IOException if an I/O error occurs while deleting the log
+     */
+    public static synchronized void drop(String dbName) throws IOException {
+        WriteAheadLog log = logs.remove(dbName);
+        if (log != null) {
+            log.checkpointTask.cancel(false);
+            log.checkpointLock.writeLock().lock();
+            try {
+                log.dirtySegments.clear();
+                log.channel.close();
+            } finally {
+                log.checkpointLock.writeLock().unlock();
+            }
+        }
+        Files.deleteIfExists(Paths.get(FILE_DIR + dbName + ".wal"));
+    }
+
+    /**
+     * Marks the start of an operation that modifies the database.
+     * Checkpoints wait until all running operations have committed.
+     */
+    public void beginOperation() {
+        checkpointLock.readLock().lock();
+    }
+
+    /**
+     * Marks the end of an operation started with beginOperation().
+     */
+    public void endOperation() {
+        checkpointLock.readLock().unlock();
+    }
+
+    /**
+     * Appends the records of one transaction to the log and waits until they are on disk.
+     * The database files are remembered, so the next checkpoint writes their dirty blocks.
+     * A transaction can change several database files, e.g. a put that replaces a file stored in another one.
+     *
+     * @param segments the database files changed by the transaction
+     * @param records  the block images changed by the transaction
+     * @throws IOException if an I/O error occurs while writing the log
+     */
+    public void commit(Collection<DB> segments, List<Record> records) throws IOException {
+        long lsn = append(records);
+        sync(lsn);
+        synchronized (this) {
+            dirtySegments.addAll(segments);
+            commitCount++;
+        }
+    }
+
+    /**
+     * Appends the records of one transaction to the end of the log.
+     *
+     * @param records the block images of the transaction
+     * @return the log position after the transaction
+     * @throws IOException if an I/O error occurs
+     */
+    private synchronized long append(List<Record> records) throws IOException {
+        int payloadLength = 0;
+        for (Record record : records) {
+            payloadLength += 16 + record.data.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + payloadLength + 8);
+        buffer.putInt(payloadLength);
+        for (Record record : records) {
+            buffer.putInt(record.suffix);
+            buffer.putLong(record.position);
+            buffer.putInt(record.data.length);
+            buffer.put(record.data);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, payloadLength);
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            appended += channel.write(buffer, appended);
+        }
+        return appended;
+    }
+
+    /**
+     * Waits until the log is on disk up to the given position (group commit).
+     * If no other caller is forcing the log, this caller forces everything appended so far;
+     * otherwise it waits for the running fsync and checks again.
+     *
+     * @param lsn the log position that has to be durable
+     * @throws IOException if an I/O error occurs
+     */
+    private void sync(long lsn) throws IOException {
+        long target;
+        synchronized (this) {
+            while (synced < lsn && syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the log", e);
+                }
+            }
+            if (synced >= lsn) {
+                return;
+            }
+            syncing = true;
+            target = appended;
+        }
+        try {
+            channel.force(false);
+        } finally {
+            synchronized (this) {
+                synced = Math.max(synced, target);
+                syncing = false;
+                syncCount++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the dirty blocks of all database files changed since the last checkpoint
+     * to disk, and then truncates the log. Running operations are waited for.
+     * The log is only truncated once every database file is forced to disk; if one fails,
+     * the files are checkpointed again next time and the log keeps their changes.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void checkpoint() throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            List<DB> segments;
+            synchronized (this) {
+                if (dirtySegments.isEmpty()) {
+                    return;
+                }
+                segments = new ArrayList<>(dirtySegments);
+                dirtySegments.clear();
+            }
+            try {
+                for (DB db : segments) {
+                    db.flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    dirtySegments.addAll(segments);
+                }
+                throw e;
+            }
+            synchronized (this) {
+                channel.truncate(0);
+                channel.force(false);
+                appended = 0;
+                synced = 0;
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of transactions committed to the log.
+     *
+     * @return the number of commits
+     */
+    public synchronized long getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * Returns the number of times the log was forced to disk.
+     * With group commit this can be smaller than the number of commits.
+     *
+     * @return the number of fsyncs
+     */
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * Returns the number of bytes in the log since the last checkpoint.
+     *
+     * @return the log size
+     */
+    public synchronized long getSize() {
+        return appended;
+    }
+
+    /**
+     * Returns the number of committed transactions replayed when the log was opened.
+     * If it is not zero, the database files changed while the process was down.
+     *
+     * @return the number of replayed transactions
+     */
+    public synchronized long getRecoveredCount() {
+        return recoveredCount;
+    }
+
+    /**
+     * Runs a checkpoint from the background thread.
+     */
+    private void backgroundCheckpoint() {
+        try {
+            if (channel.isOpen()) {
+                checkpoint();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replays the committed transactions of the log into the .dbN files and truncates the log.
+     * Replay stops at the first transaction that is incomplete or fails the checksum.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void recover() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return;
+        }
+        ByteBuffer log = ByteBuffer.allocate((int) size);
+        while (log.hasRemaining() && channel.read(log, log.position()) >= 0) {
+        }
+        log.flip();
+
+        Map<Integer, FileChannel> segments = new HashMap<>();
+        try {
+            while (log.remaining() >= 4) {
+                int payloadLength = log.getInt();
+                if (payloadLength < 0 || log.remaining() < payloadLength + 8) {
+                    break;
+                }
+                int start = log.position();
+                CRC32 crc = new CRC32();
+                crc.update(log.array(), start, payloadLength);
+                if (log.getLong(start + payloadLength) != crc.getValue()) {
+                    break;
+                }
+                while (log.position() < start + payloadLength) {
+                    int suffix = log.getInt();
+                    long position = log.getLong();
+                    byte[] data = new byte[log.getInt()];
+                    log.get(data);
+
+                    FileChannel segment = segments.get(suffix);
+                    if (segment == null) {
+                        segment = FileChannel.open(Paths.get(FILE_DIR + dbName + ".db" + suffix),
+                                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                        segments.put(suffix, segment);
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    while (buffer.hasRemaining()) {
+                        position += segment.write(buffer, position);
+                    }
+                }
+                log.position(start + payloadLength + 8);
+                recoveredCount++;
+            }
+            for (FileChannel segment : segments.values()) {
+                segment.force(false);
+            }
+        } finally {
+            for (FileChannel segment : segments.values()) {
+                segment.close();
+            }
+        }
+        channel.truncate(0);
+        channel.force(false);
+    }
+}
@@ -0,0 +1,274 @@
+package com.neu.nosql.index;
+
+import java.util.Arrays;
+
+/**
+ * This class represents a B+tree data structure.
+ * Unlike a B-tree, all key-value pairs live in the leaves. The inner nodes only hold separator keys:
+ * the i-th key of an inner node is the smallest key of its (i+1)-th child.
+ * The leaves are linked to each other in key order, so a range of keys is read by finding the first leaf
+ * of the range and following the links, without going back to the inner nodes.
+ *
+ * The tree has a minimum degree t like BTree: every node holds at most 2t-1 keys.
+ * The insert() method splits full nodes on the way down. A full leaf is split into two leaves
+ * and the first key of the right leaf is copied up, while a full inner node is split around its middle key,
+ * which is moved up.
+ *
+ * Files are mostly put in ascending key order, which would leave every leaf half full.
+ * So when a key is appended after the last key of the rightmost leaf, the full leaf keeps all but its last key
+ * and only the last key moves to the new leaf.
+ *
+ * A whole file is indexed at once with bulkLoad(), which builds the tree bottom-up from the sorted keys:
+ * the leaves are packed with keys up to the fill factor, and each level of inner nodes is packed with
+ * the nodes of the level below, until a single root is left. No node is ever split, and the number of pages
+ * of the tree can be predicted from the number of keys with countPages().
+ */
+public class BPlusTree {
+    public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+    private BTreeNode root;
+    private final int t; // Minimum degree
+
+    /**
+     * Constructs a new B+tree with the default minimum degree.
+     */
+    public BPlusTree() {
+        this(BTree.MINIMUM_DEGREE);
+    }
+
+    /**
+     * Constructs a new B+tree with the specified minimum degree.
+     *
+     * @param t the minimum degree, at least 2
+     */
+    public BPlusTree(int t) {
+        if (t < 2) {
+            throw new IllegalArgumentException("Minimum degree must be at least 2: " + t);
+        }
+        this.root = new BTreeNode(true, t);
+        this.t = t;
+    }
+
+    /**
+     * Builds a B+tree bottom-up from keys in ascending order.
+     * Each leaf gets up to fillFactor * (2t-1) keys and each inner node up to fillFactor * 2t children,
+     * and the keys or children are spread evenly over the nodes of a level.
+     *
+     * @param keys       the keys, in ascending order without duplicates
+     * @param vals       the values of the keys
+     * @param t          the minimum degree of the B+tree
+     * @param fillFactor the fraction of a node to fill, from 0.5 to 1
+     * @return the B+tree
+     */
+    public static BPlusTree bulkLoad(int[] keys, int[] vals, int t, double fillFactor) {
+        BPlusTree tree = new BPlusTree(t);
+        if (keys.length == 0) {
+            return tree;
+        }
+
+        // Pack the keys into the leaves and link the leaves
+        int[] sizes = spread(keys.length, leafCapacity(t, fillFactor));
+        BTreeNode[] level = new BTreeNode[sizes.length];
+        int[] minKeys = new int[sizes.length]; // 每个节点子树中最小的key
+        int p = 0;
+        for (int j = 0; j < sizes.length; j++) {
+            BTreeNode leaf = new BTreeNode(true, t);
+            System.arraycopy(keys, p, leaf.keys, 0, sizes[j]);
+            System.arraycopy(vals, p, leaf.vals, 0, sizes[j]);
+            leaf.n = sizes[j];
+            p += sizes[j];
+            if (j > 0) {
+                level[j - 1].next = leaf;
+            }
+            level[j] = leaf;
+            minKeys[j] = leaf.keys[0];
+        }
+
+        // Pack each level into the level above until a single root is left
+        while (level.length > 1) {
+            sizes = spread(level.length, innerCapacity(t, fillFactor));
+            BTreeNode[] parents = new BTreeNode[sizes.length];
+            int[] parentMinKeys = new int[sizes.length];
+            int c = 0;
+            for (int j = 0; j < sizes.length; j++) {
+                BTreeNode parent = new BTreeNode(false, t);
+                parentMinKeys[j] = minKeys[c];
+                for (int i = 0; i < sizes[j]; i++, c++) {
+                    if (i > 0) {
+                        parent.keys[i - 1] = minKeys[c];
+                    }
+                    parent.children[i] = level[c];
+                }
+                parent.n = sizes[j] - 1;
+                parents[j] = parent;
+            }
+            level = parents;
+            minKeys = parentMinKeys;
+        }
+        tree.root = level[0];
+        return tree;
+    }
+
+    /**
+     * Predicts the number of pages of a B+tree built by bulkLoad(), without building it.
+     *
+     * @param keyCount   the number of keys
+     * @param t          the minimum degree of the B+tree
+     * @param fillFactor the fraction of a node to fill, from 0.5 to 1
+     * @return the number of nodes of the tree
+     */
+    public static int countPages(int keyCount, int t, double fillFactor) {
+        int nodes = spread(keyCount, leafCapacity(t, fillFactor)).length;
+        int pages = nodes;
+        while (nodes > 1) {
+            nodes = spread(nodes, innerCapacity(t, fillFactor)).length;
+            pages += nodes;
+        }
+        return pages;
+    }
+
+    /**
+     * Returns the number of keys of a bulk-loaded leaf, at least t so that split leaves keep at least t-1 keys.
+     */
+    private static int leafCapacity(int t, double fillFactor) {
+        checkFillFactor(fillFactor);
+        return Math.max(t, (int) (fillFactor * (2 * t - 1)));
+    }
+
+    /**
+     * Returns the number of children of a bulk-loaded inner node, at least t.
+     */
+    private static int innerCapacity(int t, double fillFactor) {
+        checkFillFactor(fillFactor);
+        return Math.max(t, (int) (fillFactor * 2 * t));
+    }
+
+    /**
+     * Checks that the fill factor is between 0.5 and 1.
+     */
+    static void checkFillFactor(double fillFactor) {
+        if (!(fillFactor >= 0.5 && fillFactor <= 1)) {
+            throw new IllegalArgumentException("Fill factor must be between 0.5 and 1: " + fillFactor);
+        }
+    }
+
+    /**
+     * Spreads n items evenly over the fewest nodes that hold at most capacity items each.
+     *
+     * @param n        the number of items
+     * @param capacity the maximum number of items of a node
+     * @return the number of items of each node
+     */
+    private static int[] spread(int n, int capacity) {
+        int count = Math.max(1, (n + capacity - 1) / capacity);
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = n / count + (i < n % count ? 1 : 0);
+        }
+        return sizes;
+    }
+
+    /**
+     * Gets the root node of the B+tree.
+     */
+    public BTreeNode getRoot() {
+        return root;
+    }
+
+    /**
+     * Inserts a key-value pair into the B+tree.
+     *
+     * @param key the key to be inserted
+     * @param val the value associated with the key
+     */
+    public void insert(int key, int val) {
+        BTreeNode r = root;
+        if (r.n == (2 * t - 1)) {
+            BTreeNode s = new BTreeNode(false, t);
+            root = s;
+            s.children[0] = r;
+            splitChild(s, 0, r.leaf && key > r.keys[2 * t - 2]);
+        }
+        insertNonFull(root, key, val);
+    }
+
+    /**
+     * Inserts a key-value pair into a non-full node.
+     * The position of the key is found with a binary search; keys equal to a separator belong to the right child.
+     *
+     * @param x   the node to insert the key into
+     * @param key the key to be inserted
+     * @param val the value associated with the key
+     */
+    private void insertNonFull(BTreeNode x, int key, int val) {
+        int pos = x.search(key);
+        int i = pos >= 0 ? pos + 1 : -pos - 1;
+        if (x.leaf) {
+            x.insertAt(i, key, val);
+        } else {
+            BTreeNode child = x.children[i];
+            if (child.n == (2 * t - 1)) {
+                boolean append = child.leaf && child.next == null && key > child.keys[2 * t - 2];
+                splitChild(x, i, append);
+                if (key >= x.keys[i]) {
+                    i++;
+                }
+            }
+            insertNonFull(x.children[i], key, val);
+        }
+    }
+
+    /**
+     * Splits a full child node of a given node.
+     *
+     * @param x      the parent node
+     * @param i      the index of the child to be split
+     * @param append true if a key is appended after the last key of the rightmost leaf
+     */
+    private void splitChild(BTreeNode x, int i, boolean append) {
+        BTreeNode y = x.children[i];
+        BTreeNode z = new BTreeNode(y.leaf, t);
+        int separator;
+
+        if (y.leaf) {
+            // The left leaf keeps t-1 keys, or all but the last key when appending,
+            // the right leaf gets the rest and its first key is copied up
+            int from = append ? 2 * t - 2 : t - 1;
+            z.n = 2 * t - 1 - from;
+            System.arraycopy(y.keys, from, z.keys, 0, z.n);
+            System.arraycopy(y.vals, from, z.vals, 0, z.n);
+            y.n = from;
+            separator = z.keys[0];
+            z.next = y.next;
+            y.next = z;
+        } else {
+            // The middle key is moved up, as in a B-tree
+            separator = y.keys[t - 1];
+            z.n = t - 1;
+            System.arraycopy(y.keys, t, z.keys, 0, t - 1);
+            System.arraycopy(y.children, t, z.children, 0, t);
+            Arrays.fill(y.children, t, 2 * t, null);
+            y.n = t - 1;
+        }
+
+        x.insertChildAt(i + 1, z);
+        x.insertAt(i, separator, 0);
+    }
+
+    /**
+     * Searches for a key in the B+tree and returns the associated value.
+     * Each node on the path is searched with a binary search.
+     *
+     * @param key the key to search for
+     * @return the value associated with the key, or -1 if the key is not found
+     */
+    public int find(int key) {
+        BTreeNode x = root;
+        while (!x.leaf) {
+            int pos = x.search(key);
+            x = x.children[pos >= 0 ? pos + 1 : -pos - 1];
+        }
+        int pos = x.search(key);
+        return pos >= 0 ? x.vals[pos] : -1;
+    }
+}
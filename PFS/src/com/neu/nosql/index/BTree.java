@@ -1,5 +1,6 @@
 package com.neu.nosql.index;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Queue;
 
@@ -8,21 +9,25 @@ import java.util.Queue;
  * A B-tree is a self-balancing tree data structure that maintains sorted data and allows searches,
  * sequential access, insertions, and deletions in logarithmic time.
  *
- * The BTree class provides methods for inserting keys into the tree and searching for keys.
- * The tree is implemented as a collection of B-tree nodes, each containing a list of keys and children.
- * The keys are stored in sorted order within each node, and the children represent the subtrees of the node.
+ * The BTree class provides methods for inserting, deleting and searching for keys.
+ * The tree is implemented as a collection of B-tree nodes, each containing arrays of keys, values and children.
+ * The keys are stored in sorted order within each node and searched with a binary search,
+ * and the children represent the subtrees of the node.
  *
  * The B-tree has a minimum degree t, which determines the minimum number of keys in each node.
  * The tree is balanced such that all leaf nodes are at the same level, and each non-leaf node (except the root)
  * contains at least t-1 keys and at most 2t-1 keys.
  *
  * The insert() method inserts a key into the tree, maintaining the properties of the B-tree.
+ * The delete() method removes a key from the tree. Like insert(), it goes down the tree once: before it descends
+ * into a child with only t-1 keys, the child gets a key from a sibling or is merged with it, so a key can be
+ * removed from a leaf without going back up.
  * The find() method searches for a key in the tree and returns the associated value.
  * The print() method prints the keys of the tree level by level.
  */
 public class BTree {
 
-    private static final int MINIMUM_DEGREE = 3;
+    public static final int MINIMUM_DEGREE = 3; // 内存中B-tree的默认度数, 也是旧版本写入的索引的度数
 
     private BTreeNode root;
     private final int t; // Minimum degree
@@ -31,7 +36,7 @@ public class BTree {
      * Constructs a new B-tree with the default minimum degree.
      */
     public BTree() {
-        this.root = new BTreeNode(true);
+        this.root = new BTreeNode(true, MINIMUM_DEGREE);
         this.t = MINIMUM_DEGREE;
     }
 
@@ -51,10 +56,10 @@ public class BTree {
      */
     public void insert(int key, int val) {
         BTreeNode r = root;
-        if (r.keys.size() == (2 * t - 1)) {
-            BTreeNode s = new BTreeNode(false);
+        if (r.n == (2 * t - 1)) {
+            BTreeNode s = new BTreeNode(false, t);
             root = s;
-            s.children.add(r);
+            s.children[0] = r;
             splitChild(s, 0);
             insertNonFull(s, key, val);
         } else {
@@ -64,30 +69,25 @@ public class BTree {
 
     /**
      * Inserts a key-value pair into a non-full node.
+     * The position of the key is found with a binary search; a key equal to an existing key goes after it.
      *
      * @param x   the node to insert the key into
      * @param key the key to be inserted
      * @param val the value associated with the key
      */
     private void insertNonFull(BTreeNode x, int key, int val) {
-        int i = x.keys.size() - 1;
+        int pos = x.search(key);
+        int i = pos >= 0 ? pos + 1 : -pos - 1;
         if (x.leaf) {
-            while (i >= 0 && key < x.keys.get(i).key) {
-                i--;
-            }
-            x.keys.add(i + 1, new Node(key, val));
+            x.insertAt(i, key, val);
         } else {
-            while (i >= 0 && key < x.keys.get(i).key) {
-                i--;
-            }
-            i++;
-            if (x.children.get(i).keys.size() == (2 * t - 1)) {
+            if (x.children[i].n == (2 * t - 1)) {
                 splitChild(x, i);
-                if (key > x.keys.get(i).key) {
+                if (key > x.keys[i]) {
                     i++;
                 }
             }
-            insertNonFull(x.children.get(i), key, val);
+            insertNonFull(x.children[i], key, val);
         }
     }
 
@@ -98,19 +98,151 @@ public class BTree {
      * @param i the index of the child to be split
      */
     private void splitChild(BTreeNode x, int i) {
-        BTreeNode y = x.children.get(i);
-        BTreeNode z = new BTreeNode(y.leaf);
+        BTreeNode y = x.children[i];
+        BTreeNode z = new BTreeNode(y.leaf, t);
+
+        // z gets the last t-1 keys of y, and the middle key of y moves up to x
+        z.n = t - 1;
+        System.arraycopy(y.keys, t, z.keys, 0, t - 1);
+        System.arraycopy(y.vals, t, z.vals, 0, t - 1);
+        if (!y.leaf) {
+            System.arraycopy(y.children, t, z.children, 0, t);
+            Arrays.fill(y.children, t, 2 * t, null);
+        }
+        y.n = t - 1;
 
-        x.children.add(i + 1, z);
-        x.keys.add(i, y.keys.get(t - 1));
+        x.insertChildAt(i + 1, z);
+        x.insertAt(i, y.keys[t - 1], y.vals[t - 1]);
+    }
 
-        z.keys.addAll(y.keys.subList(t, 2 * t - 1));
-        y.keys.subList(t - 1, 2 * t - 1).clear();
+    /**
+     * Deletes a key from the B-tree. If the key was inserted several times, one of its occurrences is deleted.
+     *
+     * @param key the key to be deleted
+     * @return true if the key was deleted, false if it is not in the tree
+     */
+    public boolean delete(int key) {
+        boolean deleted = delete(root, key);
+        if (root.n == 0 && !root.leaf) {
+            // The root lost its last key to a merge, so the tree gets one level shorter
+            root = root.children[0];
+        }
+        return deleted;
+    }
 
+    /**
+     * Deletes a key from the subtree of a node that has at least t keys, or from the root.
+     *
+     * @param x   the root of the subtree
+     * @param key the key to be deleted
+     * @return true if the key was deleted, false if it is not in the subtree
+     */
+    private boolean delete(BTreeNode x, int key) {
+        int pos = x.search(key);
+        if (pos >= 0) {
+            if (x.leaf) {
+                x.removeAt(pos);
+                return true;
+            }
+            BTreeNode y = x.children[pos];
+            BTreeNode z = x.children[pos + 1];
+            if (y.n >= t) {
+                // Replace the key by its predecessor, which is then deleted from the left child
+                BTreeNode p = y;
+                while (!p.leaf) {
+                    p = p.children[p.n];
+                }
+                x.keys[pos] = p.keys[p.n - 1];
+                x.vals[pos] = p.vals[p.n - 1];
+                return delete(y, x.keys[pos]);
+            }
+            if (z.n >= t) {
+                // Replace the key by its successor, which is then deleted from the right child
+                BTreeNode s = z;
+                while (!s.leaf) {
+                    s = s.children[0];
+                }
+                x.keys[pos] = s.keys[0];
+                x.vals[pos] = s.vals[0];
+                return delete(z, x.keys[pos]);
+            }
+            // Both children have t-1 keys: merge them around the key and delete it from the merged node
+            merge(x, pos);
+            return delete(y, key);
+        }
+        if (x.leaf) {
+            return false;
+        }
+        int i = -pos - 1;
+        if (x.children[i].n == t - 1) {
+            i = fill(x, i);
+        }
+        return delete(x.children[i], key);
+    }
+
+    /**
+     * Gives a child with t-1 keys one more key, from a sibling with at least t keys through the parent,
+     * or by merging it with a sibling.
+     *
+     * @param x the parent node
+     * @param i the index of the child
+     * @return the index of the child after the change, which is i-1 if it was merged into its left sibling
+     */
+    private int fill(BTreeNode x, int i) {
+        BTreeNode child = x.children[i];
+        if (i > 0 && x.children[i - 1].n >= t) {
+            // The last key of the left sibling moves up to x, and the key of x moves down to the child
+            BTreeNode left = x.children[i - 1];
+            if (!child.leaf) {
+                child.insertChildAt(0, left.children[left.n]);
+                left.children[left.n] = null;
+            }
+            child.insertAt(0, x.keys[i - 1], x.vals[i - 1]);
+            x.keys[i - 1] = left.keys[left.n - 1];
+            x.vals[i - 1] = left.vals[left.n - 1];
+            left.n--;
+        } else if (i < x.n && x.children[i + 1].n >= t) {
+            // The first key of the right sibling moves up to x, and the key of x moves down to the child
+            BTreeNode right = x.children[i + 1];
+            child.keys[child.n] = x.keys[i];
+            child.vals[child.n] = x.vals[i];
+            if (!child.leaf) {
+                child.children[child.n + 1] = right.children[0];
+                right.removeChildAt(0);
+            }
+            child.n++;
+            x.keys[i] = right.keys[0];
+            x.vals[i] = right.vals[0];
+            right.removeAt(0);
+        } else if (i < x.n) {
+            merge(x, i);
+        } else {
+            merge(x, i - 1);
+            i--;
+        }
+        return i;
+    }
+
+    /**
+     * Merges the (i+1)-th child of a node into the i-th child, with the i-th key of the node between them.
+     * Both children have t-1 keys, so the merged node is full.
+     *
+     * @param x the parent node
+     * @param i the index of the left child
+     */
+    private void merge(BTreeNode x, int i) {
+        BTreeNode y = x.children[i];
+        BTreeNode z = x.children[i + 1];
+        y.keys[y.n] = x.keys[i];
+        y.vals[y.n] = x.vals[i];
+        System.arraycopy(z.keys, 0, y.keys, y.n + 1, z.n);
+        System.arraycopy(z.vals, 0, y.vals, y.n + 1, z.n);
         if (!y.leaf) {
-            z.children.addAll(y.children.subList(t, 2 * t));
-            y.children.subList(t, 2 * t).clear();
+            System.arraycopy(z.children, 0, y.children, y.n + 1, z.n + 1);
         }
+        y.n += z.n + 1;
+        x.removeChildAt(i + 1);
+        x.removeAt(i);
     }
 
     /**
@@ -124,27 +256,24 @@ public class BTree {
     }
 
     /**
-     * Recursively searches for a key in a B-tree node and its children.
+     * Searches for a key in a B-tree node and its children, with a binary search in each node.
      *
      * @param node the node to search in
      * @param key  the key to search for
      * @return the value associated with the key, or -1 if the key is not found
      */
     public static int findKey(BTreeNode node, int key) {
-        int i = 0;
-        while (i < node.keys.size() && key > node.keys.get(i).key) {
-            i++;
-        }
-
-        if (i < node.keys.size() && key == node.keys.get(i).key) {
-            // Key found in the current node
-            return node.keys.get(i).val;
-        } else if (node.leaf) {
-            // Key not found in a leaf node
-            return -1;
-        } else {
-            // Recursively search in the appropriate children
-            return findKey(node.children.get(i), key);
+        while (true) {
+            int pos = node.search(key);
+            if (pos >= 0) {
+                // Key found in the current node
+                return node.vals[pos];
+            } else if (node.leaf) {
+                // Key not found in a leaf node
+                return -1;
+            }
+            // Continue in the appropriate child
+            node = node.children[-pos - 1];
         }
     }
 
@@ -167,15 +296,15 @@ public class BTree {
                 BTreeNode x = queue.poll();
                 if (x != null) {
                     // Print keys
-                    for (Node key : x.keys) {
-                        System.out.print(key + " ");
+                    for (int j = 0; j < x.n; j++) {
+                        System.out.print(new Node(x.keys[j], x.vals[j]) + " ");
                     }
                     System.out.print("---");
 
                     // Enqueue children
                     if (!x.leaf) {
-                        for (BTreeNode child : x.children) {
-                            queue.offer(child);
+                        for (int j = 0; j <= x.n; j++) {
+                            queue.offer(x.children[j]);
                         }
                     }
                 }
@@ -1,26 +1,101 @@
 package com.neu.nosql.index;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * This class represents a node in a B-tree data structure.
- * Each node contains a flag indicating whether it is a leaf node,
- * a list of keys (Node objects), and a list of child nodes (BTreeNode objects).
+ * Each node contains a flag indicating whether it is a leaf node, the number of keys n,
+ * the keys and their values in primitive arrays, and an array of child nodes (BTreeNode objects).
+ * The arrays are allocated once with the capacity of a full node, 2t-1 keys and 2t children,
+ * so keys are not boxed and a node is searched with a binary search over its first n keys.
+ * In a B+tree, the leaves are also linked to the next leaf in key order.
  */
 public class BTreeNode {
     boolean leaf;
-    List<Node> keys;
-    List<BTreeNode> children;
+    int n; // key的个数
+    int[] keys;
+    int[] vals;
+    BTreeNode[] children; // 叶子节点为null
+    BTreeNode next; // B+tree中右边的下一个叶子节点
 
     /**
-     * Constructs a new BTreeNode with the specified leaf flag.
+     * Constructs a new BTreeNode with the specified leaf flag for a tree with the default minimum degree.
      *
      * @param leaf true if the node is a leaf node, false otherwise
      */
     public BTreeNode(boolean leaf) {
+        this(leaf, BTree.MINIMUM_DEGREE);
+    }
+
+    /**
+     * Constructs a new BTreeNode with the specified leaf flag for a tree with the specified minimum degree.
+     *
+     * @param leaf true if the node is a leaf node, false otherwise
+     * @param t    the minimum degree of the tree
+     */
+    public BTreeNode(boolean leaf, int t) {
         this.leaf = leaf;
-        this.keys = new ArrayList<>();
-        this.children = new ArrayList<>();
+        this.keys = new int[2 * t - 1];
+        this.vals = new int[2 * t - 1];
+        this.children = leaf ? null : new BTreeNode[2 * t];
+    }
+
+    /**
+     * Searches the keys of the node with a binary search.
+     *
+     * @param key the key to search for
+     * @return the index of the key if it is in the node; otherwise (-(insertion point) - 1),
+     * where the insertion point is the index of the first key greater than the key
+     */
+    int search(int key) {
+        return Arrays.binarySearch(keys, 0, n, key);
+    }
+
+    /**
+     * Inserts a key-value pair at the specified index, shifting the following keys to the right.
+     *
+     * @param i   the index of the new key
+     * @param key the key
+     * @param val the value
+     */
+    void insertAt(int i, int key, int val) {
+        System.arraycopy(keys, i, keys, i + 1, n - i);
+        System.arraycopy(vals, i, vals, i + 1, n - i);
+        keys[i] = key;
+        vals[i] = val;
+        n++;
+    }
+
+    /**
+     * Inserts a child at the specified index, shifting the following children to the right.
+     *
+     * @param i     the index of the new child
+     * @param child the child
+     */
+    void insertChildAt(int i, BTreeNode child) {
+        System.arraycopy(children, i, children, i + 1, n + 1 - i);
+        children[i] = child;
+    }
+
+    /**
+     * Removes the key-value pair at the specified index, shifting the following keys to the left.
+     *
+     * @param i the index of the key
+     */
+    void removeAt(int i) {
+        System.arraycopy(keys, i + 1, keys, i, n - i - 1);
+        System.arraycopy(vals, i + 1, vals, i, n - i - 1);
+        n--;
+    }
+
+    /**
+     * Removes the child at the specified index, shifting the following children to the left.
+     * It is called before the key next to the child is removed, while n is still the old number of keys.
+     *
+     * @param i the index of the child
+     */
+    void removeChildAt(int i) {
+        System.arraycopy(children, i + 1, children, i, n - i);
+        children[n] = null;
     }
 }
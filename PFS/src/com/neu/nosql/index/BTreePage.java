@@ -0,0 +1,180 @@
+package com.neu.nosql.index;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class provides the binary layout of a B-tree node stored on disk as a fixed-size page.
+ * Every page of a tree has the same size, which is determined by the minimum degree t of the tree:
+ * a node holds at most 2t-1 keys and 2t children.
+ *
+ * The page format is as follows:
+ * - 1 byte: the magic number, MAGIC for a B-tree or BPLUS_MAGIC for a B+tree,
+ *   which also tells binary pages apart from the old string-serialized index
+ * - 1 byte: 1 if the node is a leaf, 0 otherwise
+ * - 2 bytes: the number of keys n
+ * - (2t-1) * 4 bytes: the keys, in ascending order, of which the first n are used
+ * - (2t-1) * 4 bytes: the values of the keys
+ * - 2t * 4 bytes: the page numbers of the children, of which the first n+1 are used in an inner node
+ *
+ * In a B+tree page, the values of an inner node are unused, and the first child of a leaf
+ * is the page number of the next leaf, or -1 for the last leaf.
+ *
+ * The keys are read straight from the page, so a lookup doesn't create any node objects.
+ */
+public class BTreePage {
+    public static final byte MAGIC = (byte) 0xB7;
+    public static final byte BPLUS_MAGIC = (byte) 0xB8;
+
+    private static final int HEADER_SIZE = 4;
+
+    /**
+     * Returns the size of a page of a tree with the specified minimum degree.
+     *
+     * @param t the minimum degree of the tree
+     * @return the page size in bytes
+     */
+    public static int pageSize(int t) {
+        int maxKeys = 2 * t - 1;
+        return HEADER_SIZE + maxKeys * 4 + maxKeys * 4 + (maxKeys + 1) * 4;
+    }
+
+    /**
+     * Returns the largest minimum degree of a tree whose pages fit in the specified size,
+     * so that a node of the tree fills one block.
+     *
+     * @param size the size available for a page, e.g. the block size
+     * @return the largest minimum degree t with pageSize(t) <= size
+     */
+    public static int maxDegree(int size) {
+        return (size - HEADER_SIZE + 8) / 24; // pageSize(t) = 24t + HEADER_SIZE - 8
+    }
+
+    /**
+     * Encodes a node of a B-tree into a page.
+     *
+     * @param node     the node to be encoded
+     * @param children the page numbers of the children of the node, or null for a leaf
+     * @param t        the minimum degree of the tree
+     * @return the page bytes
+     */
+    public static byte[] encode(BTreeNode node, int[] children, int t) {
+        return encode(MAGIC, node, children, t);
+    }
+
+    /**
+     * Encodes a node into a page.
+     *
+     * @param magic    the magic number of the kind of tree, MAGIC or BPLUS_MAGIC
+     * @param node     the node to be encoded
+     * @param children the page numbers of the children of the node, or the next leaf of a B+tree leaf
+     * @param t        the minimum degree of the tree
+     * @return the page bytes
+     */
+    public static byte[] encode(byte magic, BTreeNode node, int[] children, int t) {
+        int maxKeys = 2 * t - 1;
+        ByteBuffer page = ByteBuffer.allocate(pageSize(t));
+        page.put(magic);
+        page.put((byte) (node.leaf ? 1 : 0));
+        page.putShort((short) node.n);
+        for (int i = 0; i < node.n; i++) {
+            page.putInt(HEADER_SIZE + i * 4, node.keys[i]);
+            page.putInt(HEADER_SIZE + (maxKeys + i) * 4, node.vals[i]);
+        }
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                page.putInt(HEADER_SIZE + (2 * maxKeys + i) * 4, children[i]);
+            }
+        }
+        return page.array();
+    }
+
+    /**
+     * Returns the magic number of the page, which tells the kind of tree.
+     *
+     * @param page the page
+     * @return MAGIC for a B-tree page, BPLUS_MAGIC for a B+tree page
+     */
+    public static byte magic(ByteBuffer page) {
+        return page.get(0);
+    }
+
+    /**
+     * Checks if the page is a leaf.
+     *
+     * @param page the page
+     * @return true if the page holds a leaf node, false otherwise
+     */
+    public static boolean isLeaf(ByteBuffer page) {
+        return page.get(1) == 1;
+    }
+
+    /**
+     * Returns the number of keys in the page.
+     *
+     * @param page the page
+     * @return the number of keys
+     */
+    public static int keyCount(ByteBuffer page) {
+        return page.getShort(2);
+    }
+
+    /**
+     * Returns the i-th key of the page.
+     *
+     * @param page the page
+     * @param i    the index of the key
+     * @return the key
+     */
+    public static int key(ByteBuffer page, int i) {
+        return page.getInt(HEADER_SIZE + i * 4);
+    }
+
+    /**
+     * Searches the keys of the page with a binary search.
+     *
+     * @param page the page
+     * @param key  the key to search for
+     * @return the index of the key if it is in the page; otherwise (-(insertion point) - 1),
+     * where the insertion point is the index of the first key greater than the key
+     */
+    public static int search(ByteBuffer page, int key) {
+        int lo = 0;
+        int hi = keyCount(page) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midKey = key(page, mid);
+            if (midKey < key) {
+                lo = mid + 1;
+            } else if (midKey > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * Returns the value of the i-th key of the page.
+     *
+     * @param page the page
+     * @param i    the index of the key
+     * @param t    the minimum degree of the tree
+     * @return the value
+     */
+    public static int val(ByteBuffer page, int i, int t) {
+        return page.getInt(HEADER_SIZE + (2 * t - 1 + i) * 4);
+    }
+
+    /**
+     * Returns the page number of the i-th child of the page.
+     *
+     * @param page the page
+     * @param i    the index of the child
+     * @param t    the minimum degree of the tree
+     * @return the page number of the child
+     */
+    public static int child(ByteBuffer page, int i, int t) {
+        return page.getInt(HEADER_SIZE + (2 * (2 * t - 1) + i) * 4);
+    }
+}
@@ -36,13 +36,13 @@ public class BTreeSerializer {
      */
     private void serializeHelper(BTreeNode node, StringBuilder sb) {
         sb.append(node.leaf).append(",");
-        sb.append(node.keys.size()).append(",");
-        for (Node key : node.keys) {
-            sb.append(key.key).append(",").append(key.val).append(",");
+        sb.append(node.n).append(",");
+        for (int i = 0; i < node.n; i++) {
+            sb.append(node.keys[i]).append(",").append(node.vals[i]).append(",");
         }
         if (!node.leaf) {
-            for (BTreeNode child : node.children) {
-                serializeHelper(child, sb);
+            for (int i = 0; i <= node.n; i++) {
+                serializeHelper(node.children[i], sb);
             }
         }
     }
@@ -72,17 +72,18 @@ public class BTreeSerializer {
     private BTreeNode deserializeHelper(Queue<String> queue) {
         boolean leaf = Boolean.parseBoolean(queue.poll());
         int size = Integer.parseInt(queue.poll());
-        BTreeNode node = new BTreeNode(leaf);
+        // The node needs room for its keys, whatever degree the tree was serialized with
+        BTreeNode node = new BTreeNode(leaf, Math.max(BTree.MINIMUM_DEGREE, (size + 2) / 2));
 
         for (int i = 0; i < size; i++) {
-            int key = Integer.parseInt(queue.poll());
-            int val = Integer.parseInt(queue.poll());
-            node.keys.add(new Node(key, val));
+            node.keys[i] = Integer.parseInt(queue.poll());
+            node.vals[i] = Integer.parseInt(queue.poll());
         }
+        node.n = size;
 
         if (!leaf) {
             for (int i = 0; i < size + 1; i++) {
-                node.children.add(deserializeHelper(queue));
+                node.children[i] = deserializeHelper(queue);
             }
         }
 
@@ -0,0 +1,139 @@
+package com.neu.nosql.index;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class represents a Bloom filter over the int keys of a file.
+ * A key that was added is always reported as possibly present, while a key that was not added is reported as
+ * absent with a high probability, so a lookup of a missing key can usually stop before reading the index.
+ *
+ * The filter has BITS_PER_KEY bits per key, which gives about 1% false positives with the optimal
+ * number of hash functions. The bit positions of a key are derived from two hashes of the key (double hashing).
+ *
+ * The format is as follows:
+ * - 1 byte: the magic number MAGIC
+ * - 1 byte: the number of hash functions
+ * - 4 bytes: the number of bits, a multiple of 64
+ * - the bits, as longs
+ */
+public class BloomFilter {
+    public static final byte MAGIC = (byte) 0xBA;
+    public static final int BITS_PER_KEY = 10;
+
+    private static final int HEADER_SIZE = 6;
+
+    private final long[] bits;
+    private final int hashCount;
+
+    /**
+     * Constructs an empty Bloom filter sized for the specified number of keys.
+     *
+     * @param keyCount the expected number of keys
+     */
+    public BloomFilter(int keyCount) {
+        this(new long[bitCount(keyCount) / 64], (int) Math.max(1, Math.round(BITS_PER_KEY * Math.log(2))));
+    }
+
+    private BloomFilter(long[] bits, int hashCount) {
+        this.bits = bits;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Adds a key to the filter.
+     *
+     * @param key the key
+     */
+    public void add(int key) {
+        int h1 = mix(key);
+        int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+        long m = bits.length * 64L;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % m;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Checks whether the key may have been added to the filter.
+     *
+     * @param key the key
+     * @return false if the key was certainly not added, true if it may have been
+     */
+    public boolean mightContain(int key) {
+        int h1 = mix(key);
+        int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+        long m = bits.length * 64L;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % m;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the filter.
+     *
+     * @return the bytes of the filter
+     */
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bits.length * 8);
+        buffer.put(MAGIC);
+        buffer.put((byte) hashCount);
+        buffer.putInt(bits.length * 64);
+        for (long word : bits) {
+            buffer.putLong(word);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Reads a filter written by encode().
+     *
+     * @param buffer the bytes of the filter, starting at position 0
+     * @return the filter
+     * @throws IllegalArgumentException if the bytes are not a Bloom filter
+     */
+    public static BloomFilter decode(ByteBuffer buffer) {
+        if (buffer.get(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a Bloom filter");
+        }
+        long[] bits = new long[buffer.getInt(2) / 64];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = buffer.getLong(HEADER_SIZE + i * 8);
+        }
+        return new BloomFilter(bits, buffer.get(1));
+    }
+
+    /**
+     * Returns the size of a filter for the specified number of keys, without building it.
+     *
+     * @param keyCount the expected number of keys
+     * @return the size of the filter in bytes
+     */
+    public static int encodedSize(int keyCount) {
+        return HEADER_SIZE + bitCount(keyCount) / 8;
+    }
+
+    /**
+     * Returns the number of bits of a filter for the specified number of keys, rounded up to a multiple of 64.
+     */
+    private static int bitCount(int keyCount) {
+        long bitCount = Math.max(64, (long) keyCount * BITS_PER_KEY);
+        return (int) ((bitCount + 63) / 64 * 64);
+    }
+
+    /**
+     * Scrambles the bits of a key (the finalizer of MurmurHash3). It is also the hash of ExtendibleHash.
+     */
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,238 @@
+package com.neu.nosql.index;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class represents a B-tree that can be searched and updated by several threads at once.
+ * It has the same structure and insert algorithm as BTree, but every node has a read-write latch,
+ * and the latches are taken from the root down with latch coupling (crabbing): a thread latches a child
+ * before it releases the parent, so no thread sees a node in the middle of a split.
+ *
+ * - find() takes shared latches, so readers never block each other. It holds at most two latches at a time.
+ * - insert() first descends with shared latches and takes an exclusive latch on the leaf only.
+ *   Most inserts find room in the leaf, so they don't block any other thread above it.
+ * - When the leaf is full, insert() starts again from the root with exclusive latches and splits the full nodes
+ *   on the way down, as BTree does. A node is released as soon as its child is latched and not full,
+ *   since the split of a non-full child never changes the parent, so only the nodes being split are held.
+ *
+ * The root pointer has its own latch, taken exclusively only to replace the root when it is split.
+ */
+public class ConcurrentBTree {
+    private final ReentrantReadWriteLock rootLatch = new ReentrantReadWriteLock(); // 保护root指针
+    private LatchedNode root;
+    private final int t; // Minimum degree
+
+    /**
+     * A node of the tree with its latch.
+     */
+    private static final class LatchedNode extends BTreeNode {
+        final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+        LatchedNode(boolean leaf, int t) {
+            super(leaf, t);
+        }
+
+        LatchedNode child(int i) {
+            return (LatchedNode) children[i];
+        }
+    }
+
+    /**
+     * Constructs a new concurrent B-tree with the default minimum degree.
+     */
+    public ConcurrentBTree() {
+        this(BTree.MINIMUM_DEGREE);
+    }
+
+    /**
+     * Constructs a new concurrent B-tree with the specified minimum degree.
+     *
+     * @param t the minimum degree, at least 2
+     */
+    public ConcurrentBTree(int t) {
+        if (t < 2) {
+            throw new IllegalArgumentException("Minimum degree must be at least 2: " + t);
+        }
+        this.root = new LatchedNode(true, t);
+        this.t = t;
+    }
+
+    /**
+     * Gets the root node of the B-tree. The tree must not be modified while the nodes are read.
+     */
+    public BTreeNode getRoot() {
+        rootLatch.readLock().lock();
+        try {
+            return root;
+        } finally {
+            rootLatch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Searches for a key in the B-tree and returns the associated value.
+     *
+     * @param key the key to search for
+     * @return the value associated with the key, or -1 if the key is not found
+     */
+    public int find(int key) {
+        LatchedNode x = latchRoot(false);
+        while (true) {
+            int pos = x.search(key);
+            if (pos >= 0 || x.leaf) {
+                int val = pos >= 0 ? x.vals[pos] : -1;
+                x.latch.readLock().unlock();
+                return val;
+            }
+            LatchedNode child = x.child(-pos - 1);
+            child.latch.readLock().lock();
+            x.latch.readLock().unlock();
+            x = child;
+        }
+    }
+
+    /**
+     * Inserts a key-value pair into the B-tree. A key equal to an existing key goes after it.
+     *
+     * @param key the key to be inserted
+     * @param val the value associated with the key
+     */
+    public void insert(int key, int val) {
+        if (!insertOptimistic(key, val)) {
+            insertPessimistic(key, val);
+        }
+    }
+
+    /**
+     * Inserts a key-value pair into its leaf if the leaf has room, with shared latches on the inner nodes
+     * and an exclusive latch on the leaf only.
+     *
+     * @param key the key to be inserted
+     * @param val the value associated with the key
+     * @return true if the key was inserted, false if the leaf is full
+     */
+    private boolean insertOptimistic(int key, int val) {
+        LatchedNode x = latchRoot(true);
+        while (!x.leaf) {
+            LatchedNode child = x.child(childIndex(x, key));
+            lock(child, child.leaf);
+            x.latch.readLock().unlock();
+            x = child;
+        }
+        try {
+            if (x.n == 2 * t - 1) {
+                return false;
+            }
+            x.insertAt(childIndex(x, key), key, val);
+            return true;
+        } finally {
+            x.latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Inserts a key-value pair with exclusive latches, splitting the full nodes on the way down.
+     *
+     * @param key the key to be inserted
+     * @param val the value associated with the key
+     */
+    private void insertPessimistic(int key, int val) {
+        LatchedNode x;
+        rootLatch.writeLock().lock();
+        try {
+            x = root;
+            x.latch.writeLock().lock();
+            if (x.n == 2 * t - 1) {
+                LatchedNode s = new LatchedNode(false, t);
+                s.latch.writeLock().lock();
+                s.children[0] = x;
+                splitChild(s, 0);
+                root = s;
+                x.latch.writeLock().unlock();
+                x = s;
+            }
+        } finally {
+            rootLatch.writeLock().unlock();
+        }
+        // x is latched exclusively and not full
+        while (!x.leaf) {
+            int i = childIndex(x, key);
+            LatchedNode child = x.child(i);
+            child.latch.writeLock().lock();
+            if (child.n == 2 * t - 1) {
+                splitChild(x, i);
+                if (key > x.keys[i]) {
+                    // The key goes to the new right sibling, which no other thread can reach before x is released
+                    LatchedNode sibling = x.child(i + 1);
+                    sibling.latch.writeLock().lock();
+                    child.latch.writeLock().unlock();
+                    child = sibling;
+                }
+            }
+            x.latch.writeLock().unlock();
+            x = child;
+        }
+        x.insertAt(childIndex(x, key), key, val);
+        x.latch.writeLock().unlock();
+    }
+
+    /**
+     * Splits a full child node of a given node. Both nodes must be latched exclusively.
+     *
+     * @param x the parent node
+     * @param i the index of the child to be split
+     */
+    private void splitChild(LatchedNode x, int i) {
+        LatchedNode y = x.child(i);
+        LatchedNode z = new LatchedNode(y.leaf, t);
+
+        // z gets the last t-1 keys of y, and the middle key of y moves up to x
+        z.n = t - 1;
+        System.arraycopy(y.keys, t, z.keys, 0, t - 1);
+        System.arraycopy(y.vals, t, z.vals, 0, t - 1);
+        if (!y.leaf) {
+            System.arraycopy(y.children, t, z.children, 0, t);
+            Arrays.fill(y.children, t, 2 * t, null);
+        }
+        y.n = t - 1;
+
+        x.insertChildAt(i + 1, z);
+        x.insertAt(i, y.keys[t - 1], y.vals[t - 1]);
+    }
+
+    /**
+     * Latches the root, shared unless it is a leaf that is going to be modified.
+     *
+     * @param exclusiveLeaf true to latch the root exclusively if it is a leaf
+     * @return the root, latched
+     */
+    private LatchedNode latchRoot(boolean exclusiveLeaf) {
+        rootLatch.readLock().lock();
+        try {
+            lock(root, exclusiveLeaf && root.leaf);
+            return root;
+        } finally {
+            rootLatch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the index of the child of an inner node, or the position in a leaf, where the key goes.
+     */
+    private static int childIndex(BTreeNode x, int key) {
+        int pos = x.search(key);
+        return pos >= 0 ? pos + 1 : -pos - 1;
+    }
+
+    /**
+     * Latches a node, exclusively or shared.
+     */
+    private static void lock(LatchedNode node, boolean exclusive) {
+        if (exclusive) {
+            node.latch.writeLock().lock();
+        } else {
+            node.latch.readLock().lock();
+        }
+    }
+}
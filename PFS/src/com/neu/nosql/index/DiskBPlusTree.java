@@ -0,0 +1,351 @@
+package com.neu.nosql.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * This class represents a B+tree that is stored on disk as fixed-size binary pages (see BTreePage).
+ * The tree is built in memory with BPlusTree and written out with toPages().
+ *
+ * A point query reads the pages on the path from the root to a leaf. A range query finds the leaf of
+ * the lowest key the same way and then follows the links between the leaves, so it reads only the leaves
+ * that hold keys of the range, plus one page per level to get there.
+ *
+ * The pages are numbered level by level, so the root is page 0 and the leaves come last, from left to right.
+ *
+ * On a WritablePageStore, keys can also be inserted and deleted in place, by rewriting the pages they touch.
+ * An insert splits the full nodes on the way down as BPlusTree does, keeping the leaves full when keys are appended
+ * after the last key, and a new node is appended after the last page,
+ * so the pages are no longer in level order after a split. A delete only removes the key from its leaf:
+ * leaves are not merged when they get under t-1 keys, as the separators above them stay valid,
+ * and the room is used again by later inserts. The next put of the file writes a packed tree again.
+ */
+public class DiskBPlusTree implements WritableIndex {
+    private final PageStore store;
+    private final int t; // Minimum degree
+
+    /**
+     * Constructs a disk-resident B+tree on top of the given pages.
+     *
+     * @param store the storage of the pages
+     * @param t     the minimum degree the tree was written with
+     */
+    public DiskBPlusTree(PageStore store, int t) {
+        this.store = store;
+        this.t = t;
+    }
+
+    @Override
+    public int find(int key) throws IOException {
+        ByteBuffer leaf = store.read(findLeaf(key));
+        int pos = BTreePage.search(leaf, key);
+        return pos >= 0 ? BTreePage.val(leaf, pos, t) : -1;
+    }
+
+    @Override
+    public void range(int lo, int hi, Visitor visitor) throws IOException {
+        int pageNo = findLeaf(lo);
+        ByteBuffer leaf = store.read(pageNo);
+        int pos = BTreePage.search(leaf, lo);
+        int i = pos >= 0 ? pos : -pos - 1;
+        while (true) {
+            int n = BTreePage.keyCount(leaf);
+            for (; i < n; i++) {
+                int key = BTreePage.key(leaf, i);
+                if (key > hi) {
+                    return;
+                }
+                if (!visitor.visit(key, BTreePage.val(leaf, i, t))) {
+                    return;
+                }
+            }
+            pageNo = BTreePage.child(leaf, 0, t); // 下一个叶子节点
+            if (pageNo < 0) {
+                return;
+            }
+            leaf = store.read(pageNo);
+            i = 0;
+        }
+    }
+
+    /**
+     * Inserts a key-value pair into the tree, or replaces the value of the key if it is already in the tree.
+     * Only the pages on the path to the leaf are read, and the pages that change are written:
+     * the leaf, plus the nodes that are split and their parents.
+     *
+     * @param key the key to be inserted
+     * @param val the value associated with the key
+     * @return true if the key was inserted, false if the value of an existing key was replaced
+     * @throws IOException if an I/O error occurs while reading or writing a page
+     * @throws UnsupportedOperationException if the pages can't be written
+     */
+    @Override
+    public boolean insert(int key, int val) throws IOException {
+        WritablePageStore pages = writable();
+        Page x = readPage(0);
+        if (x.node.n == 2 * t - 1) {
+            // The root stays page 0: its node moves to a new page, under a new root with a single child
+            Page old = new Page(pages.append(encode(x.node, x.children)), x.node, x.children);
+            x = new Page(0, new BTreeNode(false, t), new int[2 * t]);
+            x.children[0] = old.pageNo;
+            splitChild(pages, x, 0, old, old.node.leaf && key > old.node.keys[2 * t - 2]);
+        }
+        while (!x.node.leaf) {
+            // Keys equal to a separator are in the right child
+            int pos = x.node.search(key);
+            int i = pos >= 0 ? pos + 1 : -pos - 1;
+            Page child = readPage(x.children[i]);
+            if (child.node.n == 2 * t - 1) {
+                boolean append = child.node.leaf && child.children[0] < 0 && key > child.node.keys[2 * t - 2];
+                Page sibling = splitChild(pages, x, i, child, append);
+                if (key >= x.node.keys[i]) {
+                    child = sibling;
+                }
+            }
+            x = child;
+        }
+        int pos = x.node.search(key);
+        if (pos >= 0) {
+            x.node.vals[pos] = val;
+        } else {
+            x.node.insertAt(-pos - 1, key, val);
+        }
+        pages.write(x.pageNo, encode(x.node, x.children));
+        return pos < 0;
+    }
+
+    /**
+     * Deletes a key from the tree. Only the leaf of the key is written.
+     *
+     * @param key the key to be deleted
+     * @return true if the key was deleted, false if it is not in the tree
+     * @throws IOException if an I/O error occurs while reading or writing a page
+     * @throws UnsupportedOperationException if the pages can't be written
+     */
+    @Override
+    public boolean delete(int key) throws IOException {
+        WritablePageStore pages = writable();
+        Page leaf = readPage(findLeaf(key));
+        int pos = leaf.node.search(key);
+        if (pos < 0) {
+            return false;
+        }
+        leaf.node.removeAt(pos);
+        pages.write(leaf.pageNo, encode(leaf.node, leaf.children));
+        return true;
+    }
+
+    /**
+     * Returns the number of pages an insert of the key appends to the tree, without changing it:
+     * one for each full node on the path to the leaf of the key, as the full nodes are split on the way down,
+     * and one more when the root is full, as the root moves to a new page.
+     *
+     * @param key the key to be inserted
+     * @return the number of new pages
+     * @throws IOException if an I/O error occurs while reading a page
+     */
+    public int pagesToSplit(int key) throws IOException {
+        ByteBuffer page = store.read(0);
+        int pages = BTreePage.keyCount(page) == 2 * t - 1 ? 1 : 0;
+        while (true) {
+            if (BTreePage.keyCount(page) == 2 * t - 1) {
+                pages++;
+            }
+            if (BTreePage.isLeaf(page)) {
+                return pages;
+            }
+            int pos = BTreePage.search(page, key);
+            page = store.read(BTreePage.child(page, pos >= 0 ? pos + 1 : -pos - 1, t));
+        }
+    }
+
+    /**
+     * Returns the number of pages an insert of the key appends to the tree, as pagesToSplit(key).
+     * The value doesn't change the size of a fixed-size page.
+     */
+    @Override
+    public int pagesToSplit(int key, int val) throws IOException {
+        return pagesToSplit(key);
+    }
+
+    /**
+     * Returns the number of levels of the tree, which is the number of pages read by a find.
+     *
+     * @return the height of the tree, 1 for a tree with a single leaf
+     * @throws IOException if an I/O error occurs while reading a page
+     */
+    public int height() throws IOException {
+        int height = 1;
+        ByteBuffer page = store.read(0);
+        while (!BTreePage.isLeaf(page)) {
+            page = store.read(BTreePage.child(page, 0, t));
+            height++;
+        }
+        return height;
+    }
+
+    /**
+     * Splits a full child of a node, as BPlusTree does, and writes the child, the new sibling and the node.
+     * The sibling is appended after the last page.
+     *
+     * @param pages  the storage of the pages
+     * @param x      the parent node, which is not full
+     * @param i      the index of the child
+     * @param y      the child
+     * @param append true if a key is appended after the last key of the rightmost leaf
+     * @return the new sibling, to the right of the child
+     * @throws IOException if an I/O error occurs while writing a page
+     */
+    private Page splitChild(WritablePageStore pages, Page x, int i, Page y, boolean append) throws IOException {
+        BTreeNode z = new BTreeNode(y.node.leaf, t);
+        int[] zChildren = new int[2 * t];
+        int separator;
+        if (y.node.leaf) {
+            // The left leaf keeps t-1 keys, or all but the last key when appending,
+            // the right leaf gets the rest and its first key is copied up
+            int from = append ? 2 * t - 2 : t - 1;
+            z.n = 2 * t - 1 - from;
+            System.arraycopy(y.node.keys, from, z.keys, 0, z.n);
+            System.arraycopy(y.node.vals, from, z.vals, 0, z.n);
+            y.node.n = from;
+            separator = z.keys[0];
+            zChildren[0] = y.children[0]; // 新叶子接在y和y原来的下一个叶子之间
+        } else {
+            // The middle key is moved up, as in a B-tree
+            z.n = t - 1;
+            System.arraycopy(y.node.keys, t, z.keys, 0, t - 1);
+            System.arraycopy(y.children, t, zChildren, 0, t);
+            Arrays.fill(y.children, t, 2 * t, 0);
+            y.node.n = t - 1;
+            separator = y.node.keys[t - 1];
+        }
+        int zPageNo = pages.append(encode(z, zChildren));
+        if (y.node.leaf) {
+            y.children[0] = zPageNo;
+        }
+        System.arraycopy(x.children, i + 1, x.children, i + 2, x.node.n - i);
+        x.children[i + 1] = zPageNo;
+        x.node.insertAt(i, separator, 0);
+        pages.write(y.pageNo, encode(y.node, y.children));
+        pages.write(x.pageNo, encode(x.node, x.children));
+        return new Page(zPageNo, z, zChildren);
+    }
+
+    /**
+     * Reads a page into a node and the page numbers of its children.
+     *
+     * @param pageNo the page number
+     * @return the page
+     * @throws IOException if an I/O error occurs while reading the page
+     */
+    private Page readPage(int pageNo) throws IOException {
+        ByteBuffer page = store.read(pageNo);
+        BTreeNode node = new BTreeNode(BTreePage.isLeaf(page), t);
+        node.n = BTreePage.keyCount(page);
+        for (int i = 0; i < node.n; i++) {
+            node.keys[i] = BTreePage.key(page, i);
+            node.vals[i] = BTreePage.val(page, i, t);
+        }
+        int[] children = new int[2 * t];
+        for (int i = 0; i < (node.leaf ? 1 : node.n + 1); i++) {
+            children[i] = BTreePage.child(page, i, t);
+        }
+        return new Page(pageNo, node, children);
+    }
+
+    /**
+     * Encodes a node of the tree into a page, with the page numbers of its children or its next leaf.
+     */
+    private byte[] encode(BTreeNode node, int[] children) {
+        return BTreePage.encode(BTreePage.BPLUS_MAGIC, node, Arrays.copyOf(children, node.leaf ? 1 : node.n + 1), t);
+    }
+
+    /**
+     * Returns the storage of the pages for a change of the tree.
+     */
+    private WritablePageStore writable() {
+        if (!(store instanceof WritablePageStore)) {
+            throw new UnsupportedOperationException("The pages of the tree are read-only");
+        }
+        return (WritablePageStore) store;
+    }
+
+    /**
+     * A node of the tree read from a page, with the page numbers of its children.
+     * The first child of a leaf is the page number of the next leaf.
+     */
+    private static final class Page {
+        final int pageNo;
+        final BTreeNode node;
+        final int[] children;
+
+        Page(int pageNo, BTreeNode node, int[] children) {
+            this.pageNo = pageNo;
+            this.node = node;
+            this.children = children;
+        }
+    }
+
+    /**
+     * Descends from the root to the leaf that holds the specified key, if the key is in the tree.
+     *
+     * @param key the key
+     * @return the page number of the leaf
+     * @throws IOException if an I/O error occurs while reading a page
+     */
+    private int findLeaf(int key) throws IOException {
+        int pageNo = 0;
+        ByteBuffer page = store.read(pageNo);
+        while (!BTreePage.isLeaf(page)) {
+            // Keys equal to a separator are in the right child
+            int pos = BTreePage.search(page, key);
+            pageNo = BTreePage.child(page, pos >= 0 ? pos + 1 : -pos - 1, t);
+            page = store.read(pageNo);
+        }
+        return pageNo;
+    }
+
+    /**
+     * Writes a B+tree as pages, numbered level by level from the root.
+     *
+     * @param root the root node of the B+tree
+     * @param t    the minimum degree of the B+tree
+     * @return the pages, where the i-th element is page i
+     */
+    public static List<byte[]> toPages(BTreeNode root, int t) {
+        List<BTreeNode> nodes = new ArrayList<>();
+        Map<BTreeNode, Integer> pageNos = new IdentityHashMap<>();
+        Queue<BTreeNode> queue = new LinkedList<>();
+        queue.offer(root);
+        while (!queue.isEmpty()) {
+            BTreeNode node = queue.poll();
+            pageNos.put(node, nodes.size());
+            nodes.add(node);
+            if (!node.leaf) {
+                queue.addAll(Arrays.asList(node.children).subList(0, node.n + 1));
+            }
+        }
+
+        List<byte[]> pages = new ArrayList<>(nodes.size());
+        for (BTreeNode node : nodes) {
+            int[] children;
+            if (node.leaf) {
+                children = new int[]{node.next == null ? -1 : pageNos.get(node.next)};
+            } else {
+                children = new int[node.n + 1];
+                for (int i = 0; i < children.length; i++) {
+                    children[i] = pageNos.get(node.children[i]);
+                }
+            }
+            pages.add(BTreePage.encode(BTreePage.BPLUS_MAGIC, node, children, t));
+        }
+        return pages;
+    }
+}
@@ -0,0 +1,145 @@
+package com.neu.nosql.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * This class represents a B-tree that is stored on disk as fixed-size binary pages (see BTreePage).
+ * The tree is built in memory with BTree and written out with toPages(); lookups then read the pages
+ * through a PageStore, one page per level on the path from the root to the key,
+ * so a point query reads O(log n) pages no matter how large the file is.
+ *
+ * A range query walks the tree in order and skips the subtrees that are outside the range.
+ *
+ * The pages are numbered level by level, so the root is page 0.
+ */
+public class DiskBTree implements DiskIndex {
+    private final PageStore store;
+    private final int t; // Minimum degree
+
+    /**
+     * Constructs a disk-resident B-tree on top of the given pages.
+     *
+     * @param store the storage of the pages
+     * @param t     the minimum degree the tree was written with
+     */
+    public DiskBTree(PageStore store, int t) {
+        this.store = store;
+        this.t = t;
+    }
+
+    /**
+     * Searches for a key in the tree and returns the associated value.
+     * Only the pages on the path from the root to the key are read.
+     *
+     * @param key the key to search for
+     * @return the value associated with the key, or -1 if the key is not found
+     * @throws IOException if an I/O error occurs while reading a page
+     */
+    @Override
+    public int find(int key) throws IOException {
+        int pageNo = 0;
+        while (true) {
+            ByteBuffer page = store.read(pageNo);
+            int pos = BTreePage.search(page, key);
+            if (pos >= 0) {
+                return BTreePage.val(page, pos, t);
+            }
+            if (BTreePage.isLeaf(page)) {
+                return -1;
+            }
+            pageNo = BTreePage.child(page, -pos - 1, t);
+        }
+    }
+
+    @Override
+    public void range(int lo, int hi, Visitor visitor) throws IOException {
+        range(0, lo, hi, visitor);
+    }
+
+    /**
+     * Visits the keys in the range [lo, hi] of the subtree rooted at the specified page, in ascending order.
+     *
+     * @param pageNo  the page number of the root of the subtree
+     * @param lo      the lowest key of the range
+     * @param hi      the highest key of the range
+     * @param visitor the visitor of the keys and their values
+     * @return false if the visitor stopped the scan, true otherwise
+     * @throws IOException if an I/O error occurs while reading a page
+     */
+    private boolean range(int pageNo, int lo, int hi, Visitor visitor) throws IOException {
+        ByteBuffer page = store.read(pageNo);
+        boolean leaf = BTreePage.isLeaf(page);
+        int n = BTreePage.keyCount(page);
+        int pos = BTreePage.search(page, lo);
+        for (int i = pos >= 0 ? pos : -pos - 1; i <= n; i++) {
+            // The i-th child holds the keys between the (i-1)-th and the i-th key
+            if (!leaf && !range(BTreePage.child(page, i, t), lo, hi, visitor)) {
+                return false;
+            }
+            if (i == n || BTreePage.key(page, i) > hi) {
+                return true;
+            }
+            if (!visitor.visit(BTreePage.key(page, i), BTreePage.val(page, i, t))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a B-tree as pages, numbered level by level from the root.
+     *
+     * @param root the root node of the B-tree
+     * @param t    the minimum degree of the B-tree
+     * @return the pages, where the i-th element is page i
+     */
+    public static List<byte[]> toPages(BTreeNode root, int t) {
+        // Number the nodes level by level, so that the children of a node are numbered after it
+        List<BTreeNode> nodes = new ArrayList<>();
+        Queue<BTreeNode> queue = new LinkedList<>();
+        queue.offer(root);
+        while (!queue.isEmpty()) {
+            BTreeNode node = queue.poll();
+            nodes.add(node);
+            if (!node.leaf) {
+                queue.addAll(Arrays.asList(node.children).subList(0, node.n + 1));
+            }
+        }
+
+        List<byte[]> pages = new ArrayList<>(nodes.size());
+        int next = 1; // 下一个子节点的页号
+        for (BTreeNode node : nodes) {
+            int[] children = null;
+            if (!node.leaf) {
+                children = new int[node.n + 1];
+                for (int i = 0; i < children.length; i++) {
+                    children[i] = next++;
+                }
+            }
+            pages.add(BTreePage.encode(node, children, t));
+        }
+        return pages;
+    }
+
+    /**
+     * Counts the pages needed to write a B-tree, i.e. its number of nodes.
+     *
+     * @param root the root node of the B-tree
+     * @return the number of pages
+     */
+    public static int countPages(BTreeNode root) {
+        int count = 1;
+        if (!root.leaf) {
+            for (int i = 0; i <= root.n; i++) {
+                count += countPages(root.children[i]);
+            }
+        }
+        return count;
+    }
+}
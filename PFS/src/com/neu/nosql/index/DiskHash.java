@@ -0,0 +1,365 @@
+package com.neu.nosql.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class represents an extendible hash table that is stored on disk as pages of one block
+ * (see ExtendibleHash for the format). The table is built in memory with ExtendibleHash and written out with toPages().
+ *
+ * A point query reads the directory page of the hash of the key and the bucket page it points to
+ * (plus page 0 for the global depth when the directory spans several pages).
+ * The directory pages stay in the index cache, so a lookup usually reads one bucket page from disk.
+ * The keys are not ordered, so range queries are not supported.
+ *
+ * On a WritablePageStore, keys can also be inserted and deleted in place, as ExtendibleHash does in memory:
+ * an insert writes the bucket of the key, and a full bucket is split into a new page appended after the last page.
+ * When the directory is doubled and no longer fits in its pages, the bucket page that follows the directory
+ * is moved to a new page, so that the directory stays at the start of the pages. A delete only removes the key
+ * from its bucket, and buckets are never merged.
+ */
+public class DiskHash implements WritableIndex {
+    private final PageStore store;
+    private final int pageSize;
+
+    /**
+     * Constructs a disk-resident hash table on top of the given pages.
+     *
+     * @param store    the storage of the pages
+     * @param pageSize the size of a page, i.e. the block size the table was written with
+     */
+    public DiskHash(PageStore store, int pageSize) {
+        this.store = store;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public int find(int key) throws IOException {
+        ByteBuffer directory = store.read(0);
+        int globalDepth = directory.get(1);
+        int offset = ExtendibleHash.DIRECTORY_HEADER_SIZE + (ExtendibleHash.hash(key) & ExtendibleHash.mask(globalDepth)) * 4;
+        if (offset >= pageSize) {
+            directory = store.read(offset / pageSize);
+        }
+        int pageNo = directory.getInt(offset % pageSize);
+        ByteBuffer bucket = store.read(pageNo);
+        int n = bucket.getShort(2);
+        for (int i = 0; i < n; i++) {
+            int at = ExtendibleHash.BUCKET_HEADER_SIZE + i * 8;
+            if (bucket.getInt(at) == key) {
+                return bucket.getInt(at + 4);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void range(int lo, int hi, Visitor visitor) {
+        throw new UnsupportedOperationException("A hash index doesn't support range scans");
+    }
+
+    /**
+     * Inserts a key-value pair into the hash table, or replaces the value of the key if it is already in it.
+     * The bucket of the key is written, plus the buckets split from it and the directory when it changes.
+     *
+     * @param key the key to be inserted
+     * @param val the value associated with the key
+     * @return true if the key was inserted, false if the value of an existing key was replaced
+     * @throws IOException if an I/O error occurs while reading or writing a page
+     * @throws UnsupportedOperationException if the pages can't be written
+     */
+    @Override
+    public boolean insert(int key, int val) throws IOException {
+        WritablePageStore pages = writable();
+        boolean inserted = find(key) < 0;
+        insert(pages, key, val, false);
+        return inserted;
+    }
+
+    /**
+     * Deletes a key from the hash table. Only the bucket of the key is written.
+     *
+     * @param key the key to be deleted
+     * @return true if the key was deleted, false if it is not in the hash table
+     * @throws IOException if an I/O error occurs while reading or writing a page
+     * @throws UnsupportedOperationException if the pages can't be written
+     */
+    @Override
+    public boolean delete(int key) throws IOException {
+        WritablePageStore pages = writable();
+        int[] directory = readDirectory();
+        Bucket bucket = readBucket(directory[ExtendibleHash.hash(key) & ExtendibleHash.mask(globalDepth(directory))]);
+        int pos = bucket.search(key);
+        if (pos < 0) {
+            return false;
+        }
+        bucket.n--;
+        bucket.keys[pos] = bucket.keys[bucket.n];
+        bucket.vals[pos] = bucket.vals[bucket.n];
+        pages.write(bucket.pageNo, bucket.encode(pageSize));
+        return true;
+    }
+
+    /**
+     * Returns the number of pages an insert of the key-value pair appends to the hash table, without changing it.
+     * The insert is done on the directory and the bucket read from the pages, and the new pages are counted instead of written.
+     *
+     * @param key the key to be inserted
+     * @param val the value associated with the key
+     * @return the number of new pages
+     * @throws IOException if an I/O error occurs while reading a page
+     * @throws UnsupportedOperationException if the pages can't be written
+     */
+    @Override
+    public int pagesToSplit(int key, int val) throws IOException {
+        return insert(writable(), key, val, true);
+    }
+
+    /**
+     * Inserts a key-value pair into its bucket, splitting the bucket on the next bit of the hash
+     * as long as it has more keys than a page holds, and doubling the directory first when the bucket
+     * already uses all bits of the directory.
+     *
+     * @param pages  the storage of the pages
+     * @param key    the key to be inserted
+     * @param val    the value associated with the key
+     * @param dryRun true to count the new pages without writing anything
+     * @return the number of new pages
+     * @throws IOException if an I/O error occurs while reading or writing a page
+     */
+    private int insert(WritablePageStore pages, int key, int val, boolean dryRun) throws IOException {
+        int capacity = (pageSize - ExtendibleHash.BUCKET_HEADER_SIZE) / 8;
+        int nextPageNo = dryRun ? pages.nextPageNo() : -1;
+        int count = 0;
+        int[] directory = readDirectory();
+        int globalDepth = globalDepth(directory);
+        int directoryPages = directoryPages(globalDepth);
+        boolean directoryChanged = false;
+        int hash = ExtendibleHash.hash(key);
+        Bucket bucket = readBucket(directory[hash & ExtendibleHash.mask(globalDepth)]);
+        int pos = bucket.search(key);
+        if (pos >= 0) {
+            bucket.vals[pos] = val;
+        } else {
+            bucket.keys[bucket.n] = key;
+            bucket.vals[bucket.n] = val;
+            bucket.n++;
+        }
+        while (bucket.n > capacity) {
+            if (bucket.localDepth == globalDepth) {
+                if (globalDepth == ExtendibleHash.MAX_DEPTH) {
+                    throw new IllegalStateException("Hash directory is too large");
+                }
+                int[] doubled = new int[2 * directory.length];
+                System.arraycopy(directory, 0, doubled, 0, directory.length);
+                System.arraycopy(directory, 0, doubled, directory.length, directory.length);
+                directory = doubled;
+                globalDepth++;
+                directoryChanged = true;
+                // The directory takes the page after it: the bucket of that page moves to a new page
+                for (; directoryPages < directoryPages(globalDepth); directoryPages++) {
+                    int moved = directoryPages;
+                    int to;
+                    if (dryRun) {
+                        to = nextPageNo++;
+                    } else if (moved == bucket.pageNo) {
+                        to = pages.append(new Bucket(bucket.localDepth, 0, 0).encode(pageSize));
+                    } else {
+                        to = pages.append(readBucket(moved).encode(pageSize));
+                    }
+                    count++;
+                    for (int i = 0; i < directory.length; i++) {
+                        if (directory[i] == moved) {
+                            directory[i] = to;
+                        }
+                    }
+                    if (moved == bucket.pageNo) {
+                        bucket = bucket.movedTo(to);
+                    }
+                }
+            }
+            int bit = 1 << bucket.localDepth;
+            bucket.localDepth++;
+            int highPageNo = dryRun ? nextPageNo++ : pages.append(new Bucket(bucket.localDepth, 0, 0).encode(pageSize));
+            count++;
+            Bucket high = new Bucket(bucket.localDepth, highPageNo, capacity + 1);
+            int n = 0;
+            for (int i = 0; i < bucket.n; i++) {
+                if ((ExtendibleHash.hash(bucket.keys[i]) & bit) != 0) {
+                    high.keys[high.n] = bucket.keys[i];
+                    high.vals[high.n] = bucket.vals[i];
+                    high.n++;
+                } else {
+                    bucket.keys[n] = bucket.keys[i];
+                    bucket.vals[n] = bucket.vals[i];
+                    n++;
+                }
+            }
+            bucket.n = n;
+            for (int i = 0; i < directory.length; i++) {
+                if (directory[i] == bucket.pageNo && (i & bit) != 0) {
+                    directory[i] = highPageNo;
+                }
+            }
+            directoryChanged = true;
+            // The half that is still too large is split again, the other one is done
+            Bucket done = high.n > capacity ? bucket : high;
+            if (!dryRun) {
+                pages.write(done.pageNo, done.encode(pageSize));
+            }
+            if (done == bucket) {
+                bucket = high;
+            }
+        }
+        if (!dryRun) {
+            pages.write(bucket.pageNo, bucket.encode(pageSize));
+            if (directoryChanged) {
+                writeDirectory(pages, directory, globalDepth);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads the directory, the page number of the bucket of each entry.
+     * The global depth is the base-2 logarithm of the number of entries.
+     *
+     * @return the entries of the directory
+     * @throws IOException if an I/O error occurs while reading a page
+     */
+    private int[] readDirectory() throws IOException {
+        ByteBuffer page = store.read(0);
+        int[] directory = new int[1 << page.get(1)];
+        for (int i = 0; i < directory.length; i++) {
+            int offset = ExtendibleHash.DIRECTORY_HEADER_SIZE + i * 4;
+            if (offset % pageSize == 0) {
+                page = store.read(offset / pageSize);
+            }
+            directory[i] = page.getInt(offset % pageSize);
+        }
+        return directory;
+    }
+
+    /**
+     * Writes the directory from page 0, in the format of ExtendibleHash.toPages().
+     *
+     * @param pages       the storage of the pages
+     * @param directory   the entries of the directory
+     * @param globalDepth the global depth
+     * @throws IOException if an I/O error occurs while writing a page
+     */
+    private void writeDirectory(WritablePageStore pages, int[] directory, int globalDepth) throws IOException {
+        ByteBuffer dir = ByteBuffer.allocate(directoryPages(globalDepth) * pageSize);
+        dir.put(ExtendibleHash.MAGIC);
+        dir.put((byte) globalDepth);
+        dir.position(ExtendibleHash.DIRECTORY_HEADER_SIZE);
+        for (int pageNo : directory) {
+            dir.putInt(pageNo);
+        }
+        for (int i = 0; i < directoryPages(globalDepth); i++) {
+            byte[] page = new byte[pageSize];
+            System.arraycopy(dir.array(), i * pageSize, page, 0, pageSize);
+            pages.write(i, page);
+        }
+    }
+
+    /**
+     * Reads a bucket page, with room for one more key than the page holds.
+     *
+     * @param pageNo the page number of the bucket
+     * @return the bucket
+     * @throws IOException if an I/O error occurs while reading the page
+     */
+    private Bucket readBucket(int pageNo) throws IOException {
+        ByteBuffer page = store.read(pageNo);
+        Bucket bucket = new Bucket(page.get(1), pageNo, (pageSize - ExtendibleHash.BUCKET_HEADER_SIZE) / 8 + 1);
+        bucket.n = page.getShort(2);
+        for (int i = 0; i < bucket.n; i++) {
+            int at = ExtendibleHash.BUCKET_HEADER_SIZE + i * 8;
+            bucket.keys[i] = page.getInt(at);
+            bucket.vals[i] = page.getInt(at + 4);
+        }
+        return bucket;
+    }
+
+    /**
+     * Returns the global depth of a directory from its number of entries.
+     */
+    private static int globalDepth(int[] directory) {
+        return Integer.numberOfTrailingZeros(directory.length);
+    }
+
+    /**
+     * Returns the number of pages of a directory of the specified global depth.
+     */
+    private int directoryPages(int depth) {
+        int size = ExtendibleHash.DIRECTORY_HEADER_SIZE + (1 << depth) * 4;
+        return (size + pageSize - 1) / pageSize;
+    }
+
+    /**
+     * Returns the pages as a WritablePageStore, for a change of the hash table.
+     */
+    private WritablePageStore writable() {
+        if (!(store instanceof WritablePageStore)) {
+            throw new UnsupportedOperationException("The pages of the hash table are read-only");
+        }
+        return (WritablePageStore) store;
+    }
+
+    /**
+     * A bucket read from a page, with the page number it is written to.
+     */
+    private static final class Bucket {
+        int localDepth;
+        final int pageNo;
+        int n;
+        final int[] keys;
+        final int[] vals;
+
+        Bucket(int localDepth, int pageNo, int capacity) {
+            this.localDepth = localDepth;
+            this.pageNo = pageNo;
+            this.keys = new int[capacity];
+            this.vals = new int[capacity];
+        }
+
+        /**
+         * Returns the position of the key in the bucket, or -1.
+         */
+        int search(int key) {
+            for (int i = 0; i < n; i++) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns a copy of the bucket that is written to another page.
+         */
+        Bucket movedTo(int to) {
+            Bucket bucket = new Bucket(localDepth, to, keys.length);
+            bucket.n = n;
+            System.arraycopy(keys, 0, bucket.keys, 0, n);
+            System.arraycopy(vals, 0, bucket.vals, 0, n);
+            return bucket;
+        }
+
+        /**
+         * Writes the bucket as a page, in the format of ExtendibleHash.toPages().
+         */
+        byte[] encode(int pageSize) {
+            ByteBuffer page = ByteBuffer.allocate(pageSize);
+            page.put(ExtendibleHash.BUCKET_MAGIC);
+            page.put((byte) localDepth);
+            page.putShort((short) n);
+            for (int i = 0; i < n; i++) {
+                page.putInt(keys[i]);
+                page.putInt(vals[i]);
+            }
+            return page.array();
+        }
+    }
+}
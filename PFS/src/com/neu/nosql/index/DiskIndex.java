@@ -0,0 +1,42 @@
+package com.neu.nosql.index;
+
+import java.io.IOException;
+
+/**
+ * This interface represents an index stored on disk as pages, which maps int keys to int values.
+ */
+public interface DiskIndex {
+    /**
+     * Searches for a key in the index and returns the associated value.
+     *
+     * @param key the key to search for
+     * @return the value associated with the key, or -1 if the key is not found
+     * @throws IOException if an I/O error occurs while reading a page
+     */
+    int find(int key) throws IOException;
+
+    /**
+     * Visits the keys in the range [lo, hi] in ascending order, until the visitor returns false.
+     *
+     * @param lo      the lowest key of the range
+     * @param hi      the highest key of the range
+     * @param visitor the visitor of the keys and their values
+     * @throws IOException if an I/O error occurs while reading a page
+     */
+    void range(int lo, int hi, Visitor visitor) throws IOException;
+
+    /**
+     * A visitor of the key-value pairs of an index.
+     */
+    interface Visitor {
+        /**
+         * Visits a key and its value.
+         *
+         * @param key the key
+         * @param val the value
+         * @return true to continue with the next key, false to stop
+         * @throws IOException if an I/O error occurs while handling the key
+         */
+        boolean visit(int key, int val) throws IOException;
+    }
+}
@@ -0,0 +1,360 @@
+package com.neu.nosql.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents a B+tree that is stored on disk as compressed pages of one block (see PackedPage).
+ * The tree is built bottom-up from sorted keys with toPages(), which fills each node with as many keys as fit in a page.
+ * Dense ids take about a byte and a half per key in a leaf, instead of the 12 bytes of a fixed-size page,
+ * so the tree has several times fewer pages and levels, and a find reads fewer index blocks.
+ *
+ * A point query decodes the keys of the pages on the path from the root to a leaf, and a range query
+ * follows the links between the leaves, as DiskBPlusTree does. The pages are numbered level by level from the root.
+ *
+ * On a WritablePageStore, keys can also be inserted and deleted in place. As the capacity of a node depends
+ * on its keys and pointers, a node is split after the insert, when it no longer fits in its page,
+ * and the split goes up to the parent when the parent no longer fits either. New nodes are appended after
+ * the last page and the root stays page 0. A delete only removes the key from its leaf, as in DiskBPlusTree.
+ */
+public class DiskPackedBPlusTree implements WritableIndex {
+    private final PageStore store;
+    private final int pageSize;
+
+    /**
+     * Constructs a disk-resident packed B+tree on top of the given pages.
+     *
+     * @param store    the storage of the pages
+     * @param pageSize the size of a page, i.e. the block size the tree was written with
+     */
+    public DiskPackedBPlusTree(PageStore store, int pageSize) {
+        this.store = store;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public int find(int key) throws IOException {
+        ByteBuffer page = store.read(0);
+        while (!PackedPage.isLeaf(page)) {
+            page = store.read(PackedPage.lookup(page, key));
+        }
+        return PackedPage.lookup(page, key);
+    }
+
+    @Override
+    public void range(int lo, int hi, Visitor visitor) throws IOException {
+        ByteBuffer page = store.read(0);
+        while (!PackedPage.isLeaf(page)) {
+            page = store.read(PackedPage.lookup(page, lo));
+        }
+        PackedPage.Node leaf = PackedPage.decode(page);
+        int pos = leaf.search(lo);
+        int i = pos >= 0 ? pos : -pos - 1;
+        while (true) {
+            for (; i < leaf.n; i++) {
+                if (leaf.keys[i] > hi || !visitor.visit(leaf.keys[i], leaf.ptrs[i])) {
+                    return;
+                }
+            }
+            if (leaf.next < 0) {
+                return;
+            }
+            leaf = PackedPage.decode(store.read(leaf.next));
+            i = 0;
+        }
+    }
+
+    /**
+     * Inserts a key-value pair into the tree, or replaces the value of the key if it is already in the tree.
+     * The leaf is written, plus the nodes that are split and their parents.
+     *
+     * @param key the key to be inserted
+     * @param val the value associated with the key, not negative
+     * @return true if the key was inserted, false if the value of an existing key was replaced
+     * @throws IOException if an I/O error occurs while reading or writing a page
+     * @throws UnsupportedOperationException if the pages can't be written
+     */
+    @Override
+    public boolean insert(int key, int val) throws IOException {
+        WritablePageStore pages = writable();
+        List<Page> path = path(key);
+        boolean inserted = put(path.get(path.size() - 1).node, key, val);
+        split(pages, path, false);
+        return inserted;
+    }
+
+    /**
+     * Deletes a key from the tree. Only the leaf of the key is written.
+     *
+     * @param key the key to be deleted
+     * @return true if the key was deleted, false if it is not in the tree
+     * @throws IOException if an I/O error occurs while reading or writing a page
+     * @throws UnsupportedOperationException if the pages can't be written
+     */
+    @Override
+    public boolean delete(int key) throws IOException {
+        WritablePageStore pages = writable();
+        List<Page> path = path(key);
+        Page leaf = path.get(path.size() - 1);
+        int pos = leaf.node.search(key);
+        if (pos < 0) {
+            return false;
+        }
+        leaf.node.removeAt(pos);
+        pages.write(leaf.pageNo, PackedPage.encode(leaf.node, pageSize));
+        return true;
+    }
+
+    /**
+     * Returns the number of pages an insert of the key-value pair appends to the tree, without changing it.
+     * The insert is done on the nodes read from the path to the leaf, and the splits are counted instead of written.
+     *
+     * @param key the key to be inserted
+     * @param val the value associated with the key
+     * @return the number of new pages
+     * @throws IOException if an I/O error occurs while reading a page
+     * @throws UnsupportedOperationException if the pages can't be written
+     */
+    @Override
+    public int pagesToSplit(int key, int val) throws IOException {
+        WritablePageStore pages = writable();
+        List<Page> path = path(key);
+        put(path.get(path.size() - 1).node, key, val);
+        return split(pages, path, true);
+    }
+
+    /**
+     * Returns the number of levels of the tree, which is the number of pages read by a find.
+     *
+     * @return the height of the tree, 1 for a tree with a single leaf
+     * @throws IOException if an I/O error occurs while reading a page
+     */
+    public int height() throws IOException {
+        int height = 1;
+        ByteBuffer page = store.read(0);
+        while (!PackedPage.isLeaf(page)) {
+            page = store.read(PackedPage.decode(page).ptrs[0]);
+            height++;
+        }
+        return height;
+    }
+
+    /**
+     * Inserts a key-value pair into a leaf, or replaces the value of the key.
+     *
+     * @return true if the key was inserted
+     */
+    private static boolean put(PackedPage.Node leaf, int key, int val) {
+        int pos = leaf.search(key);
+        if (pos >= 0) {
+            leaf.ptrs[pos] = val;
+            return false;
+        }
+        leaf.insertAt(-pos - 1, key, val);
+        return true;
+    }
+
+    /**
+     * Writes the changed leaf at the end of the path, splitting the nodes of the path that no longer fit in a page,
+     * from the leaf up. A leaf is split in the middle, or before its last key when the key is appended after
+     * the last key of the rightmost leaf, so that sequential inserts leave full leaves behind.
+     *
+     * @param pages  the storage of the pages
+     * @param path   the pages from the root to the leaf, with the leaf changed
+     * @param dryRun true to count the new pages without writing anything
+     * @return the number of new pages
+     * @throws IOException if an I/O error occurs while writing a page
+     */
+    private int split(WritablePageStore pages, List<Page> path, boolean dryRun) throws IOException {
+        int nextPageNo = dryRun ? pages.nextPageNo() : -1;
+        int count = 0;
+        int level = path.size() - 1;
+        Page x = path.get(level);
+        while (PackedPage.encodedSize(x.node) > pageSize) {
+            PackedPage.Node y = x.node;
+            int from = y.n / 2;
+            if (y.leaf && y.next < 0 && x.appended) {
+                // The left leaf keeps all but the new key if it still fits with the largest link to the next leaf
+                int n = y.n;
+                y.n = n - 1;
+                y.next = Integer.MAX_VALUE - 1;
+                if (PackedPage.encodedSize(y) <= pageSize) {
+                    from = n - 1;
+                }
+                y.n = n;
+                y.next = -1;
+            }
+            int separator = y.keys[from];
+            PackedPage.Node z = y.splitAt(from);
+            if (z.leaf) {
+                z.next = y.next;
+            }
+            int zPageNo = dryRun ? nextPageNo++ : pages.append(PackedPage.encode(z, pageSize));
+            count++;
+            if (y.leaf) {
+                y.next = zPageNo;
+            }
+            if (level == 0) {
+                // The root stays page 0: its left half moves to a new page, under a new root with two children
+                int yPageNo = dryRun ? nextPageNo++ : pages.append(PackedPage.encode(y, pageSize));
+                count++;
+                PackedPage.Node root = new PackedPage.Node(false, 1);
+                root.ptrs[0] = yPageNo;
+                root.insertAt(0, separator, zPageNo);
+                x = new Page(0, root);
+                break;
+            }
+            if (!dryRun) {
+                pages.write(x.pageNo, PackedPage.encode(y, pageSize));
+            }
+            level--;
+            Page parent = path.get(level);
+            parent.node.insertAt(parent.childIndex, separator, zPageNo);
+            x = parent;
+        }
+        if (!dryRun) {
+            pages.write(x.pageNo, PackedPage.encode(x.node, pageSize));
+        }
+        return count;
+    }
+
+    /**
+     * Reads the pages on the path from the root to the leaf that holds the key.
+     *
+     * @param key the key
+     * @return the pages, from the root to the leaf
+     * @throws IOException if an I/O error occurs while reading a page
+     */
+    private List<Page> path(int key) throws IOException {
+        List<Page> path = new ArrayList<>();
+        Page x = new Page(0, PackedPage.decode(store.read(0)));
+        path.add(x);
+        while (!x.node.leaf) {
+            x.childIndex = x.node.childIndex(key);
+            x = new Page(x.node.ptrs[x.childIndex], PackedPage.decode(store.read(x.node.ptrs[x.childIndex])));
+            path.add(x);
+        }
+        x.appended = x.node.n == 0 || key > x.node.keys[x.node.n - 1];
+        return path;
+    }
+
+    /**
+     * Returns the storage of the pages for a change of the tree.
+     */
+    private WritablePageStore writable() {
+        if (!(store instanceof WritablePageStore)) {
+            throw new UnsupportedOperationException("The pages of the tree are read-only");
+        }
+        return (WritablePageStore) store;
+    }
+
+    /**
+     * A node of the tree read from a page, with the index of the child on the path in an inner node,
+     * or whether the key goes after the last key in a leaf.
+     */
+    private static final class Page {
+        final int pageNo;
+        final PackedPage.Node node;
+        int childIndex;
+        boolean appended;
+
+        Page(int pageNo, PackedPage.Node node) {
+            this.pageNo = pageNo;
+            this.node = node;
+        }
+    }
+
+    /**
+     * Writes a B+tree of the specified keys as packed pages, numbered level by level from the root.
+     * The leaves are filled with keys, and the inner nodes with children, until the next one would take the node
+     * over fillFactor of a page, so a node holds more keys when the keys are closer together.
+     *
+     * @param keys       the keys, in ascending order without duplicates
+     * @param vals       the values of the keys, not negative
+     * @param pageSize   the size of a page, i.e. the block size
+     * @param fillFactor the fraction of a page to fill, from 0.5 to 1
+     * @return the pages, where the i-th element is page i
+     */
+    public static List<byte[]> toPages(int[] keys, int[] vals, int pageSize, double fillFactor) {
+        BPlusTree.checkFillFactor(fillFactor);
+        int limit = (int) (fillFactor * pageSize);
+        // The page numbers are only known when all levels are built, so the room for the largest one is kept
+        int pageNoSize = PackedPage.varintSize(2 * keys.length + 1);
+
+        // Pack the keys into the leaves
+        List<PackedPage.Node> level = new ArrayList<>();
+        List<Integer> minKeys = new ArrayList<>(); // 每个节点子树中最小的key
+        PackedPage.Node leaf = new PackedPage.Node(true, 16);
+        for (int i = 0; i < keys.length; i++) {
+            leaf.insertAt(leaf.n, keys[i], vals[i]);
+            if (leaf.n > 1 && PackedPage.encodedSize(leaf) + pageNoSize > limit) {
+                leaf.n--;
+                level.add(leaf);
+                leaf = new PackedPage.Node(true, 16);
+                leaf.insertAt(0, keys[i], vals[i]);
+            }
+        }
+        level.add(leaf);
+        for (PackedPage.Node node : level) {
+            minKeys.add(node.n == 0 ? 0 : node.keys[0]);
+        }
+
+        // Pack each level into the level above until a single root is left.
+        // Children are numbered from 0 within their level here, and moved to their page numbers at the end
+        List<List<PackedPage.Node>> levels = new ArrayList<>();
+        levels.add(level);
+        while (level.size() > 1) {
+            List<PackedPage.Node> parents = new ArrayList<>();
+            List<Integer> parentMinKeys = new ArrayList<>();
+            PackedPage.Node parent = null;
+            for (int c = 0; c < level.size(); c++) {
+                if (parent != null) {
+                    parent.insertAt(parent.n, minKeys.get(c), c);
+                    if (PackedPage.encodedSize(parent) + pageNoSize > limit) {
+                        parent.n--;
+                        parent = null;
+                    }
+                }
+                if (parent == null) {
+                    parent = new PackedPage.Node(false, 16);
+                    parent.ptrs[0] = c;
+                    parents.add(parent);
+                    parentMinKeys.add(minKeys.get(c));
+                }
+            }
+            // The last node gets a child of the one before if it has a single child
+            if (parents.size() > 1 && parent.n == 0) {
+                PackedPage.Node before = parents.get(parents.size() - 2);
+                parent.insertAt(0, parentMinKeys.get(parents.size() - 1), parent.ptrs[0]);
+                parent.ptrs[0] = before.ptrs[before.n];
+                parentMinKeys.set(parents.size() - 1, before.keys[before.n - 1]);
+                before.n--;
+            }
+            levels.add(parents);
+            level = parents;
+            minKeys = parentMinKeys;
+        }
+
+        // Number the pages level by level from the root
+        List<byte[]> pages = new ArrayList<>();
+        int first = 0; // 当前层第一个节点的page number
+        for (int l = levels.size() - 1; l >= 0; l--) {
+            int next = first + levels.get(l).size();
+            for (int j = 0; j < levels.get(l).size(); j++) {
+                PackedPage.Node node = levels.get(l).get(j);
+                if (node.leaf) {
+                    node.next = j + 1 < levels.get(l).size() ? first + j + 1 : -1;
+                } else {
+                    for (int i = 0; i <= node.n; i++) {
+                        node.ptrs[i] += next;
+                    }
+                }
+                pages.add(PackedPage.encode(node, pageSize));
+            }
+            first = next;
+        }
+        return pages;
+    }
+}
@@ -0,0 +1,243 @@
+package com.neu.nosql.index;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class represents an extendible hash table, an index for files that are only searched by key.
+ * Keys are hashed, and the directory maps the last globalDepth bits of the hash to a bucket.
+ * A bucket holds the key-value pairs whose hashes end with its last localDepth bits, and several directory
+ * entries point to the same bucket when its local depth is lower than the global depth.
+ * A full bucket is split in two on the next bit of the hash, and the directory is doubled when the bucket
+ * already uses all bits of the directory, so the table grows one bucket at a time.
+ *
+ * On disk every page is one block, so a lookup reads the directory page of the hash and one bucket page,
+ * whatever the number of keys. The directory comes first, from page 0, followed by the buckets.
+ *
+ * The directory format is as follows:
+ * - 1 byte: the magic number MAGIC, which also tells the hash table apart from a tree in the index blocks
+ * - 1 byte: the global depth
+ * - 2 bytes: unused, so that the entries don't cross pages
+ * - 2^globalDepth * 4 bytes: the page number of the bucket of each entry
+ *
+ * The bucket format is as follows:
+ * - 1 byte: the magic number BUCKET_MAGIC
+ * - 1 byte: the local depth
+ * - 2 bytes: the number of key-value pairs n
+ * - n * 8 bytes: the key-value pairs, each with the key and the value (4 bytes each)
+ */
+public class ExtendibleHash {
+    public static final byte MAGIC = (byte) 0xBB;
+    public static final byte BUCKET_MAGIC = (byte) 0xBC;
+
+    static final int DIRECTORY_HEADER_SIZE = 4;
+    static final int BUCKET_HEADER_SIZE = 4;
+    static final int MAX_DEPTH = 24;
+
+    private final int pageSize;
+    private final int capacity; // 每个bucket最多的key个数
+    private int globalDepth = 0;
+    private List<Bucket> directory = new ArrayList<>();
+
+    /**
+     * A bucket of the hash table.
+     */
+    private static final class Bucket {
+        int localDepth;
+        int n;
+        final int[] keys;
+        final int[] vals;
+
+        Bucket(int localDepth, int capacity) {
+            this.localDepth = localDepth;
+            this.keys = new int[capacity];
+            this.vals = new int[capacity];
+        }
+    }
+
+    /**
+     * Constructs an empty hash table whose buckets fit in pages of the specified size.
+     *
+     * @param pageSize the size of a page, i.e. the block size
+     */
+    public ExtendibleHash(int pageSize) {
+        this.pageSize = pageSize;
+        this.capacity = (pageSize - BUCKET_HEADER_SIZE) / 8;
+        this.directory.add(new Bucket(0, capacity));
+    }
+
+    /**
+     * Builds a hash table from keys and their values.
+     *
+     * @param keys     the keys, without duplicates
+     * @param vals     the values of the keys
+     * @param pageSize the size of a page, i.e. the block size
+     * @return the hash table
+     */
+    public static ExtendibleHash build(int[] keys, int[] vals, int pageSize) {
+        ExtendibleHash table = new ExtendibleHash(pageSize);
+        for (int i = 0; i < keys.length; i++) {
+            table.insert(keys[i], vals[i]);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the hash of a key. The directory uses its last bits.
+     *
+     * @param key the key
+     * @return the hash of the key
+     */
+    static int hash(int key) {
+        return BloomFilter.mix(key);
+    }
+
+    /**
+     * Inserts a key-value pair into the hash table, replacing the value if the key is already in it.
+     *
+     * @param key the key to be inserted
+     * @param val the value associated with the key
+     */
+    public void insert(int key, int val) {
+        while (true) {
+            Bucket bucket = directory.get(hash(key) & mask(globalDepth));
+            for (int i = 0; i < bucket.n; i++) {
+                if (bucket.keys[i] == key) {
+                    bucket.vals[i] = val;
+                    return;
+                }
+            }
+            if (bucket.n < capacity) {
+                bucket.keys[bucket.n] = key;
+                bucket.vals[bucket.n] = val;
+                bucket.n++;
+                return;
+            }
+            split(bucket);
+        }
+    }
+
+    /**
+     * Splits a full bucket on the next bit of the hash, doubling the directory first if needed.
+     *
+     * @param bucket the bucket to be split
+     */
+    private void split(Bucket bucket) {
+        if (bucket.localDepth == globalDepth) {
+            if (globalDepth == MAX_DEPTH) {
+                throw new IllegalStateException("Hash directory is too large");
+            }
+            List<Bucket> doubled = new ArrayList<>(directory);
+            doubled.addAll(directory);
+            directory = doubled;
+            globalDepth++;
+        }
+        int bit = 1 << bucket.localDepth;
+        Bucket high = new Bucket(bucket.localDepth + 1, capacity);
+        bucket.localDepth++;
+        int n = 0;
+        for (int i = 0; i < bucket.n; i++) {
+            if ((hash(bucket.keys[i]) & bit) != 0) {
+                high.keys[high.n] = bucket.keys[i];
+                high.vals[high.n] = bucket.vals[i];
+                high.n++;
+            } else {
+                bucket.keys[n] = bucket.keys[i];
+                bucket.vals[n] = bucket.vals[i];
+                n++;
+            }
+        }
+        bucket.n = n;
+        for (int i = 0; i < directory.size(); i++) {
+            if (directory.get(i) == bucket && (i & bit) != 0) {
+                directory.set(i, high);
+            }
+        }
+    }
+
+    /**
+     * Searches for a key in the hash table and returns the associated value.
+     *
+     * @param key the key to search for
+     * @return the value associated with the key, or -1 if the key is not found
+     */
+    public int find(int key) {
+        Bucket bucket = directory.get(hash(key) & mask(globalDepth));
+        for (int i = 0; i < bucket.n; i++) {
+            if (bucket.keys[i] == key) {
+                return bucket.vals[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the hash table as pages: the directory from page 0, followed by the buckets.
+     *
+     * @return the pages, where the i-th element is page i
+     */
+    public List<byte[]> toPages() {
+        int directoryPages = directoryPages(globalDepth);
+        Map<Bucket, Integer> pageNos = new IdentityHashMap<>();
+        List<Bucket> buckets = new ArrayList<>();
+        for (Bucket bucket : directory) {
+            if (!pageNos.containsKey(bucket)) {
+                pageNos.put(bucket, directoryPages + buckets.size());
+                buckets.add(bucket);
+            }
+        }
+
+        ByteBuffer dir = ByteBuffer.allocate(directoryPages * pageSize);
+        dir.put(MAGIC);
+        dir.put((byte) globalDepth);
+        dir.position(DIRECTORY_HEADER_SIZE);
+        for (Bucket bucket : directory) {
+            dir.putInt(pageNos.get(bucket));
+        }
+        List<byte[]> pages = new ArrayList<>(directoryPages + buckets.size());
+        for (int i = 0; i < directoryPages; i++) {
+            byte[] page = new byte[pageSize];
+            System.arraycopy(dir.array(), i * pageSize, page, 0, pageSize);
+            pages.add(page);
+        }
+        for (Bucket bucket : buckets) {
+            ByteBuffer page = ByteBuffer.allocate(pageSize);
+            page.put(BUCKET_MAGIC);
+            page.put((byte) bucket.localDepth);
+            page.putShort((short) bucket.n);
+            for (int i = 0; i < bucket.n; i++) {
+                page.putInt(bucket.keys[i]);
+                page.putInt(bucket.vals[i]);
+            }
+            pages.add(page.array());
+        }
+        return pages;
+    }
+
+    /**
+     * Returns the number of pages of the hash table.
+     *
+     * @return the number of directory and bucket pages
+     */
+    public int pageCount() {
+        return directoryPages(globalDepth) + (int) directory.stream().distinct().count();
+    }
+
+    /**
+     * Returns the number of pages of a directory of the specified global depth.
+     */
+    private int directoryPages(int depth) {
+        int size = DIRECTORY_HEADER_SIZE + (1 << depth) * 4;
+        return (size + pageSize - 1) / pageSize;
+    }
+
+    /**
+     * Returns the mask of the last depth bits of a hash.
+     */
+    static int mask(int depth) {
+        return (1 << depth) - 1;
+    }
+}
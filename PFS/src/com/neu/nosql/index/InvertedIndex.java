@@ -0,0 +1,246 @@
+package com.neu.nosql.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class provides the binary layout of a secondary index on a column of a file.
+ * The index is inverted: it maps every term of the column to the posting list of the keys whose value
+ * holds the term, together with the data block of each key. A value is split into terms at '|',
+ * e.g. the genre "Comedy|Romance" has the terms "comedy" and "romance", and terms are matched ignoring case.
+ *
+ * The format is as follows:
+ * - 1 byte: the magic number MAGIC
+ * - 1 byte: the index of the column
+ * - 4 bytes: the number of terms
+ * - the dictionary, with the terms in ascending order, each with a 2-byte length, the UTF-8 bytes of the term,
+ *   the index of its first posting and its number of postings (4 bytes each)
+ * - the postings, each with the key and the data block ID (4 bytes each), in ascending key order within a term
+ *
+ * A lookup only reads the dictionary and the postings of the term, and the postings tell which data blocks
+ * hold the matching entries, so the data blocks of the file are not scanned.
+ * When an entry is changed, update() moves its key to the postings of its new terms and writes the index again.
+ */
+public class InvertedIndex {
+    public static final byte MAGIC = (byte) 0xB9;
+
+    private static final int HEADER_SIZE = 6;
+    private static final int POSTING_SIZE = 8;
+
+    /**
+     * Splits a value of the column into its terms.
+     *
+     * @param value the value
+     * @return the terms, in lower case
+     */
+    public static List<String> terms(String value) {
+        List<String> terms = new ArrayList<>();
+        for (String term : value.split("\\|")) {
+            term = term.trim().toLowerCase(Locale.ROOT);
+            if (!term.isEmpty() && !terms.contains(term)) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * A builder of the inverted index of a column, which is given the entries one at a time, e.g. while a file is read.
+     * The size of the index is kept up to date, so that the caller can stop as soon as the index is too large.
+     */
+    public static final class Builder {
+        private final int column;
+        private final TreeMap<String, TreeMap<Integer, Integer>> postings = new TreeMap<>();
+        private int size = HEADER_SIZE;
+
+        /**
+         * Constructs a builder of an empty index.
+         *
+         * @param column the index of the column
+         */
+        public Builder(int column) {
+            this.column = column;
+        }
+
+        /**
+         * Adds a key to the postings of the terms of its value.
+         *
+         * @param key     the key
+         * @param value   the value of the column
+         * @param blockID the data block ID of the key
+         */
+        public void add(int key, String value, int blockID) {
+            for (String term : terms(value)) {
+                TreeMap<Integer, Integer> termPostings = postings.get(term);
+                if (termPostings == null) {
+                    termPostings = new TreeMap<>();
+                    postings.put(term, termPostings);
+                    size += 10 + term.getBytes(StandardCharsets.UTF_8).length;
+                }
+                if (termPostings.put(key, blockID) == null) {
+                    size += POSTING_SIZE;
+                }
+            }
+        }
+
+        /**
+         * Removes a key from the postings of every term, e.g. when a later entry replaces it.
+         *
+         * @param key the key
+         */
+        public void remove(int key) {
+            postings.entrySet().removeIf(term -> {
+                if (term.getValue().remove(key) != null) {
+                    size -= POSTING_SIZE;
+                }
+                if (term.getValue().isEmpty()) {
+                    size -= 10 + term.getKey().getBytes(StandardCharsets.UTF_8).length;
+                    return true;
+                }
+                return false;
+            });
+        }
+
+        /**
+         * Returns the size of the index built so far.
+         *
+         * @return the size of the index in bytes
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Writes the index built so far.
+         *
+         * @return the bytes of the index
+         */
+        public byte[] encode() {
+            return write(column, postings);
+        }
+    }
+
+    /**
+     * Changes the postings of a key after its entry was inserted, updated or deleted: the key is removed
+     * from the postings of every term, and added to the postings of the terms of its new value.
+     * The index is read and written again as a whole, which costs the size of the index, not of the file.
+     *
+     * @param index   the bytes of the index, starting at position 0
+     * @param key     the key
+     * @param value   the new value of the column, or null if the entry was deleted
+     * @param blockID the data block ID of the entry
+     * @return the bytes of the new index
+     */
+    public static byte[] update(ByteBuffer index, int key, String value, int blockID) {
+        TreeMap<String, TreeMap<Integer, Integer>> postings = new TreeMap<>();
+        int termCount = index.getInt(2);
+        int pos = HEADER_SIZE;
+        List<String> terms = new ArrayList<>(termCount);
+        List<int[]> ranges = new ArrayList<>(termCount); // 每个term的第一个posting和posting个数
+        for (int i = 0; i < termCount; i++) {
+            int length = index.getShort(pos);
+            byte[] bytes = new byte[length];
+            index.get(pos + 2, bytes);
+            terms.add(new String(bytes, StandardCharsets.UTF_8));
+            ranges.add(new int[]{index.getInt(pos + 2 + length), index.getInt(pos + 6 + length)});
+            pos += 10 + length;
+        }
+        for (int i = 0; i < termCount; i++) {
+            TreeMap<Integer, Integer> termPostings = new TreeMap<>();
+            for (int j = 0; j < ranges.get(i)[1]; j++) {
+                int at = pos + (ranges.get(i)[0] + j) * POSTING_SIZE;
+                if (index.getInt(at) != key) {
+                    termPostings.put(index.getInt(at), index.getInt(at + 4));
+                }
+            }
+            if (!termPostings.isEmpty()) {
+                postings.put(terms.get(i), termPostings);
+            }
+        }
+        if (value != null) {
+            for (String term : terms(value)) {
+                postings.computeIfAbsent(term, k -> new TreeMap<>()).put(key, blockID);
+            }
+        }
+        return write(column(index), postings);
+    }
+
+    /**
+     * Writes an index with the given postings, each term mapping its keys to their data block IDs.
+     */
+    private static byte[] write(int column, TreeMap<String, TreeMap<Integer, Integer>> postings) {
+        int size = HEADER_SIZE;
+        for (Map.Entry<String, TreeMap<Integer, Integer>> term : postings.entrySet()) {
+            size += 10 + term.getKey().getBytes(StandardCharsets.UTF_8).length + term.getValue().size() * POSTING_SIZE;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(MAGIC);
+        buffer.put((byte) column);
+        buffer.putInt(postings.size());
+        int first = 0;
+        for (Map.Entry<String, TreeMap<Integer, Integer>> term : postings.entrySet()) {
+            byte[] bytes = term.getKey().getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+            buffer.putInt(first);
+            buffer.putInt(term.getValue().size());
+            first += term.getValue().size();
+        }
+        for (TreeMap<Integer, Integer> termPostings : postings.values()) {
+            for (Map.Entry<Integer, Integer> posting : termPostings.entrySet()) {
+                buffer.putInt(posting.getKey());
+                buffer.putInt(posting.getValue());
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Visits the postings of a term in ascending key order, until the visitor returns false.
+     *
+     * @param index   the bytes of the index, starting at position 0
+     * @param value   the term to search for, matched ignoring case
+     * @param visitor the visitor of the keys and their data block IDs
+     * @return the number of postings of the term, or 0 if the term is not in the index
+     * @throws IOException if the visitor fails
+     */
+    public static int find(ByteBuffer index, String value, DiskIndex.Visitor visitor) throws IOException {
+        byte[] target = value.trim().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+        int termCount = index.getInt(2);
+        int pos = HEADER_SIZE;
+        int first = -1;
+        int count = 0;
+        for (int i = 0; i < termCount; i++) {
+            int length = index.getShort(pos);
+            if (first < 0 && length == target.length && index.slice(pos + 2, length).equals(ByteBuffer.wrap(target))) {
+                first = index.getInt(pos + 2 + length);
+                count = index.getInt(pos + 6 + length);
+            }
+            pos += 10 + length;
+        }
+        // pos是postings的起始位置
+        for (int i = 0; i < count; i++) {
+            int at = pos + (first + i) * POSTING_SIZE;
+            if (!visitor.visit(index.getInt(at), index.getInt(at + 4))) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the index of the column of the inverted index.
+     *
+     * @param index the bytes of the index, starting at position 0
+     * @return the index of the column
+     */
+    public static int column(ByteBuffer index) {
+        return index.get(1);
+    }
+}
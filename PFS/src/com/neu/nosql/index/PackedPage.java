@@ -0,0 +1,342 @@
+package com.neu.nosql.index;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class provides the compressed binary layout of a B+tree node stored on disk as a page of one block.
+ * Unlike BTreePage, a node has no fixed number of keys: it holds as many keys as fit in the page once compressed.
+ * The ids of a file are dense and sorted, so a key is written as its difference from the previous key,
+ * which usually takes one byte, and the values and children are written with just the bits they need.
+ *
+ * The page format is as follows:
+ * - 1 byte: the header, with TAG in the two high bits, 1 in the next bit if the node is a leaf,
+ *   and the bit width w of the pointers in the five low bits. The tag tells packed pages apart from
+ *   the other indexes, whose magic numbers are lower, and from an empty page, which is 0
+ * - varint: the number of keys n
+ * - varint: in a leaf only, the page number of the next leaf plus 1, or 0 for the last leaf
+ * - varint: the first key, zigzag-encoded, followed by n-1 varints with the difference from the previous key
+ * - varint: the base, the lowest pointer of the node
+ * - the pointers minus the base, w bits each, starting from the low bit of the first byte:
+ *   the n values of a leaf, or the n+1 page numbers of the children of an inner node
+ *
+ * A varint is an unsigned int written 7 bits at a time from the low bits, with the high bit set on all bytes but the last.
+ * Pointers must not be negative. An inner node has no values, as in BTreePage.
+ */
+public class PackedPage {
+    public static final int TAG = 0xC0;
+
+    private static final int LEAF_BIT = 0x20;
+    private static final int WIDTH_MASK = 0x1F;
+
+    /**
+     * A node of a B+tree decoded from a page. The keys and pointers grow as they are inserted.
+     */
+    static final class Node {
+        final boolean leaf;
+        int n; // key的个数
+        int[] keys;
+        int[] ptrs; // 叶子节点的value, 或内部节点的n+1个子节点的page number
+        int next = -1; // 叶子节点的下一个叶子节点
+
+        Node(boolean leaf, int capacity) {
+            this.leaf = leaf;
+            this.keys = new int[Math.max(1, capacity)];
+            this.ptrs = new int[Math.max(1, capacity) + 1];
+        }
+
+        /**
+         * Returns the number of pointers of the node: n values in a leaf, n+1 children in an inner node.
+         */
+        int ptrCount() {
+            return leaf ? n : n + 1;
+        }
+
+        /**
+         * Searches the keys of the node with a binary search, as BTreeNode.search() does.
+         */
+        int search(int key) {
+            return Arrays.binarySearch(keys, 0, n, key);
+        }
+
+        /**
+         * Returns the index of the child of an inner node that holds the key. Keys equal to a separator are in the right child.
+         */
+        int childIndex(int key) {
+            int pos = search(key);
+            return pos >= 0 ? pos + 1 : -pos - 1;
+        }
+
+        /**
+         * Inserts a key at the specified index, with the pointer after it: the value of the key in a leaf,
+         * or the child to the right of the key in an inner node.
+         *
+         * @param i   the index of the new key
+         * @param key the key
+         * @param ptr the pointer
+         */
+        void insertAt(int i, int key, int ptr) {
+            if (n == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * n);
+                ptrs = Arrays.copyOf(ptrs, 2 * n + 1);
+            }
+            int p = leaf ? i : i + 1;
+            System.arraycopy(keys, i, keys, i + 1, n - i);
+            System.arraycopy(ptrs, p, ptrs, p + 1, ptrCount() - p);
+            keys[i] = key;
+            ptrs[p] = ptr;
+            n++;
+        }
+
+        /**
+         * Removes the key-value pair at the specified index of a leaf.
+         *
+         * @param i the index of the key
+         */
+        void removeAt(int i) {
+            System.arraycopy(keys, i + 1, keys, i, n - i - 1);
+            System.arraycopy(ptrs, i + 1, ptrs, i, n - i - 1);
+            n--;
+        }
+
+        /**
+         * Moves the keys from index from to a new node to the right of this node.
+         * In an inner node, the key at index from is removed and goes up as the separator,
+         * and the new node gets the children after it.
+         *
+         * @param from the index of the first key to be moved
+         * @return the new node
+         */
+        Node splitAt(int from) {
+            int first = leaf ? from : from + 1;
+            Node right = new Node(leaf, n - first);
+            right.n = n - first;
+            System.arraycopy(keys, first, right.keys, 0, right.n);
+            System.arraycopy(ptrs, first, right.ptrs, 0, right.ptrCount());
+            n = from;
+            return right;
+        }
+    }
+
+    /**
+     * Checks if the first byte of a page is the header of a packed page.
+     *
+     * @param magic the first byte of the page
+     * @return true if the page is a packed B+tree page
+     */
+    public static boolean isPacked(byte magic) {
+        return (magic & TAG) == TAG;
+    }
+
+    /**
+     * Checks if the page is a leaf.
+     *
+     * @param page the page
+     * @return true if the page holds a leaf node, false otherwise
+     */
+    public static boolean isLeaf(ByteBuffer page) {
+        return (page.get(0) & LEAF_BIT) != 0;
+    }
+
+    /**
+     * Encodes a node into a page.
+     *
+     * @param node     the node to be encoded
+     * @param pageSize the size of a page
+     * @return the page bytes
+     * @throws IllegalArgumentException if the node doesn't fit in a page, or a pointer is negative
+     */
+    static byte[] encode(Node node, int pageSize) {
+        int size = encodedSize(node);
+        if (size > pageSize) {
+            throw new IllegalArgumentException("Node is too large for a page: " + size + " bytes");
+        }
+        int count = node.ptrCount();
+        int base = base(node);
+        int width = width(node, base);
+        ByteBuffer page = ByteBuffer.allocate(pageSize);
+        page.put((byte) (TAG | (node.leaf ? LEAF_BIT : 0) | width));
+        putVarint(page, node.n);
+        if (node.leaf) {
+            putVarint(page, node.next + 1);
+        }
+        for (int i = 0; i < node.n; i++) {
+            putVarint(page, i == 0 ? (node.keys[0] << 1) ^ (node.keys[0] >> 31) : node.keys[i] - node.keys[i - 1]);
+        }
+        putVarint(page, base);
+        long bits = 0; // 还没写出的低位
+        int pending = 0;
+        for (int i = 0; i < count; i++) {
+            bits |= (long) (node.ptrs[i] - base) << pending;
+            pending += width;
+            while (pending >= 8) {
+                page.put((byte) bits);
+                bits >>>= 8;
+                pending -= 8;
+            }
+        }
+        if (pending > 0) {
+            page.put((byte) bits);
+        }
+        return page.array();
+    }
+
+    /**
+     * Returns the size of a node once encoded, without encoding it.
+     *
+     * @param node the node
+     * @return the size in bytes
+     */
+    static int encodedSize(Node node) {
+        int size = 1 + varintSize(node.n);
+        if (node.leaf) {
+            size += varintSize(node.next + 1);
+        }
+        for (int i = 0; i < node.n; i++) {
+            size += varintSize(i == 0 ? (node.keys[0] << 1) ^ (node.keys[0] >> 31) : node.keys[i] - node.keys[i - 1]);
+        }
+        int base = base(node);
+        return size + varintSize(base) + (node.ptrCount() * width(node, base) + 7) / 8;
+    }
+
+    /**
+     * Decodes a page into a node.
+     *
+     * @param page the page
+     * @return the node
+     */
+    static Node decode(ByteBuffer page) {
+        int[] pos = {1};
+        int n = getVarint(page, pos);
+        Node node = new Node(isLeaf(page), n);
+        node.n = n;
+        if (node.leaf) {
+            node.next = getVarint(page, pos) - 1;
+        }
+        for (int i = 0; i < n; i++) {
+            int v = getVarint(page, pos);
+            node.keys[i] = i == 0 ? (v >>> 1) ^ -(v & 1) : node.keys[i - 1] + v;
+        }
+        int base = getVarint(page, pos);
+        int width = page.get(0) & WIDTH_MASK;
+        for (int i = 0; i < node.ptrCount(); i++) {
+            node.ptrs[i] = base + ptrAt(page, pos[0], i, width);
+        }
+        return node;
+    }
+
+    /**
+     * Finds the pointer a key leads to in a page, without decoding the page into a node:
+     * the child that holds the key in an inner node, or the value of the key in a leaf.
+     * The keys are read one by one, as each depends on the previous one.
+     *
+     * @param page the page
+     * @param key  the key to search for
+     * @return the page number of the child, or the value of the key, or -1 if a leaf doesn't hold the key
+     */
+    static int lookup(ByteBuffer page, int key) {
+        boolean leaf = isLeaf(page);
+        int[] pos = {1};
+        int n = getVarint(page, pos);
+        if (leaf) {
+            getVarint(page, pos);
+        }
+        int i = 0; // 小于等于key的key的个数
+        int found = -1;
+        int k = 0;
+        for (int j = 0; j < n; j++) {
+            int v = getVarint(page, pos);
+            k = j == 0 ? (v >>> 1) ^ -(v & 1) : k + v;
+            if (k <= key) {
+                i++;
+                if (k == key) {
+                    found = j;
+                }
+            }
+        }
+        int base = getVarint(page, pos);
+        int width = page.get(0) & WIDTH_MASK;
+        if (leaf) {
+            return found < 0 ? -1 : base + ptrAt(page, pos[0], found, width);
+        }
+        return base + ptrAt(page, pos[0], i, width);
+    }
+
+    /**
+     * Returns the size of a varint.
+     *
+     * @param v the value, as an unsigned int
+     * @return the number of bytes
+     */
+    static int varintSize(int v) {
+        int size = 1;
+        while ((v & ~0x7F) != 0) {
+            v >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the lowest pointer of a node, or 0 for a node without pointers.
+     */
+    private static int base(Node node) {
+        int base = node.ptrCount() == 0 ? 0 : Integer.MAX_VALUE;
+        for (int i = 0; i < node.ptrCount(); i++) {
+            if (node.ptrs[i] < 0) {
+                throw new IllegalArgumentException("Pointer must not be negative: " + node.ptrs[i]);
+            }
+            base = Math.min(base, node.ptrs[i]);
+        }
+        return base;
+    }
+
+    /**
+     * Returns the number of bits needed by the largest pointer of a node minus the base.
+     */
+    private static int width(Node node, int base) {
+        int max = 0;
+        for (int i = 0; i < node.ptrCount(); i++) {
+            max = Math.max(max, node.ptrs[i] - base);
+        }
+        return 32 - Integer.numberOfLeadingZeros(max);
+    }
+
+    /**
+     * Reads the i-th pointer minus the base from the bit-packed pointers starting at the specified offset.
+     */
+    private static int ptrAt(ByteBuffer page, int offset, int i, int width) {
+        long bit = (long) i * width;
+        int at = offset + (int) (bit >>> 3);
+        long bits = 0;
+        for (int b = 0; b < 5 && at + b < page.limit(); b++) {
+            bits |= (long) (page.get(at + b) & 0xFF) << (8 * b);
+        }
+        return (int) ((bits >>> (bit & 7)) & ((1L << width) - 1));
+    }
+
+    /**
+     * Writes a varint.
+     */
+    private static void putVarint(ByteBuffer page, int v) {
+        while ((v & ~0x7F) != 0) {
+            page.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        page.put((byte) v);
+    }
+
+    /**
+     * Reads a varint at pos[0] and moves pos[0] past it.
+     */
+    private static int getVarint(ByteBuffer page, int[] pos) {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = page.get(pos[0]++);
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+    }
+}
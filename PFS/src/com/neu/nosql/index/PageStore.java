@@ -0,0 +1,20 @@
+package com.neu.nosql.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This interface represents the storage of the pages of a disk-resident index.
+ * Pages are numbered from 0, and page 0 is the root of the tree.
+ * The database decides where a page lives, e.g. in which index block of a file and at which offset.
+ */
+public interface PageStore {
+    /**
+     * Reads the page with the specified number.
+     *
+     * @param pageNo the page number
+     * @return the bytes of the page, starting at position 0
+     * @throws IOException if an I/O error occurs while reading the page
+     */
+    ByteBuffer read(int pageNo) throws IOException;
+}
@@ -0,0 +1,38 @@
+package com.neu.nosql.index;
+
+import java.io.IOException;
+
+/**
+ * This interface represents a disk-resident index whose keys can be inserted and deleted in place,
+ * on top of a WritablePageStore.
+ */
+public interface WritableIndex extends DiskIndex {
+    /**
+     * Inserts a key-value pair into the index, or replaces the value of the key if it is already in the index.
+     *
+     * @param key the key to be inserted
+     * @param val the value associated with the key
+     * @return true if the key was inserted, false if the value of an existing key was replaced
+     * @throws IOException if an I/O error occurs while reading or writing a page
+     */
+    boolean insert(int key, int val) throws IOException;
+
+    /**
+     * Deletes a key from the index.
+     *
+     * @param key the key to be deleted
+     * @return true if the key was deleted, false if it is not in the index
+     * @throws IOException if an I/O error occurs while reading or writing a page
+     */
+    boolean delete(int key) throws IOException;
+
+    /**
+     * Returns the number of pages an insert of the key-value pair appends to the index, without changing it.
+     *
+     * @param key the key to be inserted
+     * @param val the value associated with the key
+     * @return the number of new pages
+     * @throws IOException if an I/O error occurs while reading a page
+     */
+    int pagesToSplit(int key, int val) throws IOException;
+}
@@ -0,0 +1,35 @@
+package com.neu.nosql.index;
+
+import java.io.IOException;
+
+/**
+ * This interface represents the storage of the pages of a disk-resident index that can be changed in place,
+ * so that a key is added or removed by rewriting the pages it touches instead of the whole index.
+ */
+public interface WritablePageStore extends PageStore {
+    /**
+     * Overwrites the page with the specified number.
+     *
+     * @param pageNo the page number
+     * @param page   the new bytes of the page
+     * @throws IOException if an I/O error occurs while writing the page
+     */
+    void write(int pageNo, byte[] page) throws IOException;
+
+    /**
+     * Writes a new page after the last page of the index.
+     *
+     * @param page the bytes of the page
+     * @return the page number of the new page
+     * @throws IOException if an I/O error occurs while writing the page
+     */
+    int append(byte[] page) throws IOException;
+
+    /**
+     * Returns the page number the next append() gives to its page, without writing anything.
+     *
+     * @return the page number of the next new page
+     * @throws IOException if an I/O error occurs while reading a page
+     */
+    int nextPageNo() throws IOException;
+}
@@ -3,18 +3,31 @@ package com.neu.nosql.io;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * This class reads the movie data from the CSV file.
- * It provides a static method to read the movie data and return it as a map.
+ * It provides static methods to read the movie data and return it as a map, or to stream the rows to a visitor,
+ * in the order of the file or, with several threads, in key order.
  * Each line of the CSV file should have three parts: movie ID, movie name, and movie type.
  * The movie ID is used as the key in the map, and the movie name and type are concatenated as the value.
- * If the concatenated value exceeds 40 bytes, it is truncated to fit within the limit.
+ * The value is not truncated: data blocks hold values of any length (see Block).
  */
 public class MovieReader {
-    private static final int MAX_LENGTH = 40; // 40 bytes
+    public static final String[] COLUMNS = {"id", "name", "genre"}; // CSV的列名
+    public static final int DEFAULT_BUFFER_SIZE = 8192; // 读CSV的缓冲区大小(字符)
+    private static final int CHUNKS_PER_THREAD = 4; // 并行解析时每个线程的chunk个数, 平衡各线程的负载
 
     /**
      * Reads the movie data from the CSV file and returns it as a map.
@@ -24,42 +37,283 @@ public class MovieReader {
      */
     public static Map<Integer, String> readMoviesFromCSV(String filePath) {
         Map<Integer, String> lines = new HashMap<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
+        try {
+            readMovies(filePath, DEFAULT_BUFFER_SIZE, (id, val, parts) -> lines.put(id, val));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return lines;
+    }
+
+    /**
+     * Reads one column of the movie data from the CSV file.
+     *
+     * @param filePath the file path of the CSV file
+     * @param column   the index of the column in COLUMNS
+     * @return a map containing the column, where the key is the movie ID and the value is the value of the column
+     */
+    public static Map<Integer, String> readColumnFromCSV(String filePath, int column) {
+        Map<Integer, String> values = new HashMap<>();
+        try {
+            readMovies(filePath, DEFAULT_BUFFER_SIZE, (id, val, parts) -> values.put(id, parts[column]));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return values;
+    }
+
+    /**
+     * Reads the movie data from the CSV file one row at a time, in the order of the file.
+     * Each row is handed to the visitor and then dropped, so the memory used is the read buffer
+     * and one row, whatever the size of the file.
+     *
+     * @param filePath   the file path of the CSV file
+     * @param bufferSize the size of the read buffer in chars
+     * @param visitor    the visitor of the rows
+     * @throws IOException if an I/O error occurs while reading the file, or the visitor fails
+     */
+    public static void readMovies(String filePath, int bufferSize, RowVisitor visitor) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(filePath), bufferSize)) {
             String line;
             while ((line = br.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 3) {
-                    int movieId = Integer.parseInt(parts[0].trim());
-                    String movieName = parts[1].trim();
-                    String movieType = parts[2].trim();
-                    String val = movieName + "," + movieType;
-
-                    int totalLength = val.getBytes().length;
-                    if (totalLength > MAX_LENGTH) {
-                        val = truncateString(val);
-                    }
+                String[] parts = parseRow(line);
+                if (parts != null) {
+                    visitor.visit(Integer.parseInt(parts[0]), valueOf(parts), parts);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the movie data from the CSV file with several threads, and hands the rows to the visitor in key order.
+     * The file is mapped into memory and split into chunks of about the same size, each starting after a line break,
+     * and the chunks are parsed on a ForkJoinPool. Each chunk sorts its rows by key, and the sorted chunks are
+     * merged, so rows with the same ID are visited in the order of the file and the later row comes last.
+     *
+     * Unlike readMovies(), all the rows are parsed before the first one is visited, so the memory used is
+     * the size of the parsed file. The visitor is called from the calling thread only.
+     *
+     * @param filePath    the file path of the CSV file
+     * @param parallelism the number of threads parsing the chunks
+     * @param visitor     the visitor of the rows
+     * @throws IOException if an I/O error occurs while reading the file, or the visitor fails
+     */
+    public static void readMoviesParallel(String filePath, int parallelism, RowVisitor visitor) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        Chunk[] chunks;
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("File is too large to be mapped: " + filePath);
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int[] bounds = chunkBounds(map, parallelism * CHUNKS_PER_THREAD);
+            chunks = new Chunk[bounds.length - 1];
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new ParseTask(map, bounds, chunks, 0, chunks.length));
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        // 按key归并各个chunk, key相同时前面的chunk先被访问
+        PriorityQueue<Chunk> queue = new PriorityQueue<>(Math.max(1, chunks.length),
+                (a, b) -> a.id() != b.id() ? Integer.compare(a.id(), b.id()) : Integer.compare(a.index, b.index));
+        for (Chunk chunk : chunks) {
+            if (chunk.n > 0) {
+                queue.add(chunk);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Chunk chunk = queue.poll();
+            int row = chunk.row();
+            visitor.visit(chunk.ids[row], chunk.vals[row], chunk.parts[row]);
+            if (++chunk.next < chunk.n) {
+                queue.add(chunk);
+            }
+        }
+    }
+
+    /**
+     * Splits a line of the CSV file into its columns.
+     *
+     * @param line the line
+     * @return the trimmed columns, or null if the line doesn't have three columns
+     */
+    private static String[] parseRow(String line) {
+        String[] parts = line.split(",");
+        if (parts.length != 3) {
+            return null;
+        }
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = parts[i].trim();
+        }
+        return parts;
+    }
 
-                    lines.put(movieId, val);
+    /**
+     * Returns the value of a row as stored in the database: the movie name and type separated by a comma.
+     */
+    private static String valueOf(String[] parts) {
+        return parts[1] + "," + parts[2];
+    }
+
+    /**
+     * Returns the bounds of the chunks of a file: chunk i goes from bounds[i] to bounds[i+1].
+     * Each bound but the first is moved forward to the start of the next line, so no line is split between chunks.
+     */
+    private static int[] chunkBounds(ByteBuffer file, int count) {
+        int size = file.limit();
+        int[] bounds = new int[count + 1];
+        for (int i = 1; i < count; i++) {
+            int at = Math.max(bounds[i - 1], (int) ((long) size * i / count));
+            while (at > 0 && at < size && file.get(at - 1) != '\n') {
+                at++;
+            }
+            bounds[i] = at;
+        }
+        bounds[count] = size;
+        return bounds;
+    }
+
+    /**
+     * The rows parsed from a chunk of a file, sorted by key, with the cursor of the merge.
+     */
+    private static final class Chunk {
+        final int index; // chunk在文件中的序号
+        int n;
+        int[] ids = new int[16];
+        String[] vals = new String[16];
+        String[][] parts = new String[16][];
+        long[] order; // 按(key, 行号)排序
+        int next; // 归并时下一行
+
+        Chunk(int index) {
+            this.index = index;
+        }
+
+        void add(int id, String val, String[] row) {
+            if (n == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * n);
+                vals = Arrays.copyOf(vals, 2 * n);
+                parts = Arrays.copyOf(parts, 2 * n);
+            }
+            ids[n] = id;
+            vals[n] = val;
+            parts[n] = row;
+            n++;
+        }
+
+        void sort() {
+            order = new long[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = (long) ids[i] << 32 | i; // 行号不为负, key相同时按行号排序
+            }
+            Arrays.sort(order);
+        }
+
+        int row() {
+            return (int) order[next];
+        }
+
+        int id() {
+            return ids[row()];
+        }
+    }
+
+    /**
+     * Parses a range of chunks, splitting the range in two until a task has a single chunk.
+     */
+    private static final class ParseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer file;
+        private final int[] bounds;
+        private final Chunk[] chunks;
+        private final int from;
+        private final int to;
+
+        ParseTask(ByteBuffer file, int[] bounds, Chunk[] chunks, int from, int to) {
+            this.file = file;
+            this.bounds = bounds;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ParseTask(file, bounds, chunks, from, mid), new ParseTask(file, bounds, chunks, mid, to));
+                return;
+            }
+            Chunk chunk = new Chunk(from);
+            int start = bounds[from];
+            int end = bounds[from + 1];
+            byte[] bytes = new byte[end - start];
+            file.get(start, bytes); // 绝对位置读取, 不改变共享buffer的position
+            int lineStart = 0;
+            for (int i = 0; i <= bytes.length; i++) {
+                if (i == bytes.length || bytes[i] == '\n') {
+                    int lineEnd = i > lineStart && bytes[i - 1] == '\r' ? i - 1 : i;
+                    if (i < bytes.length || lineEnd > lineStart) {
+                        String[] row = parseRow(new String(bytes, lineStart, lineEnd - lineStart, Charset.defaultCharset()));
+                        if (row != null) {
+                            chunk.add(Integer.parseInt(row[0]), valueOf(row), row);
+                        }
+                    }
+                    lineStart = i + 1;
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            chunk.sort();
+            chunks[from] = chunk;
         }
+    }
 
-        return lines;
+    /**
+     * A visitor of the rows of a CSV file.
+     */
+    public interface RowVisitor {
+        /**
+         * Visits a row.
+         *
+         * @param id    the movie ID
+         * @param val   the concatenated movie name and type, as in readMoviesFromCSV()
+         * @param parts the columns of the row in the order of COLUMNS, trimmed
+         * @throws IOException if an I/O error occurs while handling the row
+         */
+        void visit(int id, String val, String[] parts) throws IOException;
     }
 
     /**
-     * Truncates the given string to fit within the maximum length of 40 bytes.
+     * Returns the index of the column with the given name.
      *
-     * @param str the string to be truncated
-     * @return the truncated string
+     * @param name the name of the column, e.g. genre
+     * @return the index of the column in COLUMNS, or -1 if there is no such column
      */
-    private static String truncateString(String str) {
-        byte[] bytes = str.getBytes();
-        if (bytes.length <= MovieReader.MAX_LENGTH) {
-            return str;
+    public static int columnOf(String name) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equalsIgnoreCase(name)) {
+                return i;
+            }
         }
-        return new String(bytes, 0, MovieReader.MAX_LENGTH);
+        return -1;
+    }
+
+    /**
+     * Returns one column of a value as stored in the database, i.e. the movie name and type separated by a comma.
+     *
+     * @param val    the value of an entry
+     * @param column the index of the column in COLUMNS, 1 for the name or 2 for the type
+     * @return the value of the column, or an empty string if the value doesn't have the column
+     */
+    public static String columnOfValue(String val, int column) {
+        String[] parts = val.split(",");
+        return column >= 1 && column <= parts.length ? parts[column - 1].trim() : "";
     }
 }
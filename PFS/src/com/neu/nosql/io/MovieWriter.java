@@ -1,8 +1,13 @@
 package com.neu.nosql.io;
 
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 
 /**
@@ -10,8 +15,14 @@ import java.util.Map;
  * It provides a static method to write the movie data from a map to a specified file path.
  * Each entry in the map represents a movie, where the key is the movie ID and the value is the concatenated movie name and type.
  * The data is written to the CSV file in the format: movie ID, movie name, movie type.
+ * The rows can also be streamed to the file with an Output, which formats them straight from the bytes of the data blocks.
  */
 public class MovieWriter {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024; // 导出CSV的缓冲区大小(字节)
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+    private static final int MAX_ROW_SIZE = 11 + 1 + 1 + 2; // 除value外一行最多的字节数: id, 逗号, 补的逗号, 换行
+
     /**
      * Writes the movie data from the given map to the specified CSV file.
      *
@@ -39,4 +50,118 @@ public class MovieWriter {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Opens a CSV file for streaming rows to it, replacing the file if it exists.
+     *
+     * @param filePath   the file path of the CSV file
+     * @param bufferSize the size of the output buffer in bytes
+     * @return the output
+     * @throws IOException if the file cannot be opened
+     */
+    public static Output open(String filePath, int bufferSize) throws IOException {
+        return new Output(FileChannel.open(Paths.get(filePath), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), bufferSize);
+    }
+
+    /**
+     * A CSV file that rows are streamed to through a reusable buffer, which is written to the file channel when it is full.
+     * A row is formatted from the bytes of its value as writeToCSV() would format the entry,
+     * without creating any object for the row, so exporting a file takes the buffer whatever the size of the file.
+     */
+    public static final class Output implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final byte[] digits = new byte[11]; // int的十进制表示最多11个字符
+        private int rows;
+
+        private Output(FileChannel channel, int bufferSize) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(Math.max(bufferSize, MAX_ROW_SIZE));
+        }
+
+        /**
+         * Writes the row of a data entry from the bytes of its value: the ID, a comma and the value,
+         * plus a comma if the value doesn't have one, as the movie type is then missing.
+         * A value longer than the buffer is written in several parts.
+         *
+         * @param id     the ID of the entry
+         * @param bytes  the bytes holding the value, e.g. a data block
+         * @param offset the offset of the value
+         * @param length the length of the value in bytes
+         * @throws IOException if an I/O error occurs while writing the buffer to the file
+         */
+        public void writeEntry(int id, ByteBuffer bytes, int offset, int length) throws IOException {
+            if (buffer.remaining() < MAX_ROW_SIZE) {
+                flush();
+            }
+            putInt(id);
+            buffer.put((byte) ',');
+            boolean comma = false;
+            for (int i = offset; i < offset + length; i++) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                byte b = bytes.get(i);
+                comma |= b == ',';
+                buffer.put(b);
+            }
+            if (buffer.remaining() < 1 + LINE_SEPARATOR.length) {
+                flush();
+            }
+            if (!comma) {
+                buffer.put((byte) ',');
+            }
+            buffer.put(LINE_SEPARATOR);
+            rows++;
+        }
+
+        /**
+         * Returns the number of rows written so far.
+         *
+         * @return the number of rows
+         */
+        public int rows() {
+            return rows;
+        }
+
+        /**
+         * Writes the buffered rows to the file.
+         *
+         * @throws IOException if an I/O error occurs while writing
+         */
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+
+        /**
+         * Writes the decimal digits of an int.
+         */
+        private void putInt(int v) {
+            if (v < 0) {
+                buffer.put((byte) '-');
+            }
+            int n = 0;
+            do {
+                digits[n++] = (byte) ('0' + Math.abs(v % 10)); // 对Integer.MIN_VALUE也成立
+                v /= 10;
+            } while (v != 0);
+            while (n > 0) {
+                buffer.put(digits[--n]);
+            }
+        }
+    }
 }
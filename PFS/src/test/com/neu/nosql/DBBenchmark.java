@@ -0,0 +1,127 @@
+package test.com.neu.nosql;
+
+import com.neu.nosql.index.BTree;
+import com.neu.nosql.index.ConcurrentBTree;
+import com.neu.nosql.io.MovieReader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The benchmarks of the database, which print their throughput and check nothing.
+ * They are run by hand, apart from the tests in DBTest, since their timing depends on the machine.
+ */
+public class DBBenchmark {
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args not used
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+        concurrentBTreeThroughput();
+        parseThroughput();
+    }
+
+    /**
+     * Measures the throughput of the ConcurrentBTree class with 1 to 8 threads, against a BTree behind one lock.
+     * Each thread runs a mix of 90% finds and 10% inserts on a tree with 100000 keys.
+     */
+    private static void concurrentBTreeThroughput() throws Exception {
+        int keyCount = 100000;
+        int opsPerThread = 100000;
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            ConcurrentBTree tree = new ConcurrentBTree();
+            BTree locked = new BTree();
+            for (int key = 0; key < keyCount; key++) {
+                tree.insert(key * 2, key);
+                locked.insert(key * 2, key);
+            }
+            long concurrent = measure(threads, opsPerThread, (key, insert) -> {
+                if (insert) {
+                    tree.insert(key, key);
+                } else {
+                    tree.find(key);
+                }
+            });
+            long serialized = measure(threads, opsPerThread, (key, insert) -> {
+                synchronized (locked) {
+                    if (insert) {
+                        locked.insert(key, key);
+                    } else {
+                        locked.find(key);
+                    }
+                }
+            });
+            System.out.printf("%d threads: %d ops/s with latch coupling, %d ops/s with one lock%n", threads, concurrent, serialized);
+        }
+    }
+
+    /**
+     * Measures how many rows per second MovieReader parses from a CSV file of 500000 rows, from one thread
+     * with readMovies() and with 1 to 8 threads with readMoviesParallel().
+     */
+    private static void parseThroughput() throws Exception {
+        int rowCount = 500000;
+        Path csv = Files.createTempFile("movies", ".csv");
+        try {
+            List<String> lines = new ArrayList<>(rowCount);
+            Random random = new Random(22);
+            for (int i = 0; i < rowCount; i++) {
+                lines.add(random.nextInt(rowCount) + ",Movie " + i + " (" + (1900 + i % 120) + "),Comedy|Drama");
+            }
+            Files.write(csv, lines);
+            AtomicInteger count = new AtomicInteger();
+            long start = System.nanoTime();
+            MovieReader.readMovies(csv.toString(), MovieReader.DEFAULT_BUFFER_SIZE, (id, val, parts) -> count.incrementAndGet());
+            System.out.printf("readMovies: %d rows/s%n", count.get() * 1000000000L / (System.nanoTime() - start));
+            for (int threads = 1; threads <= 8; threads *= 2) {
+                count.set(0);
+                start = System.nanoTime();
+                MovieReader.readMoviesParallel(csv.toString(), threads, (id, val, parts) -> count.incrementAndGet());
+                System.out.printf("readMoviesParallel with %d threads: %d rows/s%n", threads,
+                        count.get() * 1000000000L / (System.nanoTime() - start));
+            }
+        } finally {
+            Files.delete(csv);
+        }
+    }
+
+    /**
+     * An operation of the B-tree benchmark.
+     */
+    private interface TreeOperation {
+        void run(int key, boolean insert);
+    }
+
+    /**
+     * Runs an operation from several threads and returns the number of operations per second.
+     */
+    private static long measure(int threads, int opsPerThread, TreeOperation operation) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            futures.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int op = 0; op < opsPerThread; op++) {
+                    operation.run(random.nextInt(400000), random.nextInt(10) == 0);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        return (long) threads * opsPerThread * 1_000_000_000L / elapsed;
+    }
+}
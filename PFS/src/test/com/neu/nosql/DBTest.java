@@ -1,13 +1,55 @@
 package test.com.neu.nosql;
 
 import com.neu.nosql.BitMap;
+import com.neu.nosql.Block;
+import com.neu.nosql.BufferPool;
 import com.neu.nosql.DB;
+import com.neu.nosql.FCB;
+import com.neu.nosql.IndexCache;
+import com.neu.nosql.Manifest;
 import com.neu.nosql.Utils;
+import com.neu.nosql.WriteAheadLog;
+import com.neu.nosql.index.BPlusTree;
+import com.neu.nosql.index.BTree;
+import com.neu.nosql.index.BTreeNode;
+import com.neu.nosql.index.BTreePage;
+import com.neu.nosql.index.BTreeSerializer;
+import com.neu.nosql.index.BloomFilter;
+import com.neu.nosql.index.ConcurrentBTree;
+import com.neu.nosql.index.DiskBPlusTree;
+import com.neu.nosql.index.DiskBTree;
+import com.neu.nosql.index.DiskHash;
+import com.neu.nosql.index.DiskPackedBPlusTree;
+import com.neu.nosql.index.ExtendibleHash;
+import com.neu.nosql.index.WritablePageStore;
+import com.neu.nosql.io.MovieReader;
+import com.neu.nosql.io.MovieWriter;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 import static com.neu.nosql.DB.BLOCK_CNT;
+import static com.neu.nosql.DB.BLOCK_SIZE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class DBTest {
 
@@ -39,6 +81,33 @@ public class DBTest {
         System.out.println(deserializedBitmap);
     }
     
+    /**
+     * Tests the word-packed BitMap allocator.
+     * It allocates a few blocks, checks the free block count, looks for contiguous free runs,
+     * and checks that the serialized bitmap matches the boolean array format.
+     */
+    @Test
+    public void testBitMapExtent() {
+        BitMap bitmap = new BitMap();
+        bitmap.set(0, 11);
+        bitmap.set(20);
+        bitmap.set(100);
+        assertEquals(BLOCK_CNT - 13, bitmap.countClear(0, BLOCK_CNT));
+        assertEquals(9, bitmap.countClear(11, 20));
+        assertEquals(11, bitmap.nextClearBit(0));
+        assertEquals(11, bitmap.findExtent(11, 9));
+        assertEquals(21, bitmap.findExtent(11, 10));
+        assertEquals(101, bitmap.findExtent(11, 100));
+        assertEquals(-1, bitmap.findExtent(11, BLOCK_CNT));
+
+        boolean[] expected = new boolean[BLOCK_CNT];
+        for (int i = 0; i < BLOCK_CNT; i++) {
+            expected[i] = bitmap.get(i);
+        }
+        assertArrayEquals(BitMap.serializeBitmap(expected), bitmap.serialize());
+        assertEquals(BLOCK_CNT - 13, BitMap.deserialize(bitmap.serialize()).countClear(0, BLOCK_CNT));
+    }
+
     /**
      * Tests the validatePut() method of the Utils class.
      * It checks if the file "movies.csv" is valid for putting into the database.
@@ -107,6 +176,131 @@ public class DBTest {
         db.get("movies.csv");
     }
 
+    /**
+     * Tests that get streams the rows from the data blocks in the format of MovieWriter.writeToCSV().
+     * It compares the output of get with the rows written by writeToCSV(), with an extra entry
+     * with a negative ID and a value without a comma.
+     */
+    @Test
+    public void testStreamingGet() throws Exception {
+        DB.selectDBFile("test", "movies.csv").put("movies.csv");
+        DB db = DB.locateDB("test", "movies.csv");
+        assertTrue(db.insert("movies.csv", Integer.MIN_VALUE, "Untitled"));
+        db.get("movies.csv");
+        Map<Integer, String> rows = MovieReader.readMoviesFromCSV("./src/com/neu/nosql/io/movies.csv");
+        rows.replaceAll((id, val) -> val.trim()); // 截断后的value在data block中去掉了结尾的空格
+        rows.put(Integer.MIN_VALUE, "Untitled");
+        Path expected = Files.createTempFile("movies", ".csv");
+        try {
+            MovieWriter.writeToCSV(rows, expected.toString());
+            List<String> want = new ArrayList<>(Files.readAllLines(expected));
+            List<String> got = new ArrayList<>(Files.readAllLines(Paths.get("./src/com/neu/nosql/io/movies.csv.output")));
+            assertTrue(got.contains(Integer.MIN_VALUE + ",Untitled,"));
+            Collections.sort(want);
+            Collections.sort(got);
+            assertEquals(want, got);
+        } finally {
+            Files.delete(expected);
+        }
+        DB.selectDBFile("test", "movies.csv").put("movies.csv");
+    }
+
+    /**
+     * Tests that get writes the rows in ascending key order when asked to.
+     * It puts movies.csv with its rows shuffled, so the data blocks are not in key order,
+     * with a B+tree and with a hash index, and checks that the ordered output is the sorted unordered output.
+     */
+    @Test
+    public void testOrderedGet() throws Exception {
+        Path shuffled = Paths.get("./src/com/neu/nosql/io/movies_shuffled.csv");
+        Path output = Paths.get("./src/com/neu/nosql/io/movies_shuffled.csv.output");
+        List<String> lines = new ArrayList<>(Files.readAllLines(Paths.get("./src/com/neu/nosql/io/movies.csv")));
+        Collections.shuffle(lines, new Random(24));
+        Files.write(shuffled, lines);
+        try {
+            for (boolean hash : new boolean[]{false, true}) {
+                DB.selectDBFile("test", "movies_shuffled.csv").put("movies_shuffled.csv", 0, null, hash);
+                DB db = DB.locateDB("test", "movies_shuffled.csv");
+                db.get("movies_shuffled.csv");
+                List<String> unordered = Files.readAllLines(output);
+                db.get("movies_shuffled.csv", true);
+                List<String> ordered = Files.readAllLines(output);
+                assertEquals(53, ordered.size());
+                List<String> expected = new ArrayList<>(unordered);
+                expected.sort((a, b) -> Integer.compare(Integer.parseInt(a.split(",")[0]), Integer.parseInt(b.split(",")[0])));
+                assertTrue(!expected.equals(unordered));
+                assertEquals(expected, ordered);
+                db.remove("movies_shuffled.csv");
+            }
+        } finally {
+            Files.delete(shuffled);
+            Files.deleteIfExists(output);
+        }
+    }
+
+    /**
+     * Tests the slotted data blocks and their overflow chains.
+     * It fills a slotted block, checks that values are not truncated, puts a file with a value longer than a block,
+     * and inserts, updates and deletes long values, which are read back with find and get.
+     */
+    @Test
+    public void testSlottedBlocks() throws Exception {
+        Block block = new Block(256);
+        block.format();
+        int id = 0;
+        while (block.hasRoom(18)) {
+            assertEquals(id, block.add(id, String.format("Movie %02d,Drama|War", id).getBytes()));
+            id++;
+        }
+        System.out.println(id + " entries of 18 bytes in a block of 256 bytes");
+        assertTrue(id > (256 - DB.BLOCK_HEADER_SIZE) / DB.ENTRY_SIZE);
+        assertEquals(-1, block.add(id, String.format("Movie %02d,Drama|War", id).getBytes()));
+        block.clearEntry(3);
+        assertTrue(!block.hasEntry(3));
+        assertEquals(3, block.add(100, "Movie 99,Drama|War".getBytes()));
+        assertEquals(3, block.slotOf(100));
+        assertEquals("Movie 99,Drama|War", block.valueAt(3));
+        assertEquals("Movie 04,Drama|War", block.valueAt(4));
+
+        StringBuilder title = new StringBuilder();
+        while (title.length() < 600) {
+            title.append("The Long Title ");
+        }
+        String longValue = title + "(2025),Drama";
+        Path csv = Paths.get("./src/com/neu/nosql/io/movies_long.csv");
+        Path output = Paths.get("./src/com/neu/nosql/io/movies_long.csv.output");
+        List<String> lines = new ArrayList<>(Files.readAllLines(Paths.get("./src/com/neu/nosql/io/movies.csv")));
+        lines.add("100000," + longValue);
+        Files.write(csv, lines);
+        try {
+            DB.selectDBFile("test", "movies_long.csv").put("movies_long.csv");
+            DB db = DB.locateDB("test", "movies_long.csv");
+            assertEquals("Toy Story (1995),Adventure|Animation|Children|Comedy|Fantasy", db.find("movies_long.csv", 1));
+            assertEquals(longValue, db.find("movies_long.csv", 100000));
+            db.get("movies_long.csv");
+            lines.removeIf(line -> line.contains("\"")); // put跳过title中有逗号的行
+            assertEquals(lines, Files.readAllLines(output));
+
+            assertTrue(db.insert("movies_long.csv", 100001, longValue + " II"));
+            assertEquals(longValue + " II", db.find("movies_long.csv", 100001));
+            assertTrue(db.update("movies_long.csv", 2, longValue + " III"));
+            assertEquals(longValue + " III", db.find("movies_long.csv", 2));
+            assertTrue(db.update("movies_long.csv", 100000, "Short (2025),Drama"));
+            assertEquals("Short (2025),Drama", db.find("movies_long.csv", 100000));
+            assertTrue(db.delete("movies_long.csv", 100001));
+            assertEquals(null, db.find("movies_long.csv", 100001));
+            assertEquals(54, db.range("movies_long.csv", 0, Integer.MAX_VALUE, entry -> { }));
+            db.get("movies_long.csv", true);
+            List<String> rows = Files.readAllLines(output);
+            assertEquals("2," + longValue + " III", rows.get(1));
+            assertEquals("100000,Short (2025),Drama", rows.get(53));
+            db.remove("movies_long.csv");
+        } finally {
+            Files.delete(csv);
+            Files.deleteIfExists(output);
+        }
+    }
+
     /**
      * Tests the dir() method of the DB class.
      * It locates the database file for the database "test" and the file "movies.csv",
@@ -119,4 +313,1252 @@ public class DBTest {
         ArrayList<String> ans = db.dir();
         System.out.println(ans);
     }
+
+    /**
+     * Tests the pin() and unpin() methods of the BufferPool class.
+     * It pins more blocks than a small pool can hold, so that the CLOCK algorithm evicts
+     * the blocks that are not pinned, and checks the hit, miss and eviction counters.
+     */
+    @Test
+    public void testBufferPoolEviction() throws Exception {
+        DB.open("test");
+        String segment = "./src/com/neu/nosql/file/test.db0";
+        BufferPool pool = new BufferPool(4 * BLOCK_SIZE);
+
+        for (int id = 11; id < 19; id++) {
+            pool.pin(segment, id);
+            pool.unpin(segment, id);
+        }
+        assertEquals(8, pool.getMisses());
+        assertEquals(4, pool.getEvictions());
+        assertEquals(4 * BLOCK_SIZE, pool.getUsed());
+
+        pool.pin(segment, 18);
+        pool.unpin(segment, 18);
+        assertEquals(1, pool.getHits());
+        pool.close();
+    }
+
+    /**
+     * Tests the find() method of the DiskBTree class.
+     * It writes a B-tree with 1000 keys as pages, looks up every key through the pages,
+     * and checks that each lookup reads no more pages than the levels of the tree.
+     * The keys are also looked up in memory, before and after a round trip through BTreeSerializer.
+     */
+    @Test
+    public void testDiskBTree() throws Exception {
+        BTree bTree = new BTree();
+        for (int key = 0; key < 1000; key++) {
+            bTree.insert(key, key * 10);
+        }
+        List<byte[]> pages = DiskBTree.toPages(bTree.getRoot(), BTree.MINIMUM_DEGREE);
+        // A B-tree with n keys has a height of at most log_t((n + 1) / 2), so a lookup reads at most height + 1 pages
+        int height = (int) (Math.log(1001 / 2.0) / Math.log(BTree.MINIMUM_DEGREE)) + 1;
+        int[] reads = new int[1];
+        DiskBTree tree = new DiskBTree(pageNo -> {
+            reads[0]++;
+            return ByteBuffer.wrap(pages.get(pageNo));
+        }, BTree.MINIMUM_DEGREE);
+
+        BTreeNode deserialized = new BTreeSerializer().deserialize(new BTreeSerializer().serialize(bTree.getRoot()));
+        for (int key = 0; key < 1000; key++) {
+            reads[0] = 0;
+            assertEquals(key * 10, tree.find(key));
+            assertTrue(reads[0] <= height);
+            assertEquals(key * 10, bTree.find(key));
+            assertEquals(key * 10, BTree.findKey(deserialized, key));
+        }
+        assertEquals(-1, tree.find(1000));
+        System.out.println(pages.size() + " pages, at most " + height + " levels");
+    }
+
+    /**
+     * Tests the IndexCache class.
+     * It finds keys in the same file twice, so that the second lookup hits the cached index,
+     * and checks that putting the file again invalidates its cached index.
+     */
+    @Test
+    public void testIndexCache() throws Exception {
+        IndexCache.init(IndexCache.DEFAULT_BUDGET);
+        IndexCache cache = IndexCache.getInstance();
+        DB db = DB.locateDB("test", "movies.csv");
+        assertEquals("Sabrina (1995),Comedy|Romance", db.find("movies.csv", 7));
+        assertEquals(1, cache.getMisses());
+        long used = cache.getUsed();
+        assertTrue(used > 0);
+
+        assertEquals("Sabrina (1995),Comedy|Romance", db.find("movies.csv", 7));
+        assertEquals(1, cache.getHits());
+        assertEquals(used, cache.getUsed());
+
+        DB.selectDBFile("test", "movies.csv").put("movies.csv");
+        assertEquals(0, cache.getUsed());
+        db = DB.locateDB("test", "movies.csv");
+        assertEquals("Sabrina (1995),Comedy|Romance", db.find("movies.csv", 7));
+        assertEquals(2, cache.getMisses());
+        System.out.println(cache.getUsed() + " bytes cached");
+    }
+
+    /**
+     * Tests the find() and range() methods of the DiskBPlusTree class.
+     * It writes a B+tree with 1000 keys inserted in random order as pages, looks up every key,
+     * and scans a range, checking that the keys come in order and that only the leaves of the range are read.
+     */
+    @Test
+    public void testDiskBPlusTree() throws Exception {
+        List<Integer> keys = new ArrayList<>();
+        for (int key = 0; key < 1000; key++) {
+            keys.add(key);
+        }
+        Collections.shuffle(keys, new Random(7280));
+        BPlusTree bPlusTree = new BPlusTree();
+        for (int key : keys) {
+            bPlusTree.insert(key, key * 10);
+        }
+        List<byte[]> pages = DiskBPlusTree.toPages(bPlusTree.getRoot(), BTree.MINIMUM_DEGREE);
+        int[] reads = new int[1];
+        DiskBPlusTree tree = new DiskBPlusTree(pageNo -> {
+            reads[0]++;
+            return ByteBuffer.wrap(pages.get(pageNo));
+        }, BTree.MINIMUM_DEGREE);
+
+        for (int key = 0; key < 1000; key++) {
+            assertEquals(key * 10, tree.find(key));
+            assertEquals(key * 10, bPlusTree.find(key));
+        }
+        assertEquals(-1, tree.find(1000));
+
+        List<Integer> found = new ArrayList<>();
+        reads[0] = 0;
+        tree.range(100, 199, (key, val) -> {
+            assertEquals(key * 10, val);
+            return found.add(key);
+        });
+        assertEquals(100, found.size());
+        for (int i = 0; i < found.size(); i++) {
+            assertEquals(100 + i, (int) found.get(i));
+        }
+        // A leaf holds at least t-1 keys
+        assertTrue(reads[0] <= 10 + 100 / (BTree.MINIMUM_DEGREE - 1) + 1);
+        System.out.println(reads[0] + " pages read for 100 keys");
+    }
+
+    /**
+     * Tests the range() method of the DB class.
+     * It scans the movies with IDs from 1 to 10 and prints them in ID order.
+     */
+    @Test
+    public void testRange() throws Exception {
+        DB db = DB.locateDB("test", "movies.csv");
+        List<Integer> ids = new ArrayList<>();
+        int count = db.range("movies.csv", 1, 10, entry -> {
+            System.out.println(entry.id + "," + entry.val);
+            ids.add(entry.id);
+        });
+        assertEquals(ids.size(), count);
+        assertTrue(ids.contains(7));
+        for (int i = 1; i < ids.size(); i++) {
+            assertTrue(ids.get(i - 1) < ids.get(i));
+        }
+    }
+
+    /**
+     * Tests the bulkLoad() and countPages() methods of the BPlusTree class.
+     * It bulk-loads B+trees of several sizes and fill factors, checks that every key is found through the pages,
+     * and that the predicted number of pages matches the built tree and is smaller than with inserts.
+     */
+    @Test
+    public void testBulkLoad() throws Exception {
+        for (double fillFactor : new double[]{0.5, 0.7, 1.0}) {
+            for (int n : new int[]{0, 1, 5, 6, 53, 1000}) {
+                int[] keys = new int[n];
+                int[] vals = new int[n];
+                for (int i = 0; i < n; i++) {
+                    keys[i] = i * 2;
+                    vals[i] = i;
+                }
+                BPlusTree bPlusTree = BPlusTree.bulkLoad(keys, vals, BTree.MINIMUM_DEGREE, fillFactor);
+                List<byte[]> pages = DiskBPlusTree.toPages(bPlusTree.getRoot(), BTree.MINIMUM_DEGREE);
+                assertEquals(BPlusTree.countPages(n, BTree.MINIMUM_DEGREE, fillFactor), pages.size());
+
+                DiskBPlusTree tree = new DiskBPlusTree(pageNo -> ByteBuffer.wrap(pages.get(pageNo)), BTree.MINIMUM_DEGREE);
+                for (int i = 0; i < n; i++) {
+                    assertEquals(i, tree.find(i * 2));
+                    assertEquals(-1, tree.find(i * 2 + 1));
+                }
+                int[] count = new int[1];
+                tree.range(Integer.MIN_VALUE, Integer.MAX_VALUE, (key, val) -> {
+                    assertEquals(count[0]++ * 2, key);
+                    return true;
+                });
+                assertEquals(n, count[0]);
+            }
+        }
+
+        BPlusTree inserted = new BPlusTree();
+        for (int key = 0; key < 1000; key++) {
+            inserted.insert(key, key);
+        }
+        int insertedPages = DiskBTree.countPages(inserted.getRoot());
+        System.out.println(insertedPages + " pages with inserts, " + BPlusTree.countPages(1000, BTree.MINIMUM_DEGREE, 1.0) + " pages bulk-loaded");
+        assertTrue(BPlusTree.countPages(1000, BTree.MINIMUM_DEGREE, 1.0) < insertedPages);
+    }
+
+    /**
+     * Tests the minimum degree of the index.
+     * It checks that the largest degree is the one whose page fits in a block, that the degree survives
+     * a round trip through the FCB, and that a file put with a degree is still found, as is a file put with
+     * the default packed pages, which have no degree and take fewer index blocks.
+     */
+    @Test
+    public void testIndexDegree() throws Exception {
+        int t = BTreePage.maxDegree(BLOCK_SIZE);
+        assertEquals(10, t);
+        assertTrue(BTreePage.pageSize(t) <= BLOCK_SIZE);
+        assertTrue(BTreePage.pageSize(t + 1) > BLOCK_SIZE);
+
+        FCB fcb = FCB.deserialize(FCB.serialize(new FCB("movies.csv", "csv", t, new ArrayList<>(), new ArrayList<>())));
+        assertEquals(t, fcb.degree);
+
+        int[] indexBlocks = new int[2];
+        for (int degree : new int[]{4, 0}) {
+            DB db = DB.selectDBFile("test", "movies.csv");
+            db.put("movies.csv", degree);
+            db = DB.locateDB("test", "movies.csv");
+            for (FCB f : db.fcbs) {
+                if (f != null && Utils.parseInputFileName("movies.csv").equals(f.name)) {
+                    assertEquals(degree, f.degree);
+                    indexBlocks[degree == 0 ? 1 : 0] = f.indexBlocks.size();
+                }
+            }
+            assertEquals("Sabrina (1995),Comedy|Romance", db.find("movies.csv", 7));
+            System.out.println(db.range("movies.csv", 1, 100, entry -> { }) + " entries with degree " + degree);
+        }
+        System.out.println(indexBlocks[0] + " index blocks with degree 4, " + indexBlocks[1] + " with packed pages");
+        assertTrue(indexBlocks[1] < indexBlocks[0]);
+    }
+
+    /**
+     * Tests the findBy() method of the DB class.
+     * It puts the file with a secondary index on the genre column, finds the entries of a genre,
+     * and checks that a column without a secondary index is rejected.
+     */
+    @Test
+    public void testFindBy() throws Exception {
+        DB.selectDBFile("test", "movies.csv").put("movies.csv", 0, "genre");
+        DB db = DB.locateDB("test", "movies.csv");
+        List<Integer> ids = new ArrayList<>();
+        int count = db.findBy("movies.csv", "genre", "comedy", entry -> {
+            System.out.println(entry.id + "," + entry.val);
+            ids.add(entry.id);
+        });
+        assertEquals(17, count);
+        assertEquals(count, ids.size());
+        assertTrue(ids.contains(7));
+        assertEquals(0, db.findBy("movies.csv", "genre", "Western", entry -> { }));
+        assertEquals("Sabrina (1995),Comedy|Romance", db.find("movies.csv", 7));
+
+        boolean rejected = false;
+        try {
+            db.findBy("movies.csv", "name", "Heat (1995)", entry -> { });
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        assertTrue(rejected);
+    }
+
+    /**
+     * Tests the BloomFilter class and its use by the find() method of the DB class.
+     * It checks that every added key is found, that few absent keys are, that the filter survives a round trip,
+     * and that a find of an absent key doesn't read the index.
+     */
+    @Test
+    public void testBloomFilter() throws Exception {
+        BloomFilter filter = new BloomFilter(1000);
+        for (int key = 0; key < 1000; key++) {
+            filter.add(key * 7);
+        }
+        BloomFilter decoded = BloomFilter.decode(ByteBuffer.wrap(filter.encode()));
+        int falsePositives = 0;
+        for (int key = 0; key < 1000; key++) {
+            assertTrue(decoded.mightContain(key * 7));
+        }
+        for (int key = 0; key < 10000; key++) {
+            if (decoded.mightContain(7000 + key * 7 + 3)) {
+                falsePositives++;
+            }
+        }
+        System.out.println(falsePositives + " false positives out of 10000");
+        assertTrue(falsePositives < 300);
+        assertEquals(filter.encode().length, BloomFilter.encodedSize(1000));
+
+        DB.selectDBFile("test", "movies.csv").put("movies.csv");
+        IndexCache.init(IndexCache.DEFAULT_BUDGET);
+        DB db = DB.locateDB("test", "movies.csv");
+        long skips = DB.getFilterSkips();
+        assertEquals(null, db.find("movies.csv", 11));
+        assertEquals(null, db.find("movies.csv", 100000));
+        assertEquals(skips + 2, DB.getFilterSkips());
+        assertEquals(0, IndexCache.getInstance().getMisses());
+        assertEquals("Sabrina (1995),Comedy|Romance", db.find("movies.csv", 7));
+    }
+
+    /**
+     * Tests the ExtendibleHash and DiskHash classes, and files put with a hash index.
+     * It writes a hash table with 1000 keys as pages, checks that every key is found by reading two pages,
+     * inserts the keys into a small table in place until its directory spans several pages, deletes some of them,
+     * and checks that a file put with a hash index is found but can't be scanned by range.
+     */
+    @Test
+    public void testExtendibleHash() throws Exception {
+        Random random = new Random(7);
+        int[] keys = random.ints(0, 1000000).distinct().limit(1000).toArray();
+        int[] vals = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            vals[i] = i;
+        }
+        for (int pageSize : new int[]{BLOCK_SIZE, 16 * BLOCK_SIZE}) {
+            ExtendibleHash table = ExtendibleHash.build(keys, vals, pageSize);
+            List<byte[]> pages = table.toPages();
+            assertEquals(table.pageCount(), pages.size());
+            int[] reads = new int[1];
+            DiskHash hash = new DiskHash(pageNo -> {
+                reads[0]++;
+                return ByteBuffer.wrap(pages.get(pageNo));
+            }, pageSize);
+            for (int i = 0; i < keys.length; i++) {
+                assertEquals(i, table.find(keys[i]));
+                assertEquals(i, hash.find(keys[i]));
+            }
+            assertEquals(-1, hash.find(-5));
+            System.out.println(pages.size() + " pages, " + reads[0] + " pages read for " + (keys.length + 1) + " keys");
+            if (pageSize > BLOCK_SIZE) {
+                assertEquals(2 * (keys.length + 1), reads[0]); // 目录只有一页时, 每次查找读目录和一个bucket
+            }
+        }
+
+        List<byte[]> pages = ExtendibleHash.build(new int[]{keys[0]}, new int[]{0}, BLOCK_SIZE).toPages();
+        DiskHash hash = new DiskHash(new ListPageStore(pages), BLOCK_SIZE);
+        for (int i = 1; i < keys.length; i++) {
+            int pageCount = pages.size() + hash.pagesToSplit(keys[i], i);
+            assertTrue(hash.insert(keys[i], i));
+            assertEquals(pageCount, pages.size());
+        }
+        assertTrue(!hash.insert(keys[0], -7));
+        assertEquals(-7, hash.find(keys[0]));
+        assertTrue(pages.get(1)[0] != ExtendibleHash.BUCKET_MAGIC); // 目录超过一页
+        for (int i = 0; i < keys.length; i += 2) {
+            assertTrue(hash.delete(keys[i]));
+        }
+        assertTrue(!hash.delete(keys[0]));
+        for (int i = 1; i < keys.length; i++) {
+            assertEquals(i % 2 == 0 ? -1 : i, hash.find(keys[i]));
+        }
+        System.out.println(pages.size() + " pages after " + keys.length + " inserts in place");
+
+        DB.selectDBFile("test", "movies.csv").put("movies.csv", 0, null, true);
+        DB db = DB.locateDB("test", "movies.csv");
+        assertEquals("Sabrina (1995),Comedy|Romance", db.find("movies.csv", 7));
+        assertEquals(null, db.find("movies.csv", 11));
+        boolean rejected = false;
+        try {
+            db.range("movies.csv", 1, 10, entry -> { });
+        } catch (UnsupportedOperationException e) {
+            rejected = true;
+        }
+        assertTrue(rejected);
+        DB.selectDBFile("test", "movies.csv").put("movies.csv");
+    }
+
+    /**
+     * Tests the ConcurrentBTree class under contention.
+     * Writers insert disjoint sets of keys while readers look up the keys that are already inserted,
+     * and every key must be found, during and after the inserts.
+     */
+    @Test
+    public void testConcurrentBTree() throws Exception {
+        int writers = 4;
+        int keysPerWriter = 20000;
+        ConcurrentBTree tree = new ConcurrentBTree();
+        AtomicInteger[] inserted = new AtomicInteger[writers]; // 每个writer按顺序插入key = i * writers + w, 记录已插入的个数
+        AtomicInteger misses = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(writers * 2);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            inserted[w] = new AtomicInteger();
+        }
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < keysPerWriter; i++) {
+                    int key = i * writers + writer;
+                    tree.insert(key, -key);
+                    inserted[writer].incrementAndGet();
+                }
+            }));
+            futures.add(pool.submit(() -> {
+                int done;
+                while ((done = inserted[writer].get()) < keysPerWriter) {
+                    if (done == 0) {
+                        Thread.yield();
+                        continue;
+                    }
+                    int key = ThreadLocalRandom.current().nextInt(done) * writers + writer;
+                    if (tree.find(key) != -key) {
+                        misses.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+        assertEquals(0, misses.get());
+        for (int key = 0; key < writers * keysPerWriter; key++) {
+            assertEquals(-key, tree.find(key));
+            assertEquals(-key, BTree.findKey(tree.getRoot(), key));
+        }
+        assertEquals(-1, tree.find(-1));
+    }
+
+    /**
+     * Tests that concurrent inserts and finds on the ConcurrentBTree class leave the same contents as a serial run.
+     * Each thread inserts its own keys in a random order and looks up random keys in between, which must be
+     * either missing or mapped to their value; the tree must then find every key a BTree filled serially finds.
+     */
+    @Test
+    public void testConcurrentBTreeMatchesSerial() throws Exception {
+        int threads = 8;
+        int keysPerThread = 10000;
+        ConcurrentBTree tree = new ConcurrentBTree();
+        BTree serial = new BTree();
+        List<List<Integer>> keys = new ArrayList<>();
+        Random random = new Random(18);
+        for (int w = 0; w < threads; w++) {
+            List<Integer> own = new ArrayList<>(); // 每个线程的key = i * threads + w, 互不相交
+            for (int i = 0; i < keysPerThread; i++) {
+                own.add(i * threads + w);
+            }
+            Collections.shuffle(own, random);
+            keys.add(own);
+            for (int key : own) {
+                serial.insert(key, -key);
+            }
+        }
+        AtomicInteger misses = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (List<Integer> own : keys) {
+            futures.add(pool.submit(() -> {
+                ThreadLocalRandom current = ThreadLocalRandom.current();
+                for (int key : own) {
+                    tree.insert(key, -key);
+                    int other = current.nextInt(threads * keysPerThread);
+                    int val = tree.find(other);
+                    if (val != -1 && val != -other) {
+                        misses.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+        assertEquals(0, misses.get());
+        for (int key = -1; key <= threads * keysPerThread; key++) {
+            assertEquals(serial.find(key), tree.find(key));
+            assertEquals(serial.find(key), BTree.findKey(tree.getRoot(), key));
+        }
+    }
+
+    /**
+     * Tests the delete() method of the BTree class.
+     * It deletes half of 2000 random keys in random order, which merges and refills nodes at every level,
+     * and checks that the deleted keys are gone and the other keys are still found.
+     */
+    @Test
+    public void testBTreeDelete() {
+        Random random = new Random(19);
+        List<Integer> keys = new ArrayList<>();
+        for (int key : random.ints(0, 100000).distinct().limit(2000).toArray()) {
+            keys.add(key);
+        }
+        BTree bTree = new BTree();
+        for (int key : keys) {
+            bTree.insert(key, key * 2);
+        }
+        Collections.shuffle(keys, random);
+        List<Integer> deleted = keys.subList(0, 1000);
+        for (int key : deleted) {
+            assertTrue(bTree.delete(key));
+        }
+        assertTrue(!bTree.delete(deleted.get(0)));
+        for (int key : deleted) {
+            assertEquals(-1, bTree.find(key));
+        }
+        for (int key : keys.subList(1000, 2000)) {
+            assertEquals(key * 2, bTree.find(key));
+        }
+        for (int key : keys.subList(1000, 2000)) {
+            assertTrue(bTree.delete(key));
+        }
+        assertEquals(-1, bTree.find(keys.get(1999)));
+    }
+
+    /**
+     * Tests the insert() and delete() methods of the DiskBPlusTree class on pages in memory.
+     * It inserts 1000 random keys into a bulk-loaded tree, which splits leaves, inner nodes and the root,
+     * deletes half of them, and checks find and range after each step.
+     */
+    @Test
+    public void testDiskBPlusTreeChanges() throws Exception {
+        int t = BTree.MINIMUM_DEGREE;
+        int[] keys = new int[53];
+        int[] vals = new int[53];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i * 3;
+            vals[i] = i;
+        }
+        List<byte[]> pages = DiskBPlusTree.toPages(BPlusTree.bulkLoad(keys, vals, t, 1.0).getRoot(), t);
+        DiskBPlusTree tree = new DiskBPlusTree(new ListPageStore(pages), t);
+        int height = tree.height();
+
+        Random random = new Random(19);
+        List<Integer> inserted = new ArrayList<>();
+        for (int key : random.ints(0, 100000).filter(key -> key % 3 != 0).distinct().limit(1000).toArray()) {
+            int pageCount = pages.size() + tree.pagesToSplit(key);
+            assertTrue(tree.insert(key, key));
+            assertEquals(pageCount, pages.size());
+            inserted.add(key);
+        }
+        assertTrue(!tree.insert(inserted.get(0), -7)); // 已有的key只替换value
+        assertTrue(tree.height() > height);
+        for (int key : inserted) {
+            assertEquals(key == inserted.get(0) ? -7 : key, tree.find(key));
+        }
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i, tree.find(keys[i]));
+        }
+
+        for (int key : inserted.subList(0, 500)) {
+            assertTrue(tree.delete(key));
+        }
+        assertTrue(!tree.delete(inserted.get(0)));
+        for (int key : inserted.subList(0, 500)) {
+            assertEquals(-1, tree.find(key));
+        }
+        int[] count = new int[1];
+        int[] last = {Integer.MIN_VALUE};
+        tree.range(Integer.MIN_VALUE, Integer.MAX_VALUE, (key, val) -> {
+            assertTrue(key > last[0]);
+            last[0] = key;
+            count[0]++;
+            return true;
+        });
+        assertEquals(keys.length + 500, count[0]);
+        System.out.println(pages.size() + " pages, height " + tree.height());
+    }
+
+    /**
+     * Tests the DiskPackedBPlusTree class on pages in memory.
+     * It checks that packed pages of dense keys are several times fewer than fixed-size pages, finds and scans the keys,
+     * then appends keys and inserts random keys with random values, which split leaves, inner nodes and the root,
+     * checking that pagesToSplit() predicts the new pages, and deletes the random keys.
+     */
+    @Test
+    public void testPackedPages() throws Exception {
+        int[] keys = new int[5000];
+        int[] vals = new int[5000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i + 1;
+            vals[i] = 100 + i / 5; // 每个数据块5个entry
+        }
+        List<byte[]> pages = DiskPackedBPlusTree.toPages(keys, vals, BLOCK_SIZE, 1.0);
+        int fixedPages = BPlusTree.countPages(keys.length, BTreePage.maxDegree(BLOCK_SIZE), 1.0);
+        System.out.println(pages.size() + " packed pages, " + fixedPages + " fixed-size pages");
+        assertTrue(pages.size() * 5 <= fixedPages);
+
+        DiskPackedBPlusTree tree = new DiskPackedBPlusTree(new ListPageStore(pages), BLOCK_SIZE);
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(vals[i], tree.find(keys[i]));
+        }
+        assertEquals(-1, tree.find(0));
+        assertEquals(-1, tree.find(-5));
+        assertEquals(-1, tree.find(5001));
+        int[] count = new int[1];
+        tree.range(100, 199, (key, val) -> {
+            assertEquals(100 + count[0], key);
+            count[0]++;
+            return true;
+        });
+        assertEquals(100, count[0]);
+
+        Random random = new Random(20);
+        List<Integer> inserted = new ArrayList<>();
+        for (int key = 5001; key <= 6000; key++) {
+            inserted.add(key);
+        }
+        random.ints(-100000, 0).distinct().limit(1000).forEach(inserted::add);
+        int height = tree.height();
+        for (int key : inserted) {
+            int val = key > 0 ? 1100 + (key - 5001) / 5 : random.nextInt(100000);
+            int pageCount = pages.size() + tree.pagesToSplit(key, val);
+            assertTrue(tree.insert(key, val));
+            assertEquals(pageCount, pages.size());
+        }
+        assertTrue(!tree.insert(5001, 7)); // 已有的key只替换value
+        assertEquals(7, tree.find(5001));
+        assertTrue(tree.height() >= height);
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(vals[i], tree.find(keys[i]));
+        }
+
+        for (int key : inserted.subList(1000, 2000)) {
+            assertTrue(tree.delete(key));
+        }
+        assertTrue(!tree.delete(inserted.get(1000)));
+        count[0] = 0;
+        int[] last = {Integer.MIN_VALUE};
+        tree.range(Integer.MIN_VALUE, Integer.MAX_VALUE, (key, val) -> {
+            assertTrue(key > last[0]);
+            last[0] = key;
+            count[0]++;
+            return true;
+        });
+        assertEquals(6000, count[0]);
+        System.out.println(pages.size() + " packed pages after the inserts, height " + tree.height());
+    }
+
+    /**
+     * Tests the insert(), update() and delete() methods of the DB class.
+     * It changes single entries of a file, checks them with find, range and findBy, checks that an insert
+     * only logs the blocks it changes, that a change that doesn't fit in the FCB leaves the file as it was,
+     * and that the entries of a file with a hash index are changed in place too.
+     */
+    @Test
+    public void testChangeEntries() throws Exception {
+        DB.selectDBFile("test", "movies.csv").put("movies.csv");
+        DB db = DB.locateDB("test", "movies.csv");
+        // The header blocks changed by put are logged again by every commit until they are checkpointed
+        WriteAheadLog.forDatabase("test").checkpoint();
+        assertTrue(db.insert("movies.csv", 100000, "Heat 2 (2025),Action|Comedy"));
+        // The last data block of put is full, so the first insert adds a data block, and the next insert goes to it:
+        // the data block, the leaf and the Bloom filter block
+        WriteAheadLog.forDatabase("test").checkpoint();
+        assertTrue(db.insert("movies.csv", 100001, "Heat 3 (2027),Action"));
+        System.out.println(db.getLastCommitBlocks() + " blocks logged by an insert");
+        assertTrue(db.getLastCommitBlocks() <= 3);
+        assertTrue(db.delete("movies.csv", 100001));
+        assertTrue(!db.insert("movies.csv", 100000, "Heat 2 (2025),Action"));
+        assertEquals("Heat 2 (2025),Action|Comedy", db.find("movies.csv", 100000));
+
+        assertTrue(db.update("movies.csv", 7, "Sabrina (1954),Drama"));
+        assertEquals("Sabrina (1954),Drama", db.find("movies.csv", 7));
+        assertTrue(!db.update("movies.csv", 11, "Missing,Drama"));
+        assertTrue(db.delete("movies.csv", 7));
+        assertTrue(!db.delete("movies.csv", 7));
+        assertEquals(null, db.find("movies.csv", 7));
+        List<Integer> ids = new ArrayList<>();
+        db.range("movies.csv", 1, 10, entry -> ids.add(entry.id));
+        assertTrue(!ids.contains(7));
+
+        // Enough inserts to add data blocks and split the leaves of the B+tree
+        for (int i = 0; i < 100; i++) {
+            assertTrue(db.insert("movies.csv", 200000 + i, "Movie " + i + ",Comedy"));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("Movie " + i + ",Comedy", db.find("movies.csv", 200000 + i));
+        }
+        assertEquals(53 + 100, db.range("movies.csv", 0, Integer.MAX_VALUE, entry -> { }));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(db.delete("movies.csv", 200000 + i));
+        }
+        assertEquals(53, db.range("movies.csv", 0, Integer.MAX_VALUE, entry -> { }));
+
+        DB.selectDBFile("test", "movies.csv").put("movies.csv", 0, "genre");
+        db = DB.locateDB("test", "movies.csv");
+        int action = db.findBy("movies.csv", "genre", "action", entry -> { });
+        assertTrue(db.insert("movies.csv", 100000, "Heat 2 (2025),Action|Comedy"));
+        assertEquals(18, db.findBy("movies.csv", "genre", "comedy", entry -> { }));
+        assertEquals(action + 1, db.findBy("movies.csv", "genre", "action", entry -> { }));
+        assertTrue(db.update("movies.csv", 7, "Sabrina (1954),Drama"));
+        assertEquals(17, db.findBy("movies.csv", "genre", "comedy", entry -> { }));
+        assertTrue(db.delete("movies.csv", 100000));
+        assertEquals(16, db.findBy("movies.csv", "genre", "comedy", entry -> { }));
+
+        // The secondary index fills the index blocks of the FCB, until an insert doesn't fit
+        boolean rejected = false;
+        int inserted = 0;
+        try {
+            for (; inserted < 100; inserted++) {
+                db.insert("movies.csv", 200000 + inserted, "Movie " + inserted + ",Comedy");
+            }
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage() + " after " + inserted + " inserts");
+            rejected = true;
+        }
+        assertTrue(rejected);
+        assertEquals(null, db.find("movies.csv", 200000 + inserted));
+        assertEquals(53 + inserted, db.range("movies.csv", 0, Integer.MAX_VALUE, entry -> { }));
+        assertEquals(16 + inserted, db.findBy("movies.csv", "genre", "comedy", entry -> { }));
+
+        DB.selectDBFile("test", "movies.csv").put("movies.csv", 0, null, true);
+        db = DB.locateDB("test", "movies.csv");
+        assertTrue(db.update("movies.csv", 7, "Sabrina (1954),Drama"));
+        assertEquals("Sabrina (1954),Drama", db.find("movies.csv", 7));
+        assertTrue(db.insert("movies.csv", 100000, "Heat 2 (2025),Action"));
+        assertTrue(!db.insert("movies.csv", 100000, "Heat 2 (2025),Drama"));
+        assertEquals("Heat 2 (2025),Action", db.find("movies.csv", 100000));
+        assertTrue(db.delete("movies.csv", 7));
+        assertEquals(null, db.find("movies.csv", 7));
+        // Enough inserts to split the buckets of the hash table
+        for (int i = 0; i < 100; i++) {
+            assertTrue(db.insert("movies.csv", 200000 + i, "Movie " + i + ",Comedy"));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("Movie " + i + ",Comedy", db.find("movies.csv", 200000 + i));
+            assertTrue(db.delete("movies.csv", 200000 + i));
+        }
+        assertEquals("Heat 2 (2025),Action", db.find("movies.csv", 100000));
+        assertEquals("Toy Story (1995),Adventure|Animation|Children|Comedy|Fantasy", db.find("movies.csv", 1));
+        DB.selectDBFile("test", "movies.csv").put("movies.csv");
+    }
+
+    /**
+     * Tests that a put replacing a file keeps the old file when it fails.
+     * It puts a copy of movies.csv, deletes the CSV file and puts it again, which fails while reading the file,
+     * and checks that the old file is still in the manifest and can be found.
+     */
+    @Test
+    public void testFailedReplaceKeepsFile() throws Exception {
+        Path csv = Paths.get("./src/com/neu/nosql/io/movies_replace.csv");
+        Files.copy(Paths.get("./src/com/neu/nosql/io/movies.csv"), csv);
+        DB db;
+        try {
+            db = DB.selectDBFile("test", "movies_replace.csv");
+            db.put("movies_replace.csv");
+        } finally {
+            Files.delete(csv);
+        }
+        boolean failed = false;
+        try {
+            db.put("movies_replace.csv");
+        } catch (IOException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+        db = DB.locateDB("test", "movies_replace.csv");
+        assertTrue(db != null);
+        assertEquals("Toy Story (1995),Adventure|Animation|Children|Comedy|Fantasy", db.find("movies_replace.csv", 1));
+        assertEquals(53, db.range("movies_replace.csv", 0, Integer.MAX_VALUE, entry -> { }));
+        db.remove("movies_replace.csv");
+    }
+
+    /**
+     * Tests that a put that fails while its rows are streamed leaves the database file as it was.
+     * It puts a file with one long row per data block, more rows than an FCB holds, and checks that
+     * the blocks taken by the rows are free again and that the next change only logs its own blocks.
+     */
+    @Test
+    public void testFailedPutRollsBack() throws Exception {
+        DB.selectDBFile("test", "movies.csv").put("movies.csv");
+        DB db = DB.locateDB("test", "movies.csv");
+        WriteAheadLog.forDatabase("test").checkpoint();
+        int free = db.countEmptyBlock();
+        Path csv = Paths.get("./src/com/neu/nosql/io/movies_huge.csv");
+        List<String> lines = new ArrayList<>();
+        String title = String.join("", Collections.nCopies(20, "Long Title "));
+        for (int i = 1; i <= FCB.maxDataBlocks(BLOCK_SIZE) + 1; i++) {
+            lines.add(i + "," + title + "(1995),Drama");
+        }
+        Files.write(csv, lines);
+        boolean rejected = false;
+        try {
+            db.put("movies_huge.csv");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            rejected = true;
+        } finally {
+            Files.delete(csv);
+        }
+        assertTrue(rejected);
+        assertEquals(null, DB.locateDB("test", "movies_huge.csv"));
+        assertEquals(free, db.countEmptyBlock());
+        assertTrue(db.update("movies.csv", 7, "Sabrina (1954),Drama"));
+        // The data block and the bitmap, which the failed put changed back
+        assertTrue(db.getLastCommitBlocks() <= 2);
+        DB.selectDBFile("test", "movies.csv").put("movies.csv");
+    }
+
+    /**
+     * Tests that a put that runs out of blocks is done again in another database file.
+     * It takes all but a few blocks of the first database file of "test_move", puts movies.csv into it,
+     * and checks that the file is in another database file and the first one has the same empty blocks.
+     * The database is killed afterwards.
+     */
+    @Test
+    public void testPutMovesToLargerDBFile() throws Exception {
+        DB.kill("test_move");
+        try {
+            DB db = DB.open("test_move");
+            db.allocateBlocks(db.countEmptyBlock() - 4);
+            int free = db.countEmptyBlock();
+            db.put("movies.csv");
+            DB located = DB.locateDB("test_move", "movies.csv");
+            assertTrue(located != null && located != db);
+            System.out.println("movies.csv moved to " + located.metadata.suffix);
+            assertEquals(free, db.countEmptyBlock());
+            assertEquals("Sabrina (1995),Comedy|Romance", located.find("movies.csv", 7));
+            assertEquals(53, located.range("movies.csv", 0, Integer.MAX_VALUE, entry -> { }));
+        } finally {
+            DB.kill("test_move");
+        }
+    }
+
+    /**
+     * Tests that put streams the rows of a CSV file into data blocks, from one thread and with parallel parsing.
+     * It puts movies.csv with its rows in reverse order, a bad line and a second row with the ID 7,
+     * read with a buffer smaller than a line, and checks that the later row wins and the index is in key order.
+     */
+    @Test
+    public void testStreamingPut() throws Exception {
+        Path source = Paths.get("./src/com/neu/nosql/io/movies.csv");
+        Path reversed = Paths.get("./src/com/neu/nosql/io/movies_stream.csv");
+        List<String> lines = new ArrayList<>(Files.readAllLines(source));
+        Collections.reverse(lines);
+        lines.add("not a row");
+        lines.add("7,Sabrina (1954),Comedy|Drama");
+        Files.write(reversed, lines);
+        DB.setIngestBufferSize(16);
+        try {
+            for (int parallelism : new int[]{1, 3}) {
+                DB.setIngestParallelism(parallelism);
+                DB.selectDBFile("test", "movies_stream.csv").put("movies_stream.csv", 0, "genre");
+                DB db = DB.locateDB("test", "movies_stream.csv");
+                assertEquals("Sabrina (1954),Comedy|Drama", db.find("movies_stream.csv", 7));
+                assertEquals("Grumpier Old Men (1995),Comedy|Romance", db.find("movies_stream.csv", 3));
+                List<Integer> ids = new ArrayList<>();
+                assertEquals(53, db.range("movies_stream.csv", 0, Integer.MAX_VALUE, entry -> ids.add(entry.id)));
+                List<Integer> sorted = new ArrayList<>(ids);
+                Collections.sort(sorted);
+                assertEquals(sorted, ids);
+                // The genres of the first row with the ID 7 are replaced as well
+                long drama = MovieReader.readColumnFromCSV(source.toString(), 2).values().stream()
+                        .filter(genre -> genre.contains("Drama")).count();
+                assertEquals(drama + 1, db.findBy("movies_stream.csv", "genre", "drama", entry -> { }));
+                db.findBy("movies_stream.csv", "genre", "romance", entry -> assertTrue(entry.id != 7));
+                db.remove("movies_stream.csv");
+            }
+        } finally {
+            DB.setIngestBufferSize(MovieReader.DEFAULT_BUFFER_SIZE);
+            DB.setIngestParallelism(1);
+            Files.delete(reversed);
+        }
+    }
+
+    /**
+     * Tests a database with a non-default geometry: 4K blocks and a 64M database file.
+     * A separate process creates and fills the database and dies; the database reopened here
+     * reads the geometry from its metadata, whatever geometry it is opened with.
+     */
+    @Test
+    public void testGeometryReopen() throws Exception {
+        DB.kill("test_geometry");
+        try {
+            crash("geometry");
+            DB db = DB.open("test_geometry");
+            assertEquals(4096, db.metadata.blockSize);
+            assertEquals(16384, db.metadata.blockCount);
+            assertTrue(db == DB.open("test_geometry", BLOCK_SIZE, BLOCK_CNT));
+            assertEquals(4096, DB.open("test_geometry", BLOCK_SIZE, BLOCK_CNT).metadata.blockSize);
+            assertEquals(64L << 20, Files.size(Paths.get("./src/com/neu/nosql/file/test_geometry.db0")));
+            assertEquals("Sabrina (1995),Comedy|Romance", db.find("movies.csv", 7));
+            assertEquals(53, db.range("movies.csv", 0, Integer.MAX_VALUE, entry -> { }));
+        } finally {
+            DB.kill("test_geometry");
+        }
+    }
+
+    /**
+     * Tests that a deleted manifest is rebuilt from the FCBs of the database files.
+     * A separate process puts two files and dies; the manifest is deleted here, and the database reopened
+     * here lists the same entries and saves the rebuilt manifest.
+     */
+    @Test
+    public void testManifestRebuild() throws Exception {
+        DB.kill("test_manifest");
+        try {
+            crash("manifest");
+            List<String> saved = new ArrayList<>();
+            for (Manifest.Entry entry : Manifest.load("test_manifest").entries()) {
+                saved.add(entry.toString());
+            }
+            assertEquals(2, saved.size());
+            Manifest.delete("test_manifest");
+            List<String> rebuilt = DB.dir("test_manifest");
+            Collections.sort(saved);
+            Collections.sort(rebuilt);
+            assertEquals(saved, rebuilt);
+            assertTrue(Manifest.load("test_manifest") != null);
+            assertEquals("Sabrina (1995),Comedy|Romance", DB.locateDB("test_manifest", "movies_du.csv").find("movies_du.csv", 7));
+        } finally {
+            DB.kill("test_manifest");
+        }
+    }
+
+    /**
+     * Tests the cache of open database files: opening a database file again returns the cached one,
+     * and killing the database drops it, so the next open creates an empty database file.
+     */
+    @Test
+    public void testSegmentCacheDroppedOnKill() throws Exception {
+        DB.kill("test_cache");
+        try {
+            DB db = DB.open("test_cache");
+            assertTrue(DB.open("test_cache") == db);
+            db.put("movies.csv");
+            assertTrue(DB.locateDB("test_cache", "movies.csv") == db);
+            DB.kill("test_cache");
+            DB reopened = DB.open("test_cache");
+            assertTrue(reopened != db);
+            assertEquals(null, DB.locateDB("test_cache", "movies.csv"));
+            assertEquals(db.metadata.blockCount - db.metadata.headerBlockCount(), reopened.countEmptyBlock());
+        } finally {
+            DB.kill("test_cache");
+        }
+    }
+
+    /**
+     * Tests that a checkpoint only writes the blocks that changed: after a put is checkpointed,
+     * an update of a value of the same length changes one data block, and the next flush writes that block only.
+     */
+    @Test
+    public void testFlushBytesAfterOneBlockChange() throws Exception {
+        DB.kill("test_flush");
+        try {
+            DB.selectDBFile("test_flush", "movies.csv").put("movies.csv");
+            DB db = DB.locateDB("test_flush", "movies.csv");
+            WriteAheadLog.forDatabase("test_flush").checkpoint();
+            assertTrue(db.getLastFlushBytes() > BLOCK_SIZE);
+            assertTrue(db.update("movies.csv", 7, "Sabrina (1954),Romance|Comedy"));
+            assertEquals(1, db.getLastCommitBlocks());
+            WriteAheadLog.forDatabase("test_flush").checkpoint();
+            assertEquals(BLOCK_SIZE, db.getLastFlushBytes());
+        } finally {
+            DB.kill("test_flush");
+        }
+    }
+
+    /**
+     * Tests a database in mmap mode: it puts movies.csv into a mapped database file, finds a key,
+     * and finds it again after the file is reopened on the heap and mapped again.
+     */
+    @Test
+    public void testMmapRoundTrip() throws Exception {
+        DB.kill("test_mmap");
+        DB.setMmapMode(true);
+        try {
+            DB.selectDBFile("test_mmap", "movies.csv").put("movies.csv");
+            assertEquals("Sabrina (1995),Comedy|Romance", DB.locateDB("test_mmap", "movies.csv").find("movies.csv", 7));
+            // Switching the mode checkpoints and closes the database files, so they are read again from disk
+            DB.setMmapMode(false);
+            assertEquals("Sabrina (1995),Comedy|Romance", DB.locateDB("test_mmap", "movies.csv").find("movies.csv", 7));
+            DB.setMmapMode(true);
+            DB db = DB.locateDB("test_mmap", "movies.csv");
+            assertEquals("Sabrina (1995),Comedy|Romance", db.find("movies.csv", 7));
+            assertEquals(53, db.range("movies.csv", 0, Integer.MAX_VALUE, entry -> { }));
+        } finally {
+            DB.setMmapMode(false);
+            DB.kill("test_mmap");
+        }
+    }
+
+    /**
+     * Tests that an update that moves a value to an overflow chain is recorded in the manifest.
+     * A separate process puts movies.csv, updates the key 7 to a value longer than a data block and checkpoints;
+     * the database reopened here has the long value, and the manifest saved on disk counts the blocks of the chain.
+     */
+    @Test
+    public void testOverflowUpdateReopen() throws Exception {
+        DB.kill("test_overflow");
+        try {
+            crash("overflow");
+            DB db = DB.locateDB("test_overflow", "movies.csv");
+            assertEquals(0, WriteAheadLog.forDatabase("test_overflow").getRecoveredCount());
+            assertTrue(Crash.LONG_VALUE.length() > Block.maxValueLength(BLOCK_SIZE));
+            assertEquals(Crash.LONG_VALUE, db.find("movies.csv", 7));
+            Manifest.Entry entry = Manifest.load("test_overflow").lookup("movies.csv");
+            for (FCB fcb : db.fcbs) {
+                if (Utils.parseInputFileName("movies.csv").equals(fcb.name)) {
+                    assertEquals(fcb.dataBlocks.size(), entry.dataBlockCount);
+                    assertEquals(fcb.indexBlocks.size(), entry.indexBlockCount);
+                }
+            }
+            assertEquals(53, entry.recordCount);
+        } finally {
+            DB.kill("test_overflow");
+        }
+    }
+
+    /**
+     * Tests that the committed transactions of a log that was not checkpointed are replayed when the database is opened.
+     * A separate process puts movies.csv and updates the key 7 while holding off checkpoints, and dies;
+     * the database reopened here has both changes.
+     */
+    @Test
+    public void testLogReplay() throws Exception {
+        DB.kill("test_replay");
+        try {
+            crash("replay");
+            DB db = DB.locateDB("test_replay", "movies.csv");
+            assertTrue(WriteAheadLog.forDatabase("test_replay").getRecoveredCount() >= 2);
+            assertEquals("Sabrina (1954),Drama", db.find("movies.csv", 7));
+            assertEquals(53, db.range("movies.csv", 0, Integer.MAX_VALUE, entry -> { }));
+        } finally {
+            DB.kill("test_replay");
+        }
+    }
+
+    /**
+     * Tests that replay stops at the first transaction that is cut off or fails the checksum.
+     * It writes a log with a good transaction followed by a bad one and another good one,
+     * and checks that only the first one is written to the database file and the log is emptied.
+     */
+    @Test
+    public void testLogReplayStopsAtBadTransaction() throws Exception {
+        Path log = Paths.get("./src/com/neu/nosql/file/test_wal.wal");
+        Path segment = Paths.get("./src/com/neu/nosql/file/test_wal.db0");
+        for (boolean cutOff : new boolean[]{false, true}) {
+            DB.kill("test_wal");
+            try {
+                byte[] first = logTransaction(0, "AAAA");
+                byte[] second = logTransaction(4, "BBBB");
+                if (cutOff) {
+                    second = Arrays.copyOf(second, second.length - 5);
+                } else {
+                    second[second.length - 1] ^= 1; // 校验和不对
+                }
+                ByteBuffer bytes = ByteBuffer.allocate(first.length + second.length + 64);
+                bytes.put(first).put(second);
+                if (!cutOff) {
+                    bytes.put(logTransaction(8, "CCCC"));
+                }
+                Files.write(log, Arrays.copyOf(bytes.array(), bytes.position()));
+                assertEquals(1, WriteAheadLog.forDatabase("test_wal").getRecoveredCount());
+                assertEquals("AAAA", new String(Files.readAllBytes(segment)));
+                assertEquals(0, Files.size(log));
+            } finally {
+                DB.kill("test_wal");
+            }
+        }
+    }
+
+    /**
+     * Tests that a checkpoint truncates the log once the changes are in the database files.
+     */
+    @Test
+    public void testCheckpointTruncatesLog() throws Exception {
+        WriteAheadLog log = WriteAheadLog.forDatabase("test");
+        // The running operation holds off the background checkpoint until the size of the log is checked
+        log.beginOperation();
+        try {
+            DB.selectDBFile("test", "movies.csv").put("movies.csv");
+            assertTrue(log.getSize() > 0);
+        } finally {
+            log.endOperation();
+        }
+        log.checkpoint();
+        assertEquals(0, log.getSize());
+        assertEquals(0, Files.size(Paths.get("./src/com/neu/nosql/file/test.wal")));
+        assertEquals("Sabrina (1995),Comedy|Romance", DB.locateDB("test", "movies.csv").find("movies.csv", 7));
+    }
+
+    /**
+     * Tests group commit: threads that commit at the same time share the fsyncs of the log.
+     */
+    @Test
+    public void testGroupCommit() throws Exception {
+        DB.kill("test_group");
+        try {
+            WriteAheadLog log = WriteAheadLog.forDatabase("test_group");
+            int threads = 8;
+            int commitsPerThread = 50;
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < commitsPerThread; i++) {
+                        log.commit(Collections.emptyList(), Collections.emptyList());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            pool.shutdown();
+            System.out.println(log.getSyncCount() + " fsyncs for " + log.getCommitCount() + " commits");
+            assertEquals(threads * commitsPerThread, log.getCommitCount());
+            assertTrue(log.getSyncCount() < log.getCommitCount());
+        } finally {
+            DB.kill("test_group");
+        }
+    }
+
+    /**
+     * Tests that a change that is not committed doesn't reach a mapped database file.
+     * A separate process puts movies.csv in mmap mode, checkpoints it, changes the data block of the key 7
+     * and dies before committing; the file reopened here still has the old value.
+     */
+    @Test
+    public void testMmapCrashBeforeCommit() throws Exception {
+        DB.kill("test_crash");
+        try {
+            crash("mmap");
+            DB db = DB.locateDB("test_crash", "movies.csv");
+            assertEquals("Sabrina (1995),Comedy|Romance", db.find("movies.csv", 7));
+        } finally {
+            DB.kill("test_crash");
+        }
+    }
+
+    /**
+     * Tests that readMoviesParallel() visits the same rows as readMovies() sorted by key,
+     * the later of two rows with the same ID last, with 1 to 8 threads.
+     */
+    @Test
+    public void testParallelParseMatchesSequential() throws Exception {
+        int rowCount = 20000;
+        Path csv = Files.createTempFile("movies", ".csv");
+        try {
+            List<String> lines = new ArrayList<>(rowCount);
+            Random random = new Random(22);
+            for (int i = 0; i < rowCount; i++) {
+                lines.add(random.nextInt(rowCount / 2) + ",Movie " + i + " (" + (1900 + i % 120) + "),Comedy|Drama");
+            }
+            Files.write(csv, lines);
+            List<Map.Entry<Integer, String>> sequential = new ArrayList<>();
+            MovieReader.readMovies(csv.toString(), MovieReader.DEFAULT_BUFFER_SIZE,
+                    (id, val, parts) -> sequential.add(new AbstractMap.SimpleEntry<>(id, val)));
+            sequential.sort(Map.Entry.comparingByKey()); // 稳定排序, 相同ID保持文件中的顺序
+            assertEquals(rowCount, sequential.size());
+            for (int threads = 1; threads <= 8; threads *= 2) {
+                List<Map.Entry<Integer, String>> parallel = new ArrayList<>();
+                MovieReader.readMoviesParallel(csv.toString(), threads,
+                        (id, val, parts) -> parallel.add(new AbstractMap.SimpleEntry<>(id, val)));
+                assertEquals(sequential, parallel);
+            }
+        } finally {
+            Files.delete(csv);
+        }
+    }
+
+    /**
+     * A page store over a list of pages in memory, which the tests of the disk-resident indexes change in place.
+     */
+    private static final class ListPageStore implements WritablePageStore {
+        private final List<byte[]> pages;
+
+        ListPageStore(List<byte[]> pages) {
+            this.pages = pages;
+        }
+
+        @Override
+        public ByteBuffer read(int pageNo) {
+            return ByteBuffer.wrap(pages.get(pageNo));
+        }
+
+        @Override
+        public void write(int pageNo, byte[] page) {
+            pages.set(pageNo, page);
+        }
+
+        @Override
+        public int append(byte[] page) {
+            pages.add(page);
+            return pages.size() - 1;
+        }
+
+        @Override
+        public int nextPageNo() {
+            return pages.size();
+        }
+    }
+
+    /**
+     * Returns a transaction of the log that writes a string at the specified position of the .db0 file.
+     */
+    private static byte[] logTransaction(long position, String data) {
+        byte[] bytes = data.getBytes();
+        ByteBuffer transaction = ByteBuffer.allocate(4 + 16 + bytes.length + 8);
+        transaction.putInt(16 + bytes.length);
+        transaction.putInt(0);
+        transaction.putLong(position);
+        transaction.putInt(bytes.length);
+        transaction.put(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(transaction.array(), 4, 16 + bytes.length);
+        transaction.putLong(crc.getValue());
+        return transaction.array();
+    }
+
+    /**
+     * Runs a scenario of Crash in a new process and waits until it dies.
+     *
+     * @param scenario the name of the scenario
+     */
+    private static void crash(String scenario) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Crash.class.getName(), scenario)
+                .inheritIO().start();
+        assertEquals(Crash.EXIT_CODE, process.waitFor());
+    }
+
+    /**
+     * The process of the crash tests, which changes a database and halts without closing it,
+     * so that nothing is checkpointed or written back on the way out.
+     */
+    public static final class Crash {
+        static final int EXIT_CODE = 3;
+        static final String LONG_VALUE = String.join("", Collections.nCopies(40, "Long Title ")) + "(1954),Drama";
+
+        public static void main(String[] args) throws Exception {
+            if (args[0].equals("replay")) {
+                // The running operation holds off the background checkpoint, so the changes are only in the log
+                WriteAheadLog.forDatabase("test_replay").beginOperation();
+                DB.selectDBFile("test_replay", "movies.csv").put("movies.csv");
+                DB.locateDB("test_replay", "movies.csv").update("movies.csv", 7, "Sabrina (1954),Drama");
+            } else if (args[0].equals("geometry")) {
+                DB.open("test_geometry", 4096, 16384).put("movies.csv");
+                WriteAheadLog.forDatabase("test_geometry").checkpoint();
+            } else if (args[0].equals("manifest")) {
+                DB.selectDBFile("test_manifest", "movies.csv").put("movies.csv");
+                DB.selectDBFile("test_manifest", "movies_du.csv").put("movies_du.csv", 0, null, true);
+                WriteAheadLog.forDatabase("test_manifest").checkpoint();
+            } else if (args[0].equals("overflow")) {
+                DB.selectDBFile("test_overflow", "movies.csv").put("movies.csv");
+                DB.locateDB("test_overflow", "movies.csv").update("movies.csv", 7, LONG_VALUE);
+                WriteAheadLog.forDatabase("test_overflow").checkpoint();
+            } else if (args[0].equals("mmap")) {
+                // The change of the data block is made and never committed
+                DB.setMmapMode(true);
+                DB.selectDBFile("test_crash", "movies.csv").put("movies.csv");
+                WriteAheadLog.forDatabase("test_crash").checkpoint();
+                DB db = DB.locateDB("test_crash", "movies.csv");
+                for (FCB fcb : db.fcbs) {
+                    if (Utils.parseInputFileName("movies.csv").equals(fcb.name)) {
+                        for (int blockID : fcb.dataBlocks) {
+                            int slot = db.pin(blockID).slotOf(7);
+                            if (slot >= 0) {
+                                db.pinForWrite(blockID).set(slot, 7, "Sabrina (1954),Drama".getBytes());
+                            }
+                        }
+                    }
+                }
+            }
+            Runtime.getRuntime().halt(EXIT_CODE);
+        }
+    }
 }